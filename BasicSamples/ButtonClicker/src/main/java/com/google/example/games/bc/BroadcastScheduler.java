@@ -0,0 +1,158 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+/**
+ * Decides when to broadcast interim scores. Sending one message to every peer on every click
+ * floods the network when the player clicks fast, so interim broadcasts are limited to a
+ * maximum rate: a score change is sent right away if the last broadcast is old enough, and
+ * otherwise coalesced with the changes that follow into a single broadcast at the end of the
+ * interval. Whoever sends it reads the score at that time, so the latest value always goes
+ * out. Final scores are never delayed.
+ *
+ * Times are passed in by the caller, in milliseconds of any monotonic clock, so this class
+ * can be driven by a Handler as well as by a simulation.
+ */
+final class BroadcastScheduler {
+
+    // Value of mPendingSince when no interim broadcast is pending.
+    private static final long NONE = -1;
+
+    private long mMinIntervalMillis;
+
+    // When the last interim broadcast was sent, or NONE if none has been sent yet.
+    private long mLastSentAt = NONE;
+
+    // When the oldest change not broadcast yet happened, or NONE if there isn't one.
+    private long mPendingSince = NONE;
+
+    // Whether the final score was broadcast; no interim scores are sent after that.
+    private boolean mFinished = false;
+
+    // Counters, for diagnostics.
+    private int mScoreChanges = 0;
+    private int mInterimBroadcasts = 0;
+    private int mFinalBroadcasts = 0;
+    private int mMessagesSent = 0;
+
+    /** @param maxBroadcastsPerSecond the maximum rate of interim broadcasts. */
+    BroadcastScheduler(int maxBroadcastsPerSecond) {
+        setMaxBroadcastsPerSecond(maxBroadcastsPerSecond);
+    }
+
+    /** Changes the maximum rate of interim broadcasts, for instance to adapt to the network. */
+    void setMaxBroadcastsPerSecond(int maxBroadcastsPerSecond) {
+        if (maxBroadcastsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + maxBroadcastsPerSecond);
+        }
+        mMinIntervalMillis = 1000 / maxBroadcastsPerSecond;
+    }
+
+    /** Returns the minimum time between two interim broadcasts, in milliseconds. */
+    long getMinIntervalMillis() {
+        return mMinIntervalMillis;
+    }
+
+    /**
+     * Records a change of the player's score.
+     *
+     * @return true if an interim broadcast should be sent right away. Otherwise, the change is
+     *         pending until {@link #getDelayMillis} has elapsed and {@link #onTimer} is called.
+     */
+    boolean onScoreChanged(long nowMillis) {
+        mScoreChanges++;
+        if (mFinished) {
+            return false;
+        }
+        if (mPendingSince == NONE) {
+            mPendingSince = nowMillis;
+        }
+        return isDue(nowMillis);
+    }
+
+    /**
+     * Called when the delay returned by {@link #getDelayMillis} has elapsed.
+     *
+     * @return true if the pending changes should be broadcast now.
+     */
+    boolean onTimer(long nowMillis) {
+        return !mFinished && mPendingSince != NONE && isDue(nowMillis);
+    }
+
+    /**
+     * Returns how long to wait before calling {@link #onTimer}, or -1 if no broadcast is
+     * pending.
+     */
+    long getDelayMillis(long nowMillis) {
+        if (mFinished || mPendingSince == NONE) {
+            return -1;
+        }
+        return Math.max(0, mLastSentAt + mMinIntervalMillis - nowMillis);
+    }
+
+    /**
+     * Records that a score was just broadcast, which clears any pending changes.
+     *
+     * @param finalScore whether it was the final score.
+     * @param recipients the number of peers it was sent to.
+     */
+    void onBroadcast(long nowMillis, boolean finalScore, int recipients) {
+        mPendingSince = NONE;
+        mMessagesSent += recipients;
+        if (finalScore) {
+            mFinished = true;
+            mFinalBroadcasts++;
+        } else {
+            mLastSentAt = nowMillis;
+            mInterimBroadcasts++;
+        }
+    }
+
+    /** Forgets all state and counters, in preparation for a new game. */
+    void reset() {
+        mLastSentAt = NONE;
+        mPendingSince = NONE;
+        mFinished = false;
+        mScoreChanges = 0;
+        mInterimBroadcasts = 0;
+        mFinalBroadcasts = 0;
+        mMessagesSent = 0;
+    }
+
+    /** Returns how many score changes, i.e. clicks, were recorded. */
+    int getScoreChanges() {
+        return mScoreChanges;
+    }
+
+    /** Returns how many interim broadcasts were sent. */
+    int getInterimBroadcasts() {
+        return mInterimBroadcasts;
+    }
+
+    /** Returns how many final broadcasts were sent. */
+    int getFinalBroadcasts() {
+        return mFinalBroadcasts;
+    }
+
+    /** Returns how many messages were sent, counting one per recipient of each broadcast. */
+    int getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    private boolean isDue(long nowMillis) {
+        return mLastSentAt == NONE || nowMillis - mLastSentAt >= mMinIntervalMillis;
+    }
+}
@@ -0,0 +1,134 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times a game from its start time, on a monotonic clock. Everything is computed from the
+ * start time: how long is left, and when the next tick is due, so ticks that run late don't
+ * delay the ones after them, and the game ends on time however loaded the device is.
+ *
+ * Ticks are due at whole multiples of the tick interval after the start, and at the end of
+ * the game. The start time can be moved, to synchronize with the start announced by the host
+ * of a multiplayer game.
+ *
+ * The clock can be used from several threads: for instance, started, stopped and read by the
+ * UI thread, and moved by the thread that processes the host's messages. A move never
+ * restarts a clock that was stopped in the meantime.
+ */
+final class GameClock {
+
+    /** The monotonic clock the game is timed on, e.g. SystemClock.elapsedRealtime(). */
+    interface TimeSource {
+        long now();
+    }
+
+    // Value of mStartAt when the clock isn't started.
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final TimeSource mTimeSource;
+    private final long mDurationMillis;
+    private final long mTickMillis;
+
+    // When the game started, on the time source's clock.
+    private final AtomicLong mStartAt = new AtomicLong(NOT_STARTED);
+
+    /**
+     * @param durationMillis the duration of a game.
+     * @param tickMillis     the interval between ticks.
+     */
+    GameClock(TimeSource timeSource, long durationMillis, long tickMillis) {
+        if (durationMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Duration and tick interval must be positive.");
+        }
+        mTimeSource = timeSource;
+        mDurationMillis = durationMillis;
+        mTickMillis = tickMillis;
+    }
+
+    /** Starts the game now. */
+    void start() {
+        mStartAt.set(mTimeSource.now());
+    }
+
+    /** Stops the clock, for instance when we leave the game. */
+    void stop() {
+        mStartAt.set(NOT_STARTED);
+    }
+
+    /** Returns whether the game has started, and isn't over. */
+    boolean isRunning() {
+        return getRemainingMillis() > 0;
+    }
+
+    /** Returns how long ago the game started, or -1 if the clock isn't started. */
+    long getElapsedMillis() {
+        long startAt = mStartAt.get();
+        return startAt == NOT_STARTED ? -1 : mTimeSource.now() - startAt;
+    }
+
+    /** Returns how long until the game is over, or 0 if it is over or not started. */
+    long getRemainingMillis() {
+        return getRemainingMillis(mStartAt.get());
+    }
+
+    /** Returns how many seconds are left, rounded up, as a countdown would show it. */
+    int getSecondsLeft() {
+        return (int) ((getRemainingMillis() + 999) / 1000);
+    }
+
+    /**
+     * Returns how long until the next tick is due, or -1 if the game is over or not started.
+     * The last tick is due when the game is over.
+     */
+    long getDelayToNextTick() {
+        long startAt = mStartAt.get();
+        if (getRemainingMillis(startAt) <= 0) {
+            return -1;
+        }
+        long elapsed = Math.max(0, mTimeSource.now() - startAt);
+        long nextTick = Math.min((elapsed / mTickMillis + 1) * mTickMillis, mDurationMillis);
+        return nextTick - elapsed;
+    }
+
+    /**
+     * Moves the start of a running game, so that it started elapsedMillis ago, as announced by
+     * the host. Nothing changes if the game is over, or if the start is already within the
+     * tolerance.
+     *
+     * @return true if the start was moved.
+     */
+    boolean syncElapsed(long elapsedMillis, long toleranceMillis) {
+        long oldStartAt = mStartAt.get();
+        if (getRemainingMillis(oldStartAt) <= 0) {
+            return false;
+        }
+        long startAt = mTimeSource.now() - elapsedMillis;
+        if (Math.abs(startAt - oldStartAt) <= toleranceMillis) {
+            return false;
+        }
+        // fails if the clock was stopped or restarted since we looked
+        return mStartAt.compareAndSet(oldStartAt, startAt);
+    }
+
+    private long getRemainingMillis(long startAt) {
+        if (startAt == NOT_STARTED) {
+            return 0;
+        }
+        return Math.max(0, startAt + mDurationMillis - mTimeSource.now());
+    }
+}
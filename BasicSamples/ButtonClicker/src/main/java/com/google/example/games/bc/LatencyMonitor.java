@@ -0,0 +1,266 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.Arrays;
+
+/**
+ * Measures the network conditions to each peer, from the pings we send them and the pongs
+ * they answer with. For each peer, it keeps the round-trip times of the last {@link #WINDOW}
+ * pongs, and reports their percentiles, their jitter (the smoothed difference between
+ * consecutive round trips, as in RFC 3550), and the fraction of the last {@link #WINDOW}
+ * pings that went unanswered, which estimates the loss of unreliable messages.
+ *
+ * Pings carry the time they were sent, which pongs echo, so round trips are measured on our
+ * own clock only. Peers are kept in an array by their {@link ParticipantIndex} number. All
+ * methods must be called on the same thread.
+ */
+final class LatencyMonitor {
+
+    /** Notified when the statistics of a peer change. */
+    interface Listener {
+        /**
+         * @param stats the peer's statistics. The object is reused: copy any values to keep.
+         */
+        void onLatencyChanged(String participantId, Stats stats);
+    }
+
+    /** Network statistics of a peer. */
+    static final class Stats {
+        // Number of round trips measured, up to WINDOW.
+        int samples;
+
+        // Percentiles of the round-trip times, in milliseconds, or -1 with no samples.
+        int p50 = -1;
+        int p95 = -1;
+        int p99 = -1;
+
+        // Jitter of the round-trip times, in milliseconds.
+        int jitter;
+
+        // Fraction of the recent pings that went unanswered, from 0 to 1.
+        float loss;
+
+        /** Returns a copy of these statistics, which the monitor won't change. */
+        Stats copy() {
+            Stats copy = new Stats();
+            copy.samples = samples;
+            copy.p50 = p50;
+            copy.p95 = p95;
+            copy.p99 = p99;
+            copy.jitter = jitter;
+            copy.loss = loss;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "rtt " + p50 + "/" + p95 + "/" + p99 + " ms, jitter " + jitter + " ms, loss "
+                    + Math.round(loss * 100) + "%";
+        }
+    }
+
+    // Number of round trips and pings the statistics are computed over.
+    static final int WINDOW = 64;
+
+    // Time after which an unanswered ping is counted as lost.
+    static final long LOSS_TIMEOUT_MILLIS = 2000;
+
+    private static final class Peer {
+        // Round-trip times, in a ring: the next one goes at next % WINDOW.
+        final int[] rtts = new int[WINDOW];
+        int next = 0;
+
+        // Which of the recent pings were answered, by sequence number modulo WINDOW.
+        final boolean[] answered = new boolean[WINDOW];
+
+        // Sequence number of the first ping sent to this peer.
+        final int firstPing;
+
+        int lastRtt = -1;
+        double jitter = 0;
+        final Stats stats = new Stats();
+
+        Peer(int firstPing) {
+            this.firstPing = firstPing;
+        }
+    }
+
+    private final ParticipantIndex mIndex;
+    private final Peer[] mPeers = new Peer[ParticipantIndex.CAPACITY];
+
+    // When the recent pings were sent, by sequence number modulo WINDOW.
+    private final long[] mPingSentAt = new long[WINDOW];
+    private int mNextPing = 0;
+
+    // Scratch space to sort round-trip times in.
+    private final int[] mSorted = new int[WINDOW];
+
+    private Listener mListener = null;
+
+    LatencyMonitor(ParticipantIndex index) {
+        mIndex = index;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Records that a ping is being sent to the given peers.
+     *
+     * @return the sequence number of the ping.
+     */
+    int onPingSent(long nowMillis, RoomBroadcaster recipients) {
+        int sequence = mNextPing++;
+        int slot = sequence % WINDOW;
+        mPingSentAt[slot] = nowMillis;
+        for (int i = 0; i < recipients.getRecipientCount(); i++) {
+            String participantId = recipients.getRecipient(i);
+            int number = mIndex.add(participantId);
+            if (number < 0) {
+                continue;
+            }
+            Peer peer = mPeers[number];
+            if (peer == null) {
+                peer = new Peer(sequence);
+                mPeers[number] = peer;
+            }
+            peer.answered[slot] = false;
+
+            // pings sent a while ago and still unanswered now count as lost
+            if (updateLoss(peer, nowMillis)) {
+                notifyListener(participantId, peer);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Records a pong received from a peer.
+     *
+     * @param sequence the sequence number of the ping it answers.
+     * @param sentAt   the time the ping was sent, as echoed by the peer.
+     * @return true if it was the first answer to a recent ping, and the statistics changed.
+     */
+    boolean onPong(String participantId, int sequence, long sentAt, long nowMillis) {
+        Peer peer = getPeer(participantId);
+        if (peer == null || sequence < peer.firstPing || sequence >= mNextPing
+                || sequence <= mNextPing - WINDOW) {
+            return false;
+        }
+        int slot = sequence % WINDOW;
+        if (peer.answered[slot] || mPingSentAt[slot] != sentAt) {
+            // a duplicate, or a corrupt echo
+            return false;
+        }
+        peer.answered[slot] = true;
+
+        int rtt = (int) Math.min(Integer.MAX_VALUE, Math.max(0, nowMillis - sentAt));
+        peer.rtts[peer.next % WINDOW] = rtt;
+        peer.next++;
+        if (peer.lastRtt >= 0) {
+            peer.jitter += (Math.abs(rtt - peer.lastRtt) - peer.jitter) / 16;
+        }
+        peer.lastRtt = rtt;
+
+        Stats stats = peer.stats;
+        int count = Math.min(peer.next, WINDOW);
+        System.arraycopy(peer.rtts, 0, mSorted, 0, count);
+        Arrays.sort(mSorted, 0, count);
+        stats.samples = count;
+        stats.p50 = percentile(count, 50);
+        stats.p95 = percentile(count, 95);
+        stats.p99 = percentile(count, 99);
+        stats.jitter = (int) Math.round(peer.jitter);
+        updateLoss(peer, nowMillis);
+        notifyListener(participantId, peer);
+        return true;
+    }
+
+    /** Returns the statistics of the given peer, or null if we never pinged them. */
+    Stats getStats(String participantId) {
+        Peer peer = getPeer(participantId);
+        return peer == null ? null : peer.stats;
+    }
+
+    /** Returns the highest 95th percentile round-trip time of all peers, or -1 if none. */
+    int getWorstP95() {
+        int worst = -1;
+        for (Peer peer : mPeers) {
+            if (peer != null) {
+                worst = Math.max(worst, peer.stats.p95);
+            }
+        }
+        return worst;
+    }
+
+    /** Returns the highest loss estimate of all peers. */
+    float getWorstLoss() {
+        float worst = 0;
+        for (Peer peer : mPeers) {
+            if (peer != null) {
+                worst = Math.max(worst, peer.stats.loss);
+            }
+        }
+        return worst;
+    }
+
+    /** Forgets every peer, in preparation for a new game. */
+    void clear() {
+        Arrays.fill(mPeers, null);
+    }
+
+    private Peer getPeer(String participantId) {
+        int number = mIndex.indexOf(participantId);
+        return number < 0 ? null : mPeers[number];
+    }
+
+    // Returns the given percentile of the first count values of mSorted, by nearest rank.
+    private int percentile(int count, int percent) {
+        int rank = (count * percent + 99) / 100;
+        return mSorted[Math.max(0, rank - 1)];
+    }
+
+    // Recomputes the loss estimate of a peer, over the recent pings old enough to have
+    // been answered. Returns true if it changed.
+    private boolean updateLoss(Peer peer, long nowMillis) {
+        int total = 0;
+        int lost = 0;
+        for (int sequence = Math.max(peer.firstPing, mNextPing - WINDOW);
+                sequence < mNextPing; sequence++) {
+            int slot = sequence % WINDOW;
+            if (peer.answered[slot]) {
+                total++;
+            } else if (nowMillis - mPingSentAt[slot] >= LOSS_TIMEOUT_MILLIS) {
+                total++;
+                lost++;
+            }
+        }
+        float loss = total == 0 ? 0 : (float) lost / total;
+        if (loss == peer.stats.loss) {
+            return false;
+        }
+        peer.stats.loss = loss;
+        return true;
+    }
+
+    private void notifyListener(String participantId, Peer peer) {
+        if (mListener != null) {
+            mListener.onLatencyChanged(participantId, peer.stats);
+        }
+    }
+}
@@ -19,6 +19,8 @@ import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
@@ -43,12 +45,11 @@ import com.google.android.gms.games.multiplayer.realtime.RoomUpdateListener;
 
 import com.google.example.games.basegameutils.BaseGameUtils;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Button Clicker 2000. A minimalistic game showing the multiplayer features of
@@ -103,8 +104,8 @@ public class MainActivity extends Activity
   private boolean mAutoStartSignInFlow = true;
 
     // Room ID where the currently active game is taking place; null if we're
-    // not playing.
-    String mRoomId = null;
+    // not playing. Read by the network thread.
+    volatile String mRoomId = null;
 
     // Are we playing in multiplayer mode?
     boolean mMultiplayer = false;
@@ -119,14 +120,123 @@ public class MainActivity extends Activity
     // invitation listener
     String mIncomingInvitationId = null;
 
-    // Message buffer for sending messages
-    byte[] mMsgBuf = new byte[2];
+    // Maximum number of interim score broadcasts per second. Clicks in between are
+    // coalesced, so a fast clicker doesn't flood the room with messages.
+    final static int MAX_INTERIM_BROADCASTS_PER_SECOND = 10;
+
+    // Debug builds record the messages of each multiplayer game to a file under
+    // files/recordings, to be replayed by the benchmarks module's replayMatch task. Only the
+    // latest RECORDINGS_KEPT recordings are kept, of up to MAX_RECORDING_BYTES each.
+    final static boolean RECORD_MATCHES = BuildConfig.DEBUG;
+    final static int RECORDINGS_KEPT = 5;
+    final static long MAX_RECORDING_BYTES = 1024 * 1024;
+
+    // Records the current multiplayer game; null if we aren't recording. Only used on the
+    // network thread.
+    MatchRecorder mRecorder = null;
+
+    // The network thread owns mScoreChannel, mRecorder and the network timers: it processes
+    // the messages we receive and sends ours, so that the UI thread never waits for either.
+    // The UI thread posts what the player does to it, and renders the snapshots of the
+    // scores it publishes. It runs from onCreate() to onDestroy().
+    HandlerThread mNetworkThread;
+    Handler mNetworkHandler;
+
+    // Most received messages waiting for the network thread. A room sends us a few dozen
+    // per second, so the queue only fills up if the network thread is stuck.
+    final static int MESSAGE_QUEUE_CAPACITY = 256;
+
+    // Hands the messages we receive over to the network thread.
+    MessagePipeline mMessagePipeline;
+
+    // Broadcasts the interim score changes the score channel held back, when it's time.
+    // Runs on the network thread.
+    boolean mBroadcastPosted = false;
+    final Runnable mPendingBroadcast = new Runnable() {
+        @Override
+        public void run() {
+            mBroadcastPosted = false;
+            scheduleBroadcast(mScoreChannel.onTimer(mScore, SystemClock.uptimeMillis()));
+        }
+    };
+
+    // Pings our peers periodically, to measure the network. Runs on the network thread.
+    final Runnable mPinger = new Runnable() {
+        @Override
+        public void run() {
+            if (mRoomId == null)
+                return;
+            mScoreChannel.ping(SystemClock.uptimeMillis());
+            mScoreChannel.announceStart(false);
+            publishSnapshot();
+            mNetworkHandler.postDelayed(this, ScoreChannel.PING_INTERVAL_MILLIS);
+        }
+    };
+
+    // Decodes and applies the messages we receive, on the network thread, then publishes
+    // the new scores.
+    final MessagePipeline.Sink mMessageSink = new MessagePipeline.Sink() {
+        @Override
+        public void onMessage(String senderId, byte[] data, boolean reliable,
+                long receivedAtMillis) {
+            if (mRecorder != null) {
+                mRecorder.recordIncoming(receivedAtMillis, senderId, data, reliable);
+            }
+            int undecodable = mScoreChannel.getUndecodable();
+            mScoreChannel.onMessageReceived(senderId, data, receivedAtMillis);
+            if (mScoreChannel.getUndecodable() != undecodable) {
+                Log.w(TAG, "Dropping undecodable message from " + senderId);
+            } else if (!mScoreChannel.getLastReceived().isLatencyProbe()) {
+                Log.d(TAG, "Message received: " + mScoreChannel.getLastReceived());
+            }
+        }
+
+        @Override
+        public void onBatchEnd() {
+            publishSnapshot();
+        }
+    };
+
+    // The latest snapshot of the scores published by the network thread, for the UI thread
+    // to render. mLatencyChanged says whether the network statistics changed since the last
+    // one, and is only used on the network thread.
+    volatile ScoreSnapshot mSnapshot = ScoreSnapshot.EMPTY;
+    boolean mLatencyChanged = false;
+
+    // Renders the latest snapshot on the UI thread; posted at most once at a time.
+    final Handler mUiHandler = new Handler();
+    final AtomicBoolean mSnapshotPosted = new AtomicBoolean(false);
+    final Runnable mRenderSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            mSnapshotPosted.set(false);
+            renderSnapshot();
+        }
+    };
+
+    // Number of clock syncs in the last snapshot rendered.
+    int mRenderedClockSyncs = 0;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        mNetworkThread = new HandlerThread("Network");
+        mNetworkThread.start();
+        mNetworkHandler = new Handler(mNetworkThread.getLooper());
+        mMessagePipeline = new MessagePipeline(MESSAGE_QUEUE_CAPACITY, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                mNetworkHandler.post(task);
+            }
+        }, mMessageSink);
+
+        mScoreBoard = new ScoreBoard((TextView) findViewById(R.id.my_score), new TextView[] {
+                (TextView) findViewById(R.id.score0), (TextView) findViewById(R.id.score1),
+                (TextView) findViewById(R.id.score2), (TextView) findViewById(R.id.score3)
+        });
+
     // Create the Google Api Client with access to Games
     mGoogleApiClient = new GoogleApiClient.Builder(this)
         .addConnectionCallbacks(this)
@@ -138,8 +248,33 @@ public class MainActivity extends Activity
     for (int id : CLICKABLES) {
       findViewById(id).setOnClickListener(this);
     }
+
+    // in debug builds, show the network statistics of our peers during the game
+    if (BuildConfig.DEBUG) {
+      findViewById(R.id.latency_overlay).setVisibility(View.VISIBLE);
+      mScoreChannel.getLatency().setListener(new LatencyMonitor.Listener() {
+        @Override
+        public void onLatencyChanged(String participantId, LatencyMonitor.Stats stats) {
+          // on the network thread; the next snapshot will carry it
+          mLatencyChanged = true;
+        }
+      });
+    }
   }
 
+    @Override
+    public void onDestroy() {
+        // let the network thread finish what was posted to it, then stop
+        mNetworkHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopRecording();
+                mNetworkThread.quit();
+            }
+        });
+        super.onDestroy();
+    }
+
   @Override
   public void onClick(View v) {
     Intent intent;
@@ -343,6 +478,9 @@ public class MainActivity extends Activity
         // if we're in a room, leave it.
         leaveRoom();
 
+        // nothing to draw until we're back
+        mScoreBoard.cancel();
+
         // stop trying to keep the screen on
         stopKeepingScreenOn();
 
@@ -385,11 +523,15 @@ public class MainActivity extends Activity
     // Leave the room.
     void leaveRoom() {
         Log.d(TAG, "Leaving room.");
-        mSecondsLeft = 0;
+        mGameClock.stop();
+        mGameHandler.removeCallbacks(mGameTicker);
+        mNetworkHandler.post(mStopRecording);
         stopKeepingScreenOn();
         if (mRoomId != null) {
             Games.RealTimeMultiplayer.leave(mGoogleApiClient, this, mRoomId);
             mRoomId = null;
+            mNetworkHandler.removeCallbacks(mPinger);
+            mNetworkHandler.post(mLeaveChannel);
             switchToScreen(R.id.screen_wait);
         } else {
             switchToMainScreen();
@@ -496,6 +638,7 @@ public class MainActivity extends Activity
         //get participants and my ID:
         mParticipants = room.getParticipants();
         mMyId = room.getParticipantId(Games.Players.getCurrentPlayerId(mGoogleApiClient));
+        updateRecipients();
         
          // save room ID if its not initialized in onRoomCreated() so we can leave cleanly before the game starts.
          if(mRoomId==null)
@@ -627,8 +770,9 @@ public class MainActivity extends Activity
         if (room != null) {
             mParticipants = room.getParticipants();
         }
+        updateRecipients();
         if (mParticipants != null) {
-            updatePeerScoresDisplay();
+            updateScoreSlots();
         }
     }
 
@@ -637,50 +781,78 @@ public class MainActivity extends Activity
      */
 
     // Current state of the game:
-    int mSecondsLeft = -1; // how long until the game ends (seconds)
     final static int GAME_DURATION = 20; // game duration, seconds.
-    int mScore = 0; // user's current score
+    final static int TICK_MILLIS = 1000; // how often the countdown is updated
+    volatile int mScore = 0; // user's current score, read by the network thread
+
+    // Times the game from its start on the monotonic clock, so that it ends on time
+    // however late the ticks run. In multiplayer games, it follows the host's clock.
+    final GameClock mGameClock = new GameClock(new GameClock.TimeSource() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    }, GAME_DURATION * 1000L, TICK_MILLIS);
+
+    // Runs gameTick() when each tick is due, until the game is over.
+    final Handler mGameHandler = new Handler();
+    final Runnable mGameTicker = new Runnable() {
+        @Override
+        public void run() {
+            gameTick();
+            long delay = mGameClock.getDelayToNextTick();
+            if (delay >= 0) {
+                mGameHandler.postDelayed(this, delay);
+            }
+        }
+    };
 
     // Reset game variables in preparation for a new game.
     void resetGameVars() {
-        mSecondsLeft = GAME_DURATION;
+        mGameClock.stop();
+        mGameHandler.removeCallbacks(mGameTicker);
         mScore = 0;
-        mParticipantScore.clear();
-        mFinishedParticipants.clear();
+        mNetworkHandler.post(mResetChannel);
     }
 
+    // Forgets the scores and our broadcasts; on the network thread.
+    final Runnable mResetChannel = new Runnable() {
+        @Override
+        public void run() {
+            mScoreChannel.reset();
+            mNetworkHandler.removeCallbacks(mPendingBroadcast);
+            mBroadcastPosted = false;
+            publishSnapshot();
+        }
+    };
+
     // Start the gameplay phase of the game.
     void startGame(boolean multiplayer) {
         mMultiplayer = multiplayer;
+        mGameClock.start();
         updateScoreDisplay();
-        broadcastScore(false);
+        updateScoreSlots();
+        updateLatencyOverlay();
+        mNetworkHandler.removeCallbacks(mPinger);
+        mNetworkHandler.post(mStartChannel);
         switchToScreen(R.id.screen_game);
 
         findViewById(R.id.button_click_me).setVisibility(View.VISIBLE);
 
-        // run the gameTick() method every second to update the game.
-        final Handler h = new Handler();
-        h.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (mSecondsLeft <= 0)
-                    return;
-                gameTick();
-                h.postDelayed(this, 1000);
-            }
-        }, 1000);
+        // run the gameTick() method on every tick to update the game.
+        mGameHandler.removeCallbacks(mGameTicker);
+        mGameHandler.postDelayed(mGameTicker, mGameClock.getDelayToNextTick());
     }
 
     // Game tick -- update countdown, check if game ended.
     void gameTick() {
-        if (mSecondsLeft > 0)
-            --mSecondsLeft;
+        int secondsLeft = mGameClock.getSecondsLeft();
 
         // update countdown
         ((TextView) findViewById(R.id.countdown)).setText("0:" +
-                (mSecondsLeft < 10 ? "0" : "") + String.valueOf(mSecondsLeft));
+                (secondsLeft < 10 ? "0" : "") + String.valueOf(secondsLeft));
 
-        if (mSecondsLeft <= 0) {
+        if (!mGameClock.isRunning()) {
             // finish game
             findViewById(R.id.button_click_me).setVisibility(View.GONE);
             broadcastScore(true);
@@ -689,14 +861,120 @@ public class MainActivity extends Activity
 
     // indicates the player scored one point
     void scoreOnePoint() {
-        if (mSecondsLeft <= 0)
+        if (!mGameClock.isRunning())
             return; // too late!
         ++mScore;
         updateScoreDisplay();
         updatePeerScoresDisplay();
 
-        // broadcast our new score to our peers
-        broadcastScore(false);
+        // broadcast our new score to our peers, now or once the rate limit allows
+        if (mMultiplayer) {
+            mNetworkHandler.post(mScoreChanged);
+        }
+    }
+
+    // Tells the score channel our score changed; on the network thread.
+    final Runnable mScoreChanged = new Runnable() {
+        @Override
+        public void run() {
+            scheduleBroadcast(mScoreChannel.onScoreChanged(mScore, SystemClock.uptimeMillis()));
+        }
+    };
+
+    // Sends our first score, and if we are the host, tells the others when the game
+    // started; then measures the network to our peers for as long as we're in the room.
+    // On the network thread.
+    final Runnable mStartChannel = new Runnable() {
+        @Override
+        public void run() {
+            stopRecording();
+            if (!mMultiplayer)
+                return;
+            if (RECORD_MATCHES)
+                startRecording();
+            mScoreChannel.broadcast(mScore, false, SystemClock.uptimeMillis());
+            mScoreChannel.announceStart(true);
+            mNetworkHandler.post(mPinger);
+        }
+    };
+
+    // Forgets the room's participants when we leave it; on the network thread.
+    final Runnable mLeaveChannel = new Runnable() {
+        @Override
+        public void run() {
+            mRoomBroadcaster.clearRecipients();
+            mRecipientIds = new ArrayList<String>();
+            mScoreChannel.clearParticipants();
+            mNetworkHandler.removeCallbacks(mPendingBroadcast);
+            mBroadcastPosted = false;
+            publishSnapshot();
+        }
+    };
+
+    final Runnable mStopRecording = new Runnable() {
+        @Override
+        public void run() {
+            stopRecording();
+        }
+    };
+
+    // Starts recording the game's messages to a new file; on the network thread.
+    void startRecording() {
+        long now = SystemClock.uptimeMillis();
+        File file = new File(new File(getFilesDir(), "recordings"),
+                "match-" + System.currentTimeMillis() + ".bcr");
+        mRecorder = new MatchRecorder(file, MAX_RECORDING_BYTES, RECORDINGS_KEPT);
+        mRecorder.start(mMyId, now);
+        mRecorder.recordRoom(now, mRecipientIds);
+        Log.d(TAG, "Recording the game to " + file);
+    }
+
+    // Stops recording, if we are; the file is closed in the background. On the network
+    // thread.
+    void stopRecording() {
+        if (mRecorder == null) {
+            return;
+        }
+        mRecorder.stop(SystemClock.uptimeMillis());
+        Log.d(TAG, "Recorded " + mRecorder.getRecords() + " records, "
+                + mRecorder.getDropped() + " dropped"
+                + (mRecorder.getError() == null ? "" : ", " + mRecorder.getError()));
+        mRecorder = null;
+    }
+
+    // Runs mPendingBroadcast after the given delay, unless it is negative or
+    // it's already scheduled. On the network thread.
+    void scheduleBroadcast(long delayMillis) {
+        if (delayMillis >= 0 && !mBroadcastPosted) {
+            mBroadcastPosted = true;
+            mNetworkHandler.postDelayed(mPendingBroadcast, delayMillis);
+        }
+    }
+
+    // Publishes a snapshot of the scores for the UI thread to render; on the network thread.
+    void publishSnapshot() {
+        mSnapshot = new ScoreSnapshot(mScoreChannel, mMessagePipeline, mSnapshot,
+                mLatencyChanged);
+        mLatencyChanged = false;
+        if (mSnapshotPosted.compareAndSet(false, true)) {
+            mUiHandler.post(mRenderSnapshot);
+        }
+    }
+
+    // Renders the latest snapshot of the scores; on the UI thread.
+    void renderSnapshot() {
+        ScoreSnapshot snapshot = mSnapshot;
+        if (snapshot.clockSyncs != mRenderedClockSyncs) {
+            mRenderedClockSyncs = snapshot.clockSyncs;
+            if (mGameClock.isRunning()) {
+                // we now follow the host's game clock, so the next tick moved too
+                mGameHandler.removeCallbacks(mGameTicker);
+                mGameHandler.postDelayed(mGameTicker,
+                        Math.max(0, mGameClock.getDelayToNextTick()));
+            }
+        }
+        updatePeerScoresDisplay();
+        updateLatencyOverlay();
     }
 
     /*
@@ -704,49 +982,95 @@ public class MainActivity extends Activity
      * protocol.
      */
 
-    // Score of other participants. We update this as we receive their scores
-    // from the network.
-    Map<String, Integer> mParticipantScore = new HashMap<String, Integer>();
+    // Sends our messages to the other participants, on the network thread. Its
+    // recipients are only recomputed when the room changes, by updateRecipients().
+    final RoomBroadcaster mRoomBroadcaster = new RoomBroadcaster(
+            new RoomBroadcaster.Transport() {
+                @Override
+                public void sendReliable(byte[] msg, String participantId) {
+                    if (mRecorder != null) {
+                        mRecorder.recordOutgoing(SystemClock.uptimeMillis(), participantId,
+                                msg, true);
+                    }
+                    Games.RealTimeMultiplayer.sendReliableMessage(mGoogleApiClient, null, msg,
+                            mRoomId, participantId);
+                }
 
-    // Participants who sent us their final score.
-    Set<String> mFinishedParticipants = new HashSet<String>();
+                @Override
+                public void sendUnreliableToOthers(byte[] msg) {
+                    if (mRecorder != null) {
+                        mRecorder.recordOutgoing(SystemClock.uptimeMillis(), null, msg, false);
+                    }
+                    Games.RealTimeMultiplayer.sendUnreliableMessageToOthers(mGoogleApiClient,
+                            msg, mRoomId);
+                }
+
+                @Override
+                public void sendUnreliable(byte[] msg, String participantId) {
+                    if (mRecorder != null) {
+                        mRecorder.recordOutgoing(SystemClock.uptimeMillis(), participantId,
+                                msg, false);
+                    }
+                    Games.RealTimeMultiplayer.sendUnreliableMessage(mGoogleApiClient, msg,
+                            mRoomId, participantId);
+                }
+            });
+
+    // Sends our score and keeps track of the score of other participants, and
+    // which of them sent us their final score, as we receive them from the network.
+    final ScoreChannel mScoreChannel = new ScoreChannel(mRoomBroadcaster,
+            MAX_INTERIM_BROADCASTS_PER_SECOND, mGameClock);
+
+    // The peers our broadcasts go to, as last set by updateRecipients(). Only used on the
+    // network thread.
+    List<String> mRecipientIds = new ArrayList<String>();
+
+    // Recomputes who our broadcasts go to: every other participant who joined the room,
+    // and numbers them for the score channel's tables. Also picks the host, whose game
+    // clock everyone follows: the participant with the lowest ID, which everyone agrees
+    // on without exchanging messages. The network thread applies the result.
+    void updateRecipients() {
+        final ArrayList<String> recipientIds = new ArrayList<String>();
+        String hostId = mMyId;
+        if (mParticipants != null) {
+            for (Participant p : mParticipants) {
+                if (p.getParticipantId().equals(mMyId))
+                    continue;
+                if (p.getStatus() != Participant.STATUS_JOINED)
+                    continue;
+                recipientIds.add(p.getParticipantId());
+                if (hostId == null || p.getParticipantId().compareTo(hostId) < 0)
+                    hostId = p.getParticipantId();
+            }
+        }
+        final String newHostId = hostId == null || hostId.equals(mMyId) ? null : hostId;
+        mNetworkHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRecipientIds = recipientIds;
+                mRoomBroadcaster.setRecipients(recipientIds);
+                mScoreChannel.addParticipants(recipientIds);
+                mScoreChannel.setHostId(newHostId);
+                if (mRecorder != null) {
+                    mRecorder.recordRoom(SystemClock.uptimeMillis(), recipientIds);
+                }
+                publishSnapshot();
+            }
+        });
+    }
 
     // Called when we receive a real-time message from the network.
-    // Messages in our game are made up of 2 bytes: the first one is 'F' or 'U'
-    // indicating
-    // whether it's a final or interim score. The second byte is the score.
-    // There is also the
-    // 'S' message, which indicates that the game should start.
+    // Messages in our game are score updates: a final or interim score,
+    // with a sequence number, and the pings and pongs that measure the
+    // network. See ScoreMessage for the format. The message is handed to
+    // the network thread, which decodes and applies it, and publishes the
+    // new scores for renderSnapshot(); nothing here waits for it.
     @Override
     public void onRealTimeMessageReceived(RealTimeMessage rtm) {
-        byte[] buf = rtm.getMessageData();
-        String sender = rtm.getSenderParticipantId();
-        Log.d(TAG, "Message received: " + (char) buf[0] + "/" + (int) buf[1]);
-
-        if (buf[0] == 'F' || buf[0] == 'U') {
-            // score update.
-            int existingScore = mParticipantScore.containsKey(sender) ?
-                    mParticipantScore.get(sender) : 0;
-            int thisScore = (int) buf[1];
-            if (thisScore > existingScore) {
-                // this check is necessary because packets may arrive out of
-                // order, so we
-                // should only ever consider the highest score we received, as
-                // we know in our
-                // game there is no way to lose points. If there was a way to
-                // lose points,
-                // we'd have to add a "serial number" to the packet.
-                mParticipantScore.put(sender, thisScore);
-            }
-
-            // update the scores on the screen
-            updatePeerScoresDisplay();
-
-            // if it's a final score, mark this participant as having finished
-            // the game
-            if ((char) buf[0] == 'F') {
-                mFinishedParticipants.add(rtm.getSenderParticipantId());
-            }
+        if (!mMessagePipeline.offer(rtm.getSenderParticipantId(), rtm.getMessageData(),
+                rtm.isReliable(), SystemClock.uptimeMillis())) {
+            Log.w(TAG, "Message queue full, dropping message from "
+                    + rtm.getSenderParticipantId());
         }
     }
 
@@ -755,29 +1079,38 @@ public class MainActivity extends Activity
         if (!mMultiplayer)
             return; // playing single-player mode
 
-        // First byte in message indicates whether it's a final score or not
-        mMsgBuf[0] = (byte) (finalScore ? 'F' : 'U');
-
-        // Second byte is the score.
-        mMsgBuf[1] = (byte) mScore;
-
-        // Send to every other participant.
-        for (Participant p : mParticipants) {
-            if (p.getParticipantId().equals(mMyId))
-                continue;
-            if (p.getStatus() != Participant.STATUS_JOINED)
-                continue;
-            if (finalScore) {
-                // final score notification must be sent via reliable message
-                Games.RealTimeMultiplayer.sendReliableMessage(mGoogleApiClient, null, mMsgBuf,
-                        mRoomId, p.getParticipantId());
-            } else {
-                // it's an interim score notification, so we can use unreliable
-                Games.RealTimeMultiplayer.sendUnreliableMessage(mGoogleApiClient, mMsgBuf, mRoomId,
-                        p.getParticipantId());
+        // Send to every other participant. A final score notification must be
+        // sent via reliable message; an interim one can use unreliable.
+        mNetworkHandler.post(finalScore ? mBroadcastFinal : mBroadcastInterim);
+    }
+
+    // Broadcast our score, on the network thread.
+    final Runnable mBroadcastInterim = new Runnable() {
+        @Override
+        public void run() {
+            mScoreChannel.broadcast(mScore, false, SystemClock.uptimeMillis());
+        }
+    };
+    final Runnable mBroadcastFinal = new Runnable() {
+        @Override
+        public void run() {
+            mScoreChannel.broadcast(mScore, true, SystemClock.uptimeMillis());
+            if (mBroadcastPosted) {
+                mNetworkHandler.removeCallbacks(mPendingBroadcast);
+                mBroadcastPosted = false;
             }
+            BroadcastScheduler scheduler = mScoreChannel.getScheduler();
+            Log.d(TAG, "Game over: " + scheduler.getScoreChanges() + " clicks, "
+                    + scheduler.getInterimBroadcasts() + " interim and "
+                    + scheduler.getFinalBroadcasts() + " final broadcasts, "
+                    + scheduler.getMessagesSent() + " messages sent, "
+                    + mScoreChannel.getClockSyncs() + " clock syncs, "
+                    + mMessagePipeline.getProcessed() + " messages received in "
+                    + mMessagePipeline.getMeanLatencyMicros() + " us on average, "
+                    + mMessagePipeline.getMaxLatencyMicros() + " us at most, "
+                    + mMessagePipeline.getMaxDepth() + " queued at most");
         }
-    }
+    };
 
     /*
      * UI SECTION. Methods that implement the game's UI.
@@ -830,44 +1163,93 @@ public class MainActivity extends Activity
         }
     }
 
+    // The score labels. They only change on the next frame, and only if
+    // their score or name changed, so they can be updated on every click and
+    // every message.
+    ScoreBoard mScoreBoard;
+
+    // IDs of the participants whose scores are shown in each slot of the
+    // score board, or null. Slot 0 shows my score.
+    String[] mSlotIds = new String[0];
+
     // updates the label that shows my score
     void updateScoreDisplay() {
-        ((TextView) findViewById(R.id.my_score)).setText(formatScore(mScore));
+        mScoreBoard.setMyScore(mScore);
     }
 
-    // formats a score as a three-digit number
-    String formatScore(int i) {
-        if (i < 0)
-            i = 0;
-        String s = String.valueOf(i);
-        return s.length() == 1 ? "00" + s : s.length() == 2 ? "0" + s : s;
-    }
-
-    // updates the screen with the scores from our peers
-    void updatePeerScoresDisplay() {
-        ((TextView) findViewById(R.id.score0)).setText(formatScore(mScore) + " - Me");
-        int[] arr = {
-                R.id.score1, R.id.score2, R.id.score3
-        };
-        int i = 0;
+    // assigns the slots of the score board to me and to the peers who joined the room;
+    // called when the room changes
+    void updateScoreSlots() {
+        int slots = mScoreBoard.getSlotCount();
+        if (mSlotIds.length != slots) {
+            mSlotIds = new String[slots];
+        }
+        ScoreSnapshot snapshot = mSnapshot;
+        mScoreBoard.setSlot(0, mScore, "Me");
+        int i = 1;
 
-        if (mRoomId != null) {
+        if (mRoomId != null && mParticipants != null) {
             for (Participant p : mParticipants) {
                 String pid = p.getParticipantId();
                 if (pid.equals(mMyId))
                     continue;
                 if (p.getStatus() != Participant.STATUS_JOINED)
                     continue;
-                int score = mParticipantScore.containsKey(pid) ? mParticipantScore.get(pid) : 0;
-                ((TextView) findViewById(arr[i])).setText(formatScore(score) + " - " +
-                        p.getDisplayName());
+                if (i >= slots)
+                    break;
+                mScoreBoard.setSlot(i, snapshot.getScore(pid), p.getDisplayName());
+                mSlotIds[i] = pid;
                 ++i;
             }
         }
 
-        for (; i < arr.length; ++i) {
-            ((TextView) findViewById(arr[i])).setText("");
+        for (; i < slots; ++i) {
+            mScoreBoard.clearSlot(i);
+            mSlotIds[i] = null;
+        }
+    }
+
+    // updates the screen with my score and the scores from our peers, as of the
+    // latest snapshot
+    void updatePeerScoresDisplay() {
+        mScoreBoard.setSlotScore(0, mScore);
+        ScoreSnapshot snapshot = mSnapshot;
+        for (int i = 1; i < mSlotIds.length; ++i) {
+            if (mSlotIds[i] != null)
+                mScoreBoard.setSlotScore(i, snapshot.getScore(mSlotIds[i]));
+        }
+    }
+
+    // Scratch buffer for updateLatencyOverlay().
+    final StringBuilder mLatencyText = new StringBuilder();
+
+    // updates the debug overlay with the network statistics of our peers, and
+    // those of the message pipeline, as of the latest snapshot
+    void updateLatencyOverlay() {
+        if (!BuildConfig.DEBUG)
+            return;
+        StringBuilder sb = mLatencyText;
+        sb.setLength(0);
+        ScoreSnapshot snapshot = mSnapshot;
+        if (mMultiplayer && mRoomId != null && mParticipants != null) {
+            sb.append("score updates: ").append(snapshot.broadcastRate).append("/s");
+            sb.append("\nqueue: ").append(snapshot.queueDepth)
+                    .append(" (max ").append(snapshot.maxQueueDepth)
+                    .append(", dropped ").append(snapshot.dropped)
+                    .append("), processed in ").append(snapshot.meanLatencyMicros)
+                    .append("/").append(snapshot.maxLatencyMicros).append(" us");
+            for (Participant p : mParticipants) {
+                String pid = p.getParticipantId();
+                if (pid.equals(mMyId))
+                    continue;
+                if (p.getStatus() != Participant.STATUS_JOINED)
+                    continue;
+                LatencyMonitor.Stats stats = snapshot.getLatency(pid);
+                sb.append('\n').append(p.getDisplayName()).append(": ");
+                sb.append(stats == null ? "-" : stats.toString());
+            }
         }
+        ((TextView) findViewById(R.id.latency_overlay)).setText(sb);
     }
 
     /*
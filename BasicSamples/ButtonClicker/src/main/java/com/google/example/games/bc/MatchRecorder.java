@@ -0,0 +1,421 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the messages of a real-time game to a file, so that it can be replayed later by the
+ * MatchReplay tool of the benchmarks module, message by message, to find out how the players'
+ * views of the scores diverged.
+ *
+ * Recording must not slow the game down, so the game thread only encodes each record into a
+ * ring buffer in memory, without allocating or touching the disk. A background thread drains
+ * the buffer to the file. If the buffer is full, because the disk can't keep up, or the file
+ * reached its maximum size, records are dropped and counted rather than waiting. Only the
+ * latest few recordings are kept in the directory.
+ *
+ * The file starts with a header: the int {@link #MAGIC}, a version byte, and the wall clock
+ * time of the recording as a long. Records follow, each made of a type byte, the time since
+ * the previous record as a varint, in milliseconds of the caller's monotonic clock, and:
+ *
+ * <pre>
+ * REC_ID     varint index, varint length, UTF-8 participant ID: defines the next ID index
+ * REC_START  varint index of our participant ID: a game starts
+ * REC_ROOM   varint count, varint indices: the peers our broadcasts go to
+ * REC_IN     varint sender index, byte flags, varint length, payload: a message received
+ * REC_OUT    varint recipient index + 1 (0 for all the others), byte flags, varint length,
+ *            payload: a message sent
+ * REC_END    the recording ends
+ * </pre>
+ *
+ * The recording methods must all be called on the same thread.
+ */
+final class MatchRecorder {
+
+    static final int MAGIC = 0x42435231; // "BCR1"
+    static final int VERSION = 1;
+
+    // Record types.
+    static final byte REC_ID = 1;
+    static final byte REC_START = 2;
+    static final byte REC_ROOM = 3;
+    static final byte REC_IN = 4;
+    static final byte REC_OUT = 5;
+    static final byte REC_END = 6;
+
+    // Record flags.
+    static final int FLAG_RELIABLE = 0x1;
+
+    // Longest message payload recorded: the longest reliable real-time message.
+    static final int MAX_PAYLOAD = 1400;
+
+    // Size of the ring buffer; a power of 2.
+    private static final int RING_SIZE = 64 * 1024;
+
+    // Longest record: type, time, index, flags, length and payload.
+    private static final int MAX_RECORD = 1 + 10 + 5 + 1 + 5 + MAX_PAYLOAD;
+
+    // Most peers recorded in a room record.
+    private static final int MAX_ROOM = MAX_PAYLOAD / 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // How often the writer thread drains the ring buffer when it isn't woken up before.
+    private static final long DRAIN_INTERVAL_NANOS = 200 * 1000 * 1000L;
+
+    private final File mFile;
+    private final long mMaxFileBytes;
+    private final int mKeepRecordings;
+
+    // The ring buffer. mHead counts the bytes written to it by the game thread, mTail those
+    // drained by the writer thread.
+    private final byte[] mRing = new byte[RING_SIZE];
+    private volatile long mHead = 0;
+    private volatile long mTail = 0;
+
+    // Scratch space to encode a record in, before copying it to the ring buffer.
+    private final byte[] mRecord = new byte[MAX_RECORD];
+    private int mPos;
+
+    // Index of each participant ID defined so far.
+    private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+
+    // Time of the last record written, and of the one being encoded.
+    private long mLastTime;
+    private long mRecordTime;
+
+    private boolean mStarted = false;
+    private volatile boolean mStopped = false;
+    private Thread mWriter = null;
+
+    // Counters, for diagnostics.
+    private int mRecords = 0;
+    private int mDropped = 0;
+    private volatile IOException mError = null;
+
+    /**
+     * @param file           the file to record to. Its directory is created if needed.
+     * @param maxFileBytes   the maximum size of the file; records beyond it are dropped.
+     * @param keepRecordings how many recordings to keep in the directory, including this one;
+     *                       the oldest files with the same extension are deleted.
+     */
+    MatchRecorder(File file, long maxFileBytes, int keepRecordings) {
+        mFile = file;
+        mMaxFileBytes = maxFileBytes;
+        mKeepRecordings = keepRecordings;
+    }
+
+    /**
+     * Starts recording a game: starts the writer thread, and records the start of the game.
+     * A recorder can only be started once.
+     *
+     * @param myId the participant ID of the player recording the game.
+     */
+    void start(String myId, long nowMillis) {
+        if (mStarted) {
+            throw new IllegalStateException("Already started.");
+        }
+        mStarted = true;
+        mLastTime = mRecordTime = nowMillis;
+        mPos = 0;
+        writeInt(MAGIC);
+        mRecord[mPos++] = (byte) VERSION;
+        writeLong(System.currentTimeMillis());
+        commit();
+
+        int index = idIndex(myId, nowMillis);
+        begin(REC_START, nowMillis);
+        writeVarint(index);
+        commit();
+
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "MatchRecorder");
+        mWriter.setPriority(Thread.MIN_PRIORITY);
+        mWriter.start();
+    }
+
+    /** Records the peers our broadcasts go to. */
+    void recordRoom(long nowMillis, List<String> recipientIds) {
+        if (!isRecording()) {
+            return;
+        }
+        int count = Math.min(recipientIds.size(), MAX_ROOM);
+        for (int i = 0; i < count; i++) {
+            if (idIndex(recipientIds.get(i), nowMillis) < 0) {
+                mDropped++;
+                return;
+            }
+        }
+        begin(REC_ROOM, nowMillis);
+        writeVarint(count);
+        for (int i = 0; i < count; i++) {
+            writeVarint(mIds.get(recipientIds.get(i)));
+        }
+        commit();
+    }
+
+    /** Records a message received from a peer. */
+    void recordIncoming(long nowMillis, String senderId, byte[] data, boolean reliable) {
+        if (!isRecording()) {
+            return;
+        }
+        int sender = idIndex(senderId, nowMillis);
+        if (sender < 0) {
+            mDropped++;
+            return;
+        }
+        begin(REC_IN, nowMillis);
+        writeVarint(sender);
+        writePayload(data, reliable);
+        commit();
+    }
+
+    /**
+     * Records a message sent.
+     *
+     * @param recipientId the participant it was sent to, or null if it was sent to all the
+     *                    others.
+     */
+    void recordOutgoing(long nowMillis, String recipientId, byte[] data, boolean reliable) {
+        if (!isRecording()) {
+            return;
+        }
+        int recipient = recipientId == null ? 0 : idIndex(recipientId, nowMillis) + 1;
+        if (recipient == 0 && recipientId != null) {
+            mDropped++;
+            return;
+        }
+        begin(REC_OUT, nowMillis);
+        writeVarint(recipient);
+        writePayload(data, reliable);
+        commit();
+    }
+
+    /**
+     * Records the end of the game, and stops recording. The writer thread writes what's left
+     * in the buffer and closes the file in the background.
+     */
+    void stop(long nowMillis) {
+        if (!isRecording()) {
+            return;
+        }
+        begin(REC_END, nowMillis);
+        commit();
+        mStopped = true;
+        LockSupport.unpark(mWriter);
+    }
+
+    /** Waits until the writer thread has closed the file. For tools and tests. */
+    void awaitClosed() throws InterruptedException {
+        if (mWriter != null) {
+            mWriter.join();
+        }
+    }
+
+    /** Returns whether the recorder was started, and neither stopped nor failed since. */
+    boolean isRecording() {
+        return mStarted && !mStopped && mError == null;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** Returns how many records were written to the buffer. */
+    int getRecords() {
+        return mRecords;
+    }
+
+    /** Returns how many records were dropped, because the buffer or the file was full. */
+    int getDropped() {
+        return mDropped;
+    }
+
+    /** Returns the error that stopped the writer thread, if any. */
+    IOException getError() {
+        return mError;
+    }
+
+    // Returns the index of a participant ID, defining it first if it's new, or -1 if the
+    // definition had to be dropped.
+    private int idIndex(String participantId, long nowMillis) {
+        Integer index = mIds.get(participantId);
+        if (index != null) {
+            return index;
+        }
+        int newIndex = mIds.size();
+        byte[] utf8 = participantId.getBytes(UTF_8);
+        int length = Math.min(utf8.length, MAX_PAYLOAD);
+        begin(REC_ID, nowMillis);
+        writeVarint(newIndex);
+        writeVarint(length);
+        System.arraycopy(utf8, 0, mRecord, mPos, length);
+        mPos += length;
+        if (!commit()) {
+            return -1;
+        }
+        mIds.put(participantId, newIndex);
+        return newIndex;
+    }
+
+    private void begin(byte type, long nowMillis) {
+        mRecordTime = Math.max(mLastTime, nowMillis);
+        mPos = 0;
+        mRecord[mPos++] = type;
+        writeVarint(mRecordTime - mLastTime);
+    }
+
+    private void writePayload(byte[] data, boolean reliable) {
+        int length = Math.min(data.length, MAX_PAYLOAD);
+        mRecord[mPos++] = (byte) (reliable ? FLAG_RELIABLE : 0);
+        writeVarint(length);
+        System.arraycopy(data, 0, mRecord, mPos, length);
+        mPos += length;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mRecord[mPos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mRecord[mPos++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            mRecord[mPos++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mRecord[mPos++] = (byte) (value >>> shift);
+        }
+    }
+
+    // Copies the record to the ring buffer, or drops it if it doesn't fit. Returns whether it
+    // was copied.
+    private boolean commit() {
+        long head = mHead;
+        int length = mPos;
+        if (RING_SIZE - (head - mTail) < length || head + length > mMaxFileBytes) {
+            mDropped++;
+            return false;
+        }
+        int offset = (int) (head & (RING_SIZE - 1));
+        int first = Math.min(length, RING_SIZE - offset);
+        System.arraycopy(mRecord, 0, mRing, offset, first);
+        System.arraycopy(mRecord, first, mRing, 0, length - first);
+        mHead = head + length;
+        mLastTime = mRecordTime;
+        mRecords++;
+
+        // wake the writer up early when the buffer gets half full
+        if (mWriter != null && head + length - mTail >= RING_SIZE / 2) {
+            LockSupport.unpark(mWriter);
+        }
+        return true;
+    }
+
+    // Runs on the writer thread.
+    private void writeLoop() {
+        OutputStream out = null;
+        try {
+            File dir = mFile.getAbsoluteFile().getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            deleteOldRecordings(dir);
+            out = new FileOutputStream(mFile);
+            while (true) {
+                boolean stopped = mStopped;
+                drain(out);
+                if (stopped) {
+                    break;
+                }
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+            }
+        } catch (IOException e) {
+            // the game thread stops recording when it sees this
+            mError = e;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private void drain(OutputStream out) throws IOException {
+        long head = mHead;
+        long tail = mTail;
+        while (tail < head) {
+            int offset = (int) (tail & (RING_SIZE - 1));
+            int length = (int) Math.min(head - tail, RING_SIZE - offset);
+            out.write(mRing, offset, length);
+            tail += length;
+            mTail = tail;
+        }
+    }
+
+    // Deletes the oldest recordings in the directory, so that mKeepRecordings are left once
+    // this one is written.
+    private void deleteOldRecordings(File dir) {
+        String name = mFile.getName();
+        final String extension = name.substring(Math.max(0, name.lastIndexOf('.')));
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String fileName) {
+                return fileName.endsWith(extension);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : a.getName().compareTo(b.getName()));
+            }
+        });
+        for (int i = 0; i < files.length - (mKeepRecordings - 1); i++) {
+            if (!files[i].equals(mFile.getAbsoluteFile()) && !files[i].delete()) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands the real-time messages we receive over to a worker thread, which decodes them and
+ * applies them to the game state, so that the thread they are received on never waits for
+ * them to be processed.
+ *
+ * Messages go through a bounded single-producer, single-consumer queue: one thread offers
+ * them, and the worker drains them, without locks. Each slot keeps a reference to the
+ * message's data, which the API gives us to keep, so queueing a message doesn't allocate.
+ * The worker is woken up by posting a task to it when the first message of a batch arrives;
+ * the messages that arrive while it drains are handled by the same task. If the worker falls
+ * so far behind that the queue is full, messages are dropped and counted rather than waited
+ * for.
+ *
+ * The queue depth, and the time between offering a message and the sink being done with it,
+ * can be read from any thread.
+ */
+final class MessagePipeline {
+
+    /** Processes the messages, on the worker thread. */
+    interface Sink {
+        /**
+         * @param receivedAtMillis the time the message was offered, on the producer's clock.
+         */
+        void onMessage(String senderId, byte[] data, boolean reliable, long receivedAtMillis);
+
+        /** Called after each batch of messages, for instance to publish the new state. */
+        void onBatchEnd();
+    }
+
+    private final int mMask;
+    private final String[] mSenders;
+    private final byte[][] mData;
+    private final boolean[] mReliable;
+    private final long[] mReceivedAt;
+    private final long[] mOfferedNanos;
+
+    // Messages offered by the producer, and taken by the worker, since the pipeline was made.
+    private volatile long mHead = 0;
+    private volatile long mTail = 0;
+
+    private final Executor mWorker;
+    private final Sink mSink;
+
+    // Whether a drain task was posted to the worker and didn't start yet.
+    private final AtomicBoolean mDrainPosted = new AtomicBoolean(false);
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Counters, written by the producer.
+    private volatile int mDropped = 0;
+    private volatile int mMaxDepth = 0;
+
+    // Counters, written by the worker.
+    private volatile long mProcessed = 0;
+    private volatile long mLatencyTotalNanos = 0;
+    private volatile long mLatencyMaxNanos = 0;
+
+    /**
+     * @param capacity the most messages waiting for the worker; a power of 2.
+     * @param worker   runs the drain tasks on the worker thread, in order.
+     * @param sink     processes the messages.
+     */
+    MessagePipeline(int capacity, Executor worker, Sink sink) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        }
+        mMask = capacity - 1;
+        mSenders = new String[capacity];
+        mData = new byte[capacity][];
+        mReliable = new boolean[capacity];
+        mReceivedAt = new long[capacity];
+        mOfferedNanos = new long[capacity];
+        mWorker = worker;
+        mSink = sink;
+    }
+
+    /**
+     * Queues a message for the worker. Must always be called on the same thread.
+     *
+     * @return false if the queue was full, and the message dropped.
+     */
+    boolean offer(String senderId, byte[] data, boolean reliable, long nowMillis) {
+        long head = mHead;
+        int depth = (int) (head - mTail);
+        if (depth > mMask) {
+            mDropped++;
+            return false;
+        }
+        int slot = (int) (head & mMask);
+        mSenders[slot] = senderId;
+        mData[slot] = data;
+        mReliable[slot] = reliable;
+        mReceivedAt[slot] = nowMillis;
+        mOfferedNanos[slot] = System.nanoTime();
+
+        // the volatile write publishes the slot to the worker
+        mHead = head + 1;
+        if (depth + 1 > mMaxDepth) {
+            mMaxDepth = depth + 1;
+        }
+
+        if (mDrainPosted.compareAndSet(false, true)) {
+            mWorker.execute(mDrain);
+        }
+        return true;
+    }
+
+    /**
+     * Hands the queued messages to the sink, then ends the batch. Runs on the worker thread,
+     * as posted by {@link #offer}; call it directly only on that thread.
+     */
+    void drain() {
+        // clear the flag first: a message offered from now on posts another drain
+        mDrainPosted.set(false);
+        long tail = mTail;
+        long head = mHead;
+        if (tail == head) {
+            return;
+        }
+        long processed = mProcessed;
+        long latencyTotal = mLatencyTotalNanos;
+        long latencyMax = mLatencyMaxNanos;
+        while (tail != head) {
+            int slot = (int) (tail & mMask);
+            String senderId = mSenders[slot];
+            byte[] data = mData[slot];
+            boolean reliable = mReliable[slot];
+            long receivedAt = mReceivedAt[slot];
+            long offeredNanos = mOfferedNanos[slot];
+            mSenders[slot] = null;
+            mData[slot] = null;
+
+            // the volatile write gives the slot back to the producer
+            mTail = ++tail;
+
+            mSink.onMessage(senderId, data, reliable, receivedAt);
+            long latency = System.nanoTime() - offeredNanos;
+            processed++;
+            latencyTotal += latency;
+            latencyMax = Math.max(latencyMax, latency);
+            if (tail == head) {
+                // pick up what arrived during the batch
+                head = mHead;
+            }
+        }
+        mProcessed = processed;
+        mLatencyTotalNanos = latencyTotal;
+        mLatencyMaxNanos = latencyMax;
+        mSink.onBatchEnd();
+    }
+
+    /** Returns how many messages are waiting for the worker. */
+    int getDepth() {
+        return (int) (mHead - mTail);
+    }
+
+    /** Returns the most messages that were waiting for the worker at once. */
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /** Returns how many messages were dropped because the queue was full. */
+    int getDropped() {
+        return mDropped;
+    }
+
+    /** Returns how many messages the sink processed. */
+    long getProcessed() {
+        return mProcessed;
+    }
+
+    /** Returns the mean time between offering a message and the sink being done with it. */
+    long getMeanLatencyMicros() {
+        long processed = mProcessed;
+        return processed == 0 ? 0 : mLatencyTotalNanos / processed / 1000;
+    }
+
+    /** Returns the longest time between offering a message and the sink being done with it. */
+    long getMaxLatencyMicros() {
+        return mLatencyMaxNanos / 1000;
+    }
+}
@@ -0,0 +1,94 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.Collection;
+
+/**
+ * Numbers the participants of a room from 0, so that what we know of each peer can be kept
+ * in arrays indexed by that number, rather than in maps keyed by participant ID. A room holds
+ * a handful of participants, so finding the number of an ID is a scan of a small array, which
+ * costs less than hashing it, and doesn't allocate.
+ *
+ * Participants keep their number until the index is cleared, when we leave the room, even if
+ * they leave before us, so that their final scores stay where they are.
+ */
+final class ParticipantIndex {
+
+    /** The most participants a real-time room holds. */
+    static final int CAPACITY = 8;
+
+    private final String[] mIds = new String[CAPACITY];
+    private int mSize = 0;
+
+    /** Numbers the given participants, the ones already numbered keeping their number. */
+    void addAll(Collection<String> participantIds) {
+        for (String participantId : participantIds) {
+            add(participantId);
+        }
+    }
+
+    /**
+     * Returns the number of a participant, numbering them first if they are new.
+     *
+     * @return the participant's number, or -1 if the index is full.
+     */
+    int add(String participantId) {
+        int index = indexOf(participantId);
+        if (index >= 0 || mSize == CAPACITY) {
+            return index;
+        }
+        mIds[mSize] = participantId;
+        return mSize++;
+    }
+
+    /** Returns the number of a participant, or -1 if they aren't numbered. */
+    int indexOf(String participantId) {
+        // comparing references is cheapest, and catches the IDs we numbered ourselves
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[i] == participantId) {
+                return i;
+            }
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[i].equals(participantId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the ID of the participant with the given number. */
+    String getId(int index) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException("No participant " + index);
+        }
+        return mIds[index];
+    }
+
+    /** Returns how many participants are numbered. */
+    int size() {
+        return mSize;
+    }
+
+    /** Forgets every participant, when we leave the room. */
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mIds[i] = null;
+        }
+        mSize = 0;
+    }
+}
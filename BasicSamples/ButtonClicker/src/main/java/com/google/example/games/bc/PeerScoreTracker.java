@@ -0,0 +1,141 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of the scores our peers sent us. Unreliable messages may arrive out of order or
+ * more than once, so each peer's score is only updated by messages with a higher sequence
+ * number than the last one applied; older ones are stale and dropped.
+ *
+ * Messages of the first protocol version have no sequence number. For those, we fall back to
+ * keeping the highest score received, which works because there is no way to lose points.
+ *
+ * Peers are numbered by a {@link ParticipantIndex}, and their scores kept in arrays by number,
+ * so applying a message neither hashes nor allocates. A sender who isn't numbered yet, because
+ * their message came before the room update, is numbered on the spot.
+ */
+final class PeerScoreTracker {
+
+    private final ParticipantIndex mIndex;
+
+    // Each peer's last sequence number applied, and score, by number.
+    private final int[] mSequences = new int[ParticipantIndex.CAPACITY];
+    private final int[] mScores = new int[ParticipantIndex.CAPACITY];
+
+    // Bit i is set if peer number i sent us their final score.
+    private int mFinished = 0;
+
+    // Counters, for diagnostics.
+    private int mApplied = 0;
+    private int mStaleDropped = 0;
+    private int mUnknownDropped = 0;
+
+    PeerScoreTracker(ParticipantIndex index) {
+        mIndex = index;
+        Arrays.fill(mSequences, ScoreMessage.NO_SEQUENCE);
+    }
+
+    /**
+     * Applies a score message received from the given participant.
+     *
+     * @return true if it changed what we know about the participant, false if it was stale.
+     */
+    boolean onScore(String participantId, ScoreMessage msg) {
+        int peer = mIndex.add(participantId);
+        if (peer < 0) {
+            // more senders than a room holds
+            mUnknownDropped++;
+            return false;
+        }
+        return onScore(peer, msg);
+    }
+
+    /** Applies a score message received from the participant with the given number. */
+    boolean onScore(int peer, ScoreMessage msg) {
+        if (msg.hasSequence()) {
+            int sequence = mSequences[peer];
+            if (sequence != ScoreMessage.NO_SEQUENCE && msg.sequence <= sequence) {
+                mStaleDropped++;
+                return false;
+            }
+            mSequences[peer] = msg.sequence;
+            mScores[peer] = msg.score;
+        } else if (msg.score > mScores[peer]) {
+            mScores[peer] = msg.score;
+        } else if (!msg.isFinal() || isFinished(peer)) {
+            mStaleDropped++;
+            return false;
+        }
+
+        if (msg.isFinal()) {
+            mFinished |= 1 << peer;
+        }
+        mApplied++;
+        return true;
+    }
+
+    /** Returns the latest score of the given participant, or 0 if we haven't heard of them. */
+    int getScore(String participantId) {
+        int peer = mIndex.indexOf(participantId);
+        return peer < 0 ? 0 : mScores[peer];
+    }
+
+    /** Returns the latest score of the participant with the given number. */
+    int getScore(int peer) {
+        return mScores[peer];
+    }
+
+    /** Returns whether the given participant sent us their final score. */
+    boolean isFinished(String participantId) {
+        int peer = mIndex.indexOf(participantId);
+        return peer >= 0 && isFinished(peer);
+    }
+
+    /** Returns whether the participant with the given number sent us their final score. */
+    boolean isFinished(int peer) {
+        return (mFinished & (1 << peer)) != 0;
+    }
+
+    /** Forgets every peer's score, in preparation for a new game. */
+    void clear() {
+        Arrays.fill(mSequences, ScoreMessage.NO_SEQUENCE);
+        Arrays.fill(mScores, 0);
+        mFinished = 0;
+        mApplied = 0;
+        mStaleDropped = 0;
+        mUnknownDropped = 0;
+    }
+
+    /** Returns how many messages were applied since the last {@link #clear()}. */
+    int getApplied() {
+        return mApplied;
+    }
+
+    /** Returns how many messages were dropped as stale since the last {@link #clear()}. */
+    int getStaleDropped() {
+        return mStaleDropped;
+    }
+
+    /**
+     * Returns how many messages were dropped since the last {@link #clear()} because their
+     * sender couldn't be numbered.
+     */
+    int getUnknownDropped() {
+        return mUnknownDropped;
+    }
+}
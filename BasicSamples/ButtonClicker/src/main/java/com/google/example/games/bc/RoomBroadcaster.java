@@ -0,0 +1,104 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.Collection;
+
+/**
+ * Sends messages to every other participant of the room. The recipients (the peers who joined
+ * the room) are cached, and only recomputed by the caller when the room changes, rather than
+ * on every broadcast. Unreliable messages go out in a single send to all the others; reliable
+ * ones, which the API only sends to one participant at a time, go to each cached recipient.
+ *
+ * All methods must be called on the same thread.
+ */
+final class RoomBroadcaster {
+
+    /** The real-time multiplayer calls the broadcaster makes. */
+    interface Transport {
+        /** Sends a message reliably to the given participant. */
+        void sendReliable(byte[] msg, String participantId);
+
+        /** Sends a message unreliably to every other participant of the room. */
+        void sendUnreliableToOthers(byte[] msg);
+
+        /** Sends a message unreliably to the given participant. */
+        void sendUnreliable(byte[] msg, String participantId);
+    }
+
+    private static final String[] NO_RECIPIENTS = new String[0];
+
+    private final Transport mTransport;
+
+    // IDs of the peers who joined the room, not including us.
+    private String[] mRecipients = NO_RECIPIENTS;
+
+    RoomBroadcaster(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Replaces the cached recipients. Call this whenever the room's participants or their
+     * statuses change.
+     *
+     * @param participantIds the IDs of the peers who joined the room, not including us.
+     */
+    void setRecipients(Collection<String> participantIds) {
+        mRecipients = participantIds.isEmpty()
+                ? NO_RECIPIENTS : participantIds.toArray(new String[participantIds.size()]);
+    }
+
+    /** Forgets the recipients, for instance when we leave the room. */
+    void clearRecipients() {
+        mRecipients = NO_RECIPIENTS;
+    }
+
+    /** Returns the number of cached recipients. */
+    int getRecipientCount() {
+        return mRecipients.length;
+    }
+
+    /** Returns the ID of the cached recipient at the given index. */
+    String getRecipient(int index) {
+        return mRecipients[index];
+    }
+
+    /** Sends a message unreliably to a single participant, such as the answer to a ping. */
+    void sendUnreliable(byte[] msg, String participantId) {
+        mTransport.sendUnreliable(msg, participantId);
+    }
+
+    /**
+     * Sends a message to every recipient.
+     *
+     * @param reliable whether the message must be delivered, in order.
+     * @return the number of recipients the message was sent to.
+     */
+    int broadcast(byte[] msg, boolean reliable) {
+        String[] recipients = mRecipients;
+        if (recipients.length == 0) {
+            return 0;
+        }
+        if (reliable) {
+            for (String participantId : recipients) {
+                mTransport.sendReliable(msg, participantId);
+            }
+        } else {
+            mTransport.sendUnreliableToOthers(msg);
+        }
+        return recipients.length;
+    }
+}
@@ -0,0 +1,271 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+/**
+ * The score labels of the game screen: the player's score, and a list of "score - name" lines,
+ * one per slot. Setting a value only records it; the labels whose value changed are rendered
+ * once, on the next frame, however many times they changed in between. Scores are formatted
+ * into a char array per label, which the label displays without copying, so updating the
+ * board doesn't allocate.
+ *
+ * Frames come from the Choreographer where it exists (API 16 and up), and from a Handler
+ * posting at about 60 frames per second before that. All methods must be called on the UI
+ * thread.
+ */
+final class ScoreBoard {
+
+    // Digits a score is padded to, and the most it can have.
+    private static final int SCORE_DIGITS = 3;
+    private static final int MAX_SCORE_DIGITS = 10;
+
+    // Separates a score from the name of its player.
+    private static final String SEPARATOR = " - ";
+
+    // Interval between frames when there is no Choreographer.
+    private static final long FALLBACK_FRAME_MILLIS = 16;
+
+    // One label, with the value it should show, and whether it shows it already.
+    private static final class Label {
+        final TextView view;
+        boolean visible = false;
+        int score = 0;
+        String name = null;
+        boolean dirty = true;
+
+        // Text displayed by the view. The view doesn't copy it, so it may only be changed
+        // right before the next call to setText().
+        char[] text = new char[32];
+
+        Label(TextView view) {
+            this.view = view;
+        }
+    }
+
+    private final Label mMyScore;
+    private final Label[] mSlots;
+    private boolean mFramePosted = false;
+    private final FrameScheduler mFrameScheduler;
+
+    // Number of frames rendered, and of labels set, for diagnostics.
+    private int mFrames = 0;
+    private int mLabelsRendered = 0;
+
+    /**
+     * @param myScore the label of the player's score, shown alone.
+     * @param slots   the "score - name" labels, in order.
+     */
+    ScoreBoard(TextView myScore, TextView[] slots) {
+        mMyScore = new Label(myScore);
+        mMyScore.visible = true;
+        mSlots = new Label[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            mSlots[i] = new Label(slots[i]);
+        }
+        mFrameScheduler = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                ? new ChoreographerFrameScheduler() : new HandlerFrameScheduler();
+
+        // every label starts out dirty; render them all on the first frame
+        invalidate(mMyScore);
+    }
+
+    /** Returns the number of "score - name" slots. */
+    int getSlotCount() {
+        return mSlots.length;
+    }
+
+    /** Sets the score shown by the player's score label. */
+    void setMyScore(int score) {
+        if (mMyScore.score != score) {
+            mMyScore.score = score;
+            invalidate(mMyScore);
+        }
+    }
+
+    /** Shows the given score and name in a slot. */
+    void setSlot(int index, int score, String name) {
+        Label label = mSlots[index];
+        if (!label.visible || label.score != score || !equals(label.name, name)) {
+            label.visible = true;
+            label.score = score;
+            label.name = name;
+            invalidate(label);
+        }
+    }
+
+    /** Shows the given score in a slot, keeping its name. */
+    void setSlotScore(int index, int score) {
+        Label label = mSlots[index];
+        if (label.score != score) {
+            label.score = score;
+            invalidate(label);
+        }
+    }
+
+    /** Empties a slot. */
+    void clearSlot(int index) {
+        Label label = mSlots[index];
+        if (label.visible) {
+            label.visible = false;
+            label.name = null;
+            invalidate(label);
+        }
+    }
+
+    /** Renders the changed labels right away, rather than on the next frame. */
+    void render() {
+        if (mFramePosted) {
+            mFrameScheduler.cancel();
+            mFramePosted = false;
+        }
+        mFrames++;
+        renderLabel(mMyScore, false);
+        for (Label label : mSlots) {
+            renderLabel(label, true);
+        }
+    }
+
+    /** Cancels the next frame, for instance when the activity stops. */
+    void cancel() {
+        if (mFramePosted) {
+            mFrameScheduler.cancel();
+            mFramePosted = false;
+        }
+    }
+
+    int getFrames() {
+        return mFrames;
+    }
+
+    int getLabelsRendered() {
+        return mLabelsRendered;
+    }
+
+    private void invalidate(Label label) {
+        label.dirty = true;
+        if (!mFramePosted) {
+            mFramePosted = true;
+            mFrameScheduler.post();
+        }
+    }
+
+    private void onFrame() {
+        mFramePosted = false;
+        render();
+    }
+
+    private void renderLabel(Label label, boolean withName) {
+        if (!label.dirty) {
+            return;
+        }
+        label.dirty = false;
+        mLabelsRendered++;
+        if (!label.visible) {
+            label.view.setText("");
+            return;
+        }
+
+        String name = withName && label.name != null ? label.name : null;
+        int length = MAX_SCORE_DIGITS + (name == null ? 0 : SEPARATOR.length() + name.length());
+        if (label.text.length < length) {
+            label.text = new char[length];
+        }
+        char[] text = label.text;
+        int pos = formatScore(text, label.score);
+        if (name != null) {
+            SEPARATOR.getChars(0, SEPARATOR.length(), text, pos);
+            pos += SEPARATOR.length();
+            name.getChars(0, name.length(), text, pos);
+            pos += name.length();
+        }
+        label.view.setText(text, 0, pos);
+    }
+
+    // Writes a score, padded with zeros to SCORE_DIGITS digits, at the start of text, and
+    // returns its length. Negative scores are shown as 0.
+    static int formatScore(char[] text, int score) {
+        if (score < 0) {
+            score = 0;
+        }
+        int digits = 1;
+        for (int i = score; i >= 10; i /= 10) {
+            digits++;
+        }
+        int length = Math.max(SCORE_DIGITS, digits);
+        for (int pos = length - 1; pos >= 0; pos--) {
+            text[pos] = (char) ('0' + score % 10);
+            score /= 10;
+        }
+        return length;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Calls onFrame() once, on the next frame.
+    private interface FrameScheduler {
+        void post();
+
+        void cancel();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private final class ChoreographerFrameScheduler
+            implements FrameScheduler, Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        @Override
+        public void post() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void cancel() {
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame();
+        }
+    }
+
+    private final class HandlerFrameScheduler implements FrameScheduler, Runnable {
+        private final Handler mHandler = new Handler();
+
+        @Override
+        public void post() {
+            mHandler.postDelayed(this, FALLBACK_FRAME_MILLIS);
+        }
+
+        @Override
+        public void cancel() {
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            onFrame();
+        }
+    }
+}
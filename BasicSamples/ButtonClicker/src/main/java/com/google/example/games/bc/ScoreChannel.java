@@ -0,0 +1,298 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.Collection;
+
+/**
+ * The game's network protocol, without the Android parts: sends the player's score to the
+ * room at a limited rate, and keeps track of the scores received from the peers. It also
+ * answers the peers' pings, and measures the network with its own: the interim score rate is
+ * lowered when the round trips get long or messages get lost, since that usually means our
+ * traffic is adding to congestion. Finally, it keeps the game clock in step with the host's:
+ * the host announces how long ago its game started, and the others move their start to
+ * match, allowing for half a round trip. The caller supplies the time and runs the timers, so
+ * the same logic runs in the game, driven by a Handler, and in simulations on a plain JVM.
+ *
+ * All methods must be called on the same thread.
+ */
+final class ScoreChannel {
+
+    // Messages we send and receive; reused, so the network code doesn't allocate.
+    private final ScoreMessage mOutgoing = new ScoreMessage();
+    private final ScoreMessage mIncoming = new ScoreMessage();
+
+    private final RoomBroadcaster mBroadcaster;
+    private final BroadcastScheduler mScheduler;
+
+    // Numbers the participants of the room, for the peer score and latency tables.
+    private final ParticipantIndex mParticipants = new ParticipantIndex();
+    private final PeerScoreTracker mPeerScores = new PeerScoreTracker(mParticipants);
+    private final LatencyMonitor mLatency = new LatencyMonitor(mParticipants);
+
+    // How often to ping the peers.
+    static final long PING_INTERVAL_MILLIS = 1000;
+
+    // Network conditions under which the interim score rate is halved, and quartered. The
+    // loss is that of round trips, so it counts losses in both directions.
+    static final int SLOW_RTT_MILLIS = 250;
+    static final float SLOW_LOSS = 0.1f;
+    static final int BAD_RTT_MILLIS = 500;
+    static final float BAD_LOSS = 0.3f;
+
+    // How far our game start may be from the host's before we move it.
+    static final long CLOCK_SYNC_TOLERANCE_MILLIS = 20;
+
+    private final GameClock mClock;
+
+    // ID of the participant whose game clock we follow, or null if we are the host.
+    private String mHostId = null;
+
+    // Number of times our game start was moved to match the host's.
+    private int mClockSyncs = 0;
+
+    // The maximum rate of interim score broadcasts, and the current one.
+    private final int mMaxBroadcastsPerSecond;
+    private int mBroadcastsPerSecond;
+
+    // Sequence number of the next message we send. Reset at the start of each game.
+    private int mSendSequence = 0;
+
+    // Number of messages received that couldn't be decoded.
+    private int mUndecodable = 0;
+
+    /**
+     * @param broadcaster            sends our messages to the room.
+     * @param maxBroadcastsPerSecond the maximum rate of interim score broadcasts.
+     * @param clock                  the game clock, kept in step with the host's.
+     */
+    ScoreChannel(RoomBroadcaster broadcaster, int maxBroadcastsPerSecond, GameClock clock) {
+        mBroadcaster = broadcaster;
+        mClock = clock;
+        mScheduler = new BroadcastScheduler(maxBroadcastsPerSecond);
+        mMaxBroadcastsPerSecond = mBroadcastsPerSecond = maxBroadcastsPerSecond;
+    }
+
+    /** Forgets the peers' scores and our own broadcasts, in preparation for a new game. */
+    void reset() {
+        mSendSequence = 0;
+        mUndecodable = 0;
+        mClockSyncs = 0;
+        mPeerScores.clear();
+        mLatency.clear();
+        mScheduler.reset();
+        setBroadcastRate(mMaxBroadcastsPerSecond);
+    }
+
+    /**
+     * Numbers the given participants, so that receiving their messages doesn't hash their
+     * IDs. Call this when we connect to the room, and when its participants change.
+     */
+    void addParticipants(Collection<String> participantIds) {
+        mParticipants.addAll(participantIds);
+    }
+
+    /** Forgets the participants and their scores, when we leave the room. */
+    void clearParticipants() {
+        reset();
+        mParticipants.clear();
+    }
+
+    ParticipantIndex getParticipants() {
+        return mParticipants;
+    }
+
+    /**
+     * Broadcasts our score right away. Final scores are sent reliably, interim ones
+     * unreliably.
+     */
+    void broadcast(int score, boolean finalScore, long nowMillis) {
+        // The message says whether it's a final score or not, and carries
+        // the score and a sequence number so peers can drop stale messages.
+        byte[] msg = mOutgoing.set(
+                finalScore ? ScoreMessage.TYPE_FINAL : ScoreMessage.TYPE_INTERIM,
+                mSendSequence++, score, ScoreMessage.NO_TIMESTAMP).encode();
+        int recipients = mBroadcaster.broadcast(msg, finalScore);
+
+        // this carries our latest score, so nothing is pending anymore
+        mScheduler.onBroadcast(nowMillis, finalScore, recipients);
+    }
+
+    /**
+     * Called when our score changes. It is broadcast right away if the rate limit allows.
+     *
+     * @return -1 if nothing more needs to be done, or else how long to wait, in milliseconds,
+     *         before calling {@link #onTimer}.
+     */
+    long onScoreChanged(int score, long nowMillis) {
+        if (mScheduler.onScoreChanged(nowMillis)) {
+            broadcast(score, false, nowMillis);
+            return -1;
+        }
+        return mScheduler.getDelayMillis(nowMillis);
+    }
+
+    /**
+     * Called when a delay returned by {@link #onScoreChanged} has elapsed. Broadcasts the
+     * latest score if changes are still pending.
+     *
+     * @return -1, or how long to wait before calling this again if it was called too early.
+     */
+    long onTimer(int score, long nowMillis) {
+        if (mScheduler.onTimer(nowMillis)) {
+            broadcast(score, false, nowMillis);
+        }
+        return mScheduler.getDelayMillis(nowMillis);
+    }
+
+    /**
+     * Pings every peer, unreliably. Call this every {@link #PING_INTERVAL_MILLIS}.
+     */
+    void ping(long nowMillis) {
+        int sequence = mLatency.onPingSent(nowMillis, mBroadcaster);
+        byte[] msg = mOutgoing.set(ScoreMessage.TYPE_PING, sequence, 0, nowMillis).encode();
+        mBroadcaster.broadcast(msg, false);
+
+        // pings that went unanswered for too long may have raised the loss estimates
+        adaptBroadcastRate();
+    }
+
+    /**
+     * Sets the participant whose game clock we follow.
+     *
+     * @param hostId the host's ID, or null if we are the host.
+     */
+    void setHostId(String hostId) {
+        mHostId = hostId;
+    }
+
+    /** Returns whether we are the host, whose game clock the others follow. */
+    boolean isHost() {
+        return mHostId == null;
+    }
+
+    /**
+     * If we are the host, tells the peers how long ago our game started. Send it reliably at
+     * the start of the game, and unreliably every now and then, for instance with the pings,
+     * so that late joiners and changes of latency are caught up with.
+     */
+    void announceStart(boolean reliable) {
+        long elapsed = mClock.getElapsedMillis();
+        if (!isHost() || elapsed < 0) {
+            return;
+        }
+        byte[] msg = mOutgoing.set(ScoreMessage.TYPE_START, 0, 0, elapsed).encode();
+        mBroadcaster.broadcast(msg, reliable);
+    }
+
+    /**
+     * Handles a message received from a peer.
+     *
+     * @return true if it changed what we know about the peers' scores.
+     */
+    boolean onMessageReceived(String senderId, byte[] data, long nowMillis) {
+        if (!mIncoming.decode(data)) {
+            mUndecodable++;
+            return false;
+        }
+        if (mIncoming.isScore()) {
+            // Packets may arrive out of order, so the tracker drops the ones older
+            // than the last we applied, by sequence number. If it's a final score,
+            // it also marks this participant as having finished the game.
+            return mPeerScores.onScore(senderId, mIncoming);
+        }
+        if (mIncoming.type == ScoreMessage.TYPE_PING && mIncoming.hasTimestamp()) {
+            // answer right away, echoing the ping's sequence number and timestamp
+            byte[] msg = mOutgoing.set(ScoreMessage.TYPE_PONG, mIncoming.sequence, 0,
+                    mIncoming.timestamp).encode();
+            mBroadcaster.sendUnreliable(msg, senderId);
+        } else if (mIncoming.type == ScoreMessage.TYPE_PONG && mIncoming.hasTimestamp()) {
+            if (mLatency.onPong(senderId, mIncoming.sequence, mIncoming.timestamp, nowMillis)) {
+                adaptBroadcastRate();
+            }
+        } else if (mIncoming.type == ScoreMessage.TYPE_START && mIncoming.hasTimestamp()
+                && senderId.equals(mHostId)) {
+            // the announcement took about half a round trip to get here
+            LatencyMonitor.Stats stats = mLatency.getStats(senderId);
+            long oneWay = stats == null || stats.samples == 0 ? 0 : stats.p50 / 2;
+            if (mClock.syncElapsed(mIncoming.timestamp + oneWay, CLOCK_SYNC_TOLERANCE_MILLIS)) {
+                mClockSyncs++;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the message last passed to {@link #onMessageReceived}, decoded. */
+    ScoreMessage getLastReceived() {
+        return mIncoming;
+    }
+
+    /** Returns the number of messages received that couldn't be decoded. */
+    int getUndecodable() {
+        return mUndecodable;
+    }
+
+    PeerScoreTracker getPeerScores() {
+        return mPeerScores;
+    }
+
+    LatencyMonitor getLatency() {
+        return mLatency;
+    }
+
+    GameClock getClock() {
+        return mClock;
+    }
+
+    /** Returns how many times our game start was moved to match the host's. */
+    int getClockSyncs() {
+        return mClockSyncs;
+    }
+
+    /** Returns the current maximum rate of interim score broadcasts. */
+    int getBroadcastRate() {
+        return mBroadcastsPerSecond;
+    }
+
+    BroadcastScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    RoomBroadcaster getBroadcaster() {
+        return mBroadcaster;
+    }
+
+    // Lowers the interim score rate when the worst peer's round trips get long or lossy, and
+    // restores it when they recover.
+    private void adaptBroadcastRate() {
+        int rtt = mLatency.getWorstP95();
+        float loss = mLatency.getWorstLoss();
+        int rate = mMaxBroadcastsPerSecond;
+        if (rtt >= BAD_RTT_MILLIS || loss >= BAD_LOSS) {
+            rate /= 4;
+        } else if (rtt >= SLOW_RTT_MILLIS || loss >= SLOW_LOSS) {
+            rate /= 2;
+        }
+        setBroadcastRate(Math.max(1, rate));
+    }
+
+    private void setBroadcastRate(int broadcastsPerSecond) {
+        if (broadcastsPerSecond != mBroadcastsPerSecond) {
+            mBroadcastsPerSecond = broadcastsPerSecond;
+            mScheduler.setMaxBroadcastsPerSecond(broadcastsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+/**
+ * A message of our real-time network protocol, and its binary encoding. Messages are laid out
+ * as follows:
+ *
+ * <pre>
+ * byte    header: protocol version in the high 4 bits, flags in the low 4 bits
+ * byte    type: 'U' for an interim score, 'F' for a final score, 'P' for a ping, 'O' for a pong,
+ *         'S' for the start of the game
+ * varint  sequence number, counting the messages of the sender since the game started
+ * varint  score
+ * varint  timestamp in milliseconds, only present if the FLAG_TIMESTAMP flag is set
+ * </pre>
+ *
+ * Pings have their own sequence numbers, a score of 0, and the time they were sent on the
+ * sender's clock. A pong answers a ping by echoing its sequence number and timestamp. A start
+ * message, sent by the host of the game, has a timestamp that says how long ago, in
+ * milliseconds, its game started.
+ *
+ * Varints are unsigned, 7 bits per byte, least significant group first. Decoders ignore any
+ * bytes after the fields they know about, so later versions can append fields.
+ *
+ * The first version of the protocol had 2-byte messages: 'F' or 'U', then the score as a
+ * single byte. These are still decoded, with no sequence number.
+ *
+ * A ScoreMessage is a mutable holder, so that sending and receiving messages doesn't allocate:
+ * set its fields and call {@link #encode()}, or call {@link #decode(byte[])} and read them.
+ */
+final class ScoreMessage {
+
+    // Version of the protocol written by encode().
+    static final int VERSION = 2;
+
+    // Message types.
+    static final byte TYPE_INTERIM = 'U';
+    static final byte TYPE_FINAL = 'F';
+    static final byte TYPE_PING = 'P';
+    static final byte TYPE_PONG = 'O';
+    static final byte TYPE_START = 'S';
+
+    // Header flag set when the message carries a timestamp.
+    private static final int FLAG_TIMESTAMP = 0x1;
+
+    // Sequence number of messages that don't have one (version 1 messages).
+    static final int NO_SEQUENCE = -1;
+
+    // Timestamp of messages that don't have one.
+    static final long NO_TIMESTAMP = -1;
+
+    // Longest possible encoding: header, type, 5-byte sequence and score, 10-byte timestamp.
+    static final int MAX_SIZE = 2 + 5 + 5 + 10;
+
+    // Size of the version 1 messages.
+    private static final int V1_SIZE = 2;
+
+    byte type;
+    int sequence = NO_SEQUENCE;
+    int score;
+    long timestamp = NO_TIMESTAMP;
+
+    // Buffer the message is encoded into, and the buffers handed out by encode(), by length.
+    private final byte[] mScratch = new byte[MAX_SIZE];
+    private final byte[][] mBuffers = new byte[MAX_SIZE + 1][];
+
+    // Read position while decoding.
+    private int mPos;
+
+    /**
+     * Sets all the fields of the message.
+     *
+     * @param sequence  the sender's sequence number for this message, 0 or more.
+     * @param score     the score, 0 or more.
+     * @param timestamp the timestamp, or {@link #NO_TIMESTAMP}.
+     * @return this message.
+     */
+    ScoreMessage set(byte type, int sequence, int score, long timestamp) {
+        this.type = type;
+        this.sequence = sequence;
+        this.score = score;
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    /** Returns whether this is a score message, final or interim. */
+    boolean isScore() {
+        return type == TYPE_FINAL || type == TYPE_INTERIM;
+    }
+
+    /** Returns whether this is a ping or a pong. */
+    boolean isLatencyProbe() {
+        return type == TYPE_PING || type == TYPE_PONG;
+    }
+
+    /** Returns whether this is a final score message. */
+    boolean isFinal() {
+        return type == TYPE_FINAL;
+    }
+
+    /** Returns whether this message has a sequence number. */
+    boolean hasSequence() {
+        return sequence != NO_SEQUENCE;
+    }
+
+    /** Returns whether this message has a timestamp. */
+    boolean hasTimestamp() {
+        return timestamp != NO_TIMESTAMP;
+    }
+
+    /**
+     * Encodes this message. The returned array is exactly as long as the encoding, and belongs
+     * to this message: it is reused by later calls, so send it before encoding another one.
+     */
+    byte[] encode() {
+        int length = encode(mScratch);
+        byte[] buf = mBuffers[length];
+        if (buf == null) {
+            buf = mBuffers[length] = new byte[length];
+        }
+        System.arraycopy(mScratch, 0, buf, 0, length);
+        return buf;
+    }
+
+    /**
+     * Encodes this message at the start of buf, which must hold at least {@link #MAX_SIZE}
+     * bytes.
+     *
+     * @return the length of the encoding.
+     */
+    int encode(byte[] buf) {
+        if (sequence < 0 || score < 0) {
+            throw new IllegalStateException("Sequence and score must not be negative.");
+        }
+        int flags = hasTimestamp() ? FLAG_TIMESTAMP : 0;
+        buf[0] = (byte) (VERSION << 4 | flags);
+        buf[1] = type;
+        int pos = writeVarint(buf, 2, sequence);
+        pos = writeVarint(buf, pos, score);
+        if (hasTimestamp()) {
+            pos = writeVarint(buf, pos, timestamp);
+        }
+        return pos;
+    }
+
+    /** Decodes a whole message received from the network into this one. */
+    boolean decode(byte[] buf) {
+        return decode(buf, buf.length);
+    }
+
+    /**
+     * Decodes the first length bytes of buf into this message.
+     *
+     * @return true if they hold a message, false if they are truncated or of an unknown
+     *         version, in which case the fields of this message are unspecified.
+     */
+    boolean decode(byte[] buf, int length) {
+        if (length < V1_SIZE) {
+            return false;
+        }
+        int header = buf[0] & 0xFF;
+        if (length == V1_SIZE && (header == TYPE_FINAL || header == TYPE_INTERIM)) {
+            type = buf[0];
+            sequence = NO_SEQUENCE;
+            score = buf[1] & 0xFF;
+            timestamp = NO_TIMESTAMP;
+            return true;
+        }
+        if (header >>> 4 != VERSION) {
+            return false;
+        }
+        type = buf[1];
+        mPos = 2;
+        long value = readVarint(buf, length);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            return false;
+        }
+        sequence = (int) value;
+        value = readVarint(buf, length);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            return false;
+        }
+        score = (int) value;
+        if ((header & FLAG_TIMESTAMP) != 0) {
+            timestamp = readVarint(buf, length);
+            if (timestamp < 0) {
+                return false;
+            }
+        } else {
+            timestamp = NO_TIMESTAMP;
+        }
+        return true;
+    }
+
+    private static int writeVarint(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    // Returns the varint at buf[mPos] and moves mPos past it, or returns -1 if it is truncated
+    // or doesn't fit in 63 bits.
+    private long readVarint(byte[] buf, int length) {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (mPos >= length) {
+                return -1;
+            }
+            int b = buf[mPos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return (char) type + "#" + sequence + "/" + score
+                + (hasTimestamp() ? "@" + timestamp : "");
+    }
+}
@@ -0,0 +1,131 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+/**
+ * What the UI shows of the network side of a game, as of one moment: the peers' scores, how
+ * often our game clock was moved, and for the debug overlay, the network statistics and those
+ * of the message pipeline. Snapshots are made on the thread that owns the
+ * {@link ScoreChannel}, and never change once made, so the UI thread can read the latest one
+ * published without locking.
+ */
+final class ScoreSnapshot {
+
+    /** The snapshot before any game. */
+    static final ScoreSnapshot EMPTY = new ScoreSnapshot();
+
+    private static final String[] NO_IDS = new String[0];
+    private static final LatencyMonitor.Stats[] NO_STATS = new LatencyMonitor.Stats[0];
+
+    // The participants, by ParticipantIndex number, with their scores and network statistics.
+    private final String[] mIds;
+    private final int[] mScores;
+    private final boolean[] mFinished;
+    private final LatencyMonitor.Stats[] mLatency;
+
+    // Number of times our game start was moved to match the host's.
+    final int clockSyncs;
+
+    // Current maximum rate of interim score broadcasts.
+    final int broadcastRate;
+
+    // The message pipeline: messages waiting, the most that ever were, messages dropped, and
+    // the mean and longest time to process one.
+    final int queueDepth;
+    final int maxQueueDepth;
+    final int dropped;
+    final long meanLatencyMicros;
+    final long maxLatencyMicros;
+
+    private ScoreSnapshot() {
+        mIds = NO_IDS;
+        mScores = new int[0];
+        mFinished = new boolean[0];
+        mLatency = NO_STATS;
+        clockSyncs = 0;
+        broadcastRate = 0;
+        queueDepth = maxQueueDepth = dropped = 0;
+        meanLatencyMicros = maxLatencyMicros = 0;
+    }
+
+    /**
+     * Takes a snapshot of the channel and the pipeline, on the thread that owns the channel.
+     *
+     * @param previous       the last snapshot taken.
+     * @param latencyChanged whether the network statistics changed since then; if not, the
+     *                       previous ones are shared rather than copied.
+     */
+    ScoreSnapshot(ScoreChannel channel, MessagePipeline pipeline, ScoreSnapshot previous,
+            boolean latencyChanged) {
+        ParticipantIndex participants = channel.getParticipants();
+        PeerScoreTracker peerScores = channel.getPeerScores();
+        int count = participants.size();
+        mIds = new String[count];
+        mScores = new int[count];
+        mFinished = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            mIds[i] = participants.getId(i);
+            mScores[i] = peerScores.getScore(i);
+            mFinished[i] = peerScores.isFinished(i);
+        }
+
+        if (!latencyChanged && previous.mLatency.length == count) {
+            mLatency = previous.mLatency;
+        } else {
+            mLatency = new LatencyMonitor.Stats[count];
+            for (int i = 0; i < count; i++) {
+                LatencyMonitor.Stats stats = channel.getLatency().getStats(mIds[i]);
+                mLatency[i] = stats == null ? null : stats.copy();
+            }
+        }
+
+        clockSyncs = channel.getClockSyncs();
+        broadcastRate = channel.getBroadcastRate();
+        queueDepth = pipeline.getDepth();
+        maxQueueDepth = pipeline.getMaxDepth();
+        dropped = pipeline.getDropped();
+        meanLatencyMicros = pipeline.getMeanLatencyMicros();
+        maxLatencyMicros = pipeline.getMaxLatencyMicros();
+    }
+
+    /** Returns the latest score of the given participant, or 0 if we haven't heard of them. */
+    int getScore(String participantId) {
+        int i = indexOf(participantId);
+        return i < 0 ? 0 : mScores[i];
+    }
+
+    /** Returns whether the given participant sent us their final score. */
+    boolean isFinished(String participantId) {
+        int i = indexOf(participantId);
+        return i >= 0 && mFinished[i];
+    }
+
+    /** Returns the network statistics of the given peer, or null if we never pinged them. */
+    LatencyMonitor.Stats getLatency(String participantId) {
+        int i = indexOf(participantId);
+        return i < 0 ? null : mLatency[i];
+    }
+
+    // A room holds a handful of participants: scanning them beats hashing the ID.
+    private int indexOf(String participantId) {
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i].equals(participantId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
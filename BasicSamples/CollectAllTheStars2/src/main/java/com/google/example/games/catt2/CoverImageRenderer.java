@@ -0,0 +1,129 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.Log;
+
+import com.google.example.games.basegameutils.GamesIoExecutor;
+
+import java.util.Arrays;
+
+/**
+ * Renders the cover images of our snapshots. Rather than copying a screenshot of the whole
+ * screen, this draws the world being viewed and its levels' stars into a small, fixed-size
+ * bitmap. It doesn't touch any View, so it can run on a background thread.
+ *
+ * Bitmaps are taken round-robin from a small pool instead of being allocated for every save,
+ * and nothing is drawn at all if the world and stars are the same as for the last cover.
+ */
+class CoverImageRenderer {
+
+    private static final String TAG = "CoverImageRenderer";
+
+    // Size of the cover images, in pixels (16:9, like the snapshot UI displays them).
+    static final int WIDTH = 480, HEIGHT = 270;
+
+    // Number of bitmaps to cycle through. A cover handed out for a commit isn't drawn over
+    // until POOL_SIZE - 1 other covers have been rendered, so there's one for each save that
+    // can render at once, and one more for the commit still encoding the last one.
+    private static final int POOL_SIZE = GamesIoExecutor.POOL_SIZE + 1;
+
+    // Layout of the level grid.
+    private static final int COLUMNS = 4;
+    private static final float TITLE_SIZE = 40f, LEVEL_SIZE = 20f, MARGIN = 16f;
+
+    private final Bitmap[] mBitmaps = new Bitmap[POOL_SIZE];
+    private final Canvas[] mCanvases = new Canvas[POOL_SIZE];
+    private int mNextBitmap = 0;
+
+    // The last cover rendered, and the state it was rendered from.
+    private Bitmap mLastCover = null;
+    private int mLastWorld = -1;
+    private int[] mLastStars = null;
+
+    private final Paint mTitlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mLevelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final String mWorldLabel;
+    private final int mClearedColor, mUnclearedColor;
+
+    CoverImageRenderer(Resources res) {
+        mWorldLabel = res.getString(R.string.world);
+        mClearedColor = res.getColor(R.color.ClearedLevelColor);
+        mUnclearedColor = res.getColor(R.color.UnclearedLevelColor);
+        mTitlePaint.setTextSize(TITLE_SIZE);
+        mTitlePaint.setColor(res.getColor(R.color.StandardTextColor));
+        mTitlePaint.setTextAlign(Paint.Align.CENTER);
+        mLevelPaint.setTextSize(LEVEL_SIZE);
+        mLevelPaint.setTextAlign(Paint.Align.CENTER);
+    }
+
+    /**
+     * Returns a cover image showing the given world and the stars on each of its levels.
+     * The returned bitmap belongs to this renderer and will eventually be drawn over by a
+     * later call; it must not be recycled.
+     *
+     * @param world the world to show.
+     * @param stars the number of stars on each level of the world, first level first.
+     */
+    synchronized Bitmap render(int world, int[] stars) {
+        if (mLastCover != null && world == mLastWorld && Arrays.equals(stars, mLastStars)) {
+            Log.d(TAG, "World " + world + " unchanged since last cover; reusing it.");
+            return mLastCover;
+        }
+
+        long startNanos = System.nanoTime();
+        int slot = mNextBitmap;
+        mNextBitmap = (mNextBitmap + 1) % POOL_SIZE;
+        if (mBitmaps[slot] == null) {
+            // covers are opaque, so 16 bits per pixel are plenty
+            mBitmaps[slot] = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+            mCanvases[slot] = new Canvas(mBitmaps[slot]);
+        }
+        draw(mCanvases[slot], world, stars);
+
+        mLastCover = mBitmaps[slot];
+        mLastWorld = world;
+        mLastStars = stars.clone();
+
+        long elapsedMicros = (System.nanoTime() - startNanos) / 1000;
+        Log.i(TAG, "Rendered cover for world " + world + " in " + elapsedMicros + " us, "
+                + mLastCover.getRowBytes() * mLastCover.getHeight() + " bytes");
+        return mLastCover;
+    }
+
+    private void draw(Canvas canvas, int world, int[] stars) {
+        canvas.drawColor(Color.WHITE);
+        canvas.drawText(mWorldLabel + " " + world, WIDTH / 2f, MARGIN + TITLE_SIZE, mTitlePaint);
+
+        int rows = (stars.length + COLUMNS - 1) / COLUMNS;
+        float top = 2 * MARGIN + TITLE_SIZE;
+        float cellWidth = (WIDTH - 2 * MARGIN) / COLUMNS;
+        float cellHeight = (HEIGHT - top - MARGIN) / Math.max(rows, 1);
+        for (int i = 0; i < stars.length; i++) {
+            float x = MARGIN + (i % COLUMNS + 0.5f) * cellWidth;
+            float y = top + (i / COLUMNS) * cellHeight + LEVEL_SIZE;
+            mLevelPaint.setColor(stars[i] > 0 ? mClearedColor : mUnclearedColor);
+            canvas.drawText(world + "-" + (i + 1), x, y, mLevelPaint);
+            canvas.drawText(MainActivity.STAR_STRINGS[stars[i]], x, y + LEVEL_SIZE * 1.25f,
+                    mLevelPaint);
+        }
+    }
+}
@@ -19,7 +19,6 @@ import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
@@ -33,18 +32,23 @@ import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.drive.Drive;
 import com.google.android.gms.games.Games;
 import com.google.android.gms.games.GamesStatusCodes;
 import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotContents;
 import com.google.android.gms.games.snapshot.SnapshotMetadata;
 import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
 import com.google.android.gms.games.snapshot.Snapshots;
 import com.google.example.games.basegameutils.BaseGameUtils;
+import com.google.example.games.basegameutils.GamesIoExecutor;
 
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Random;
 
@@ -141,6 +145,32 @@ public class MainActivity extends Activity
     // Members related to the conflict resolution chooser of Snapshots.
     final static int MAX_SNAPSHOT_RESOLVE_RETRIES = 3;
 
+    // Set to true to resolve snapshot conflicts by merging both versions of the progress.
+    // The chooser is then only shown for snapshots whose contents can't be decoded.
+    // Set to false to always let the player choose.
+    boolean mAutoResolveConflicts = true;
+
+    // How long to wait after a change before saving, so that quick successive changes
+    // are saved to the snapshot together.
+    private static final long SAVE_COALESCE_WINDOW_MS = 3000;
+
+    // Coalesces the saves triggered by the player's progress.
+    SnapshotSaver mSnapshotSaver;
+
+    // Writes the save game into snapshots as patches on top of a full image, when possible.
+    final SnapshotPayloadWriter mPayloadWriter = new SnapshotPayloadWriter();
+
+    // Draws the cover images of the snapshots we save.
+    CoverImageRenderer mCoverRenderer;
+
+    // Local copy of the snapshot last loaded or committed, shown while the cloud is contacted.
+    SnapshotCache mSnapshotCache;
+
+    // Whether the progress shown came from the local cache and still has to be merged with
+    // the cloud's, and the last modified timestamp of the cached snapshot.
+    boolean mReconcileWithCloud = false;
+    long mCachedTimestamp = -1;
+
     /**
      * You can capture the Snapshot selection intent in the onActivityResult method. The result
      * either indicates a new Snapshot was created (EXTRA_SNAPSHOT_NEW) or was selected.
@@ -265,6 +295,21 @@ public class MainActivity extends Activity
         findViewById(R.id.button_sign_out).setOnClickListener(this);
         ((RatingBar) findViewById(R.id.gameplay_rating)).setOnRatingBarChangeListener(this);
         mSaveGame = new SaveGame();
+        mSnapshotCache = new SnapshotCache(this);
+        renderFromCache();
+        mCoverRenderer = new CoverImageRenderer(getResources());
+        mSnapshotSaver = new SnapshotSaver(SAVE_COALESCE_WINDOW_MS,
+                new SnapshotSaver.Committer() {
+                    @Override
+                    public void commit() {
+                        saveSnapshot(null, mSnapshotSaver);
+                    }
+
+                    @Override
+                    public boolean canCommit() {
+                        return mGoogleApiClient != null && mGoogleApiClient.isConnected();
+                    }
+                });
         updateUi();
     }
 
@@ -300,6 +345,14 @@ public class MainActivity extends Activity
 
     @Override
     protected void onStop() {
+        // don't leave the player's latest progress waiting in the coalescing window
+        mSnapshotSaver.flush();
+        Log.d(TAG, "Saves requested: " + mSnapshotSaver.getSavesRequested()
+                + ", committed: " + mSnapshotSaver.getSavesCommitted());
+
+        // drop the loads and listings whose results nobody is going to look at
+        GamesIoExecutor.getInstance().cancelAll(this);
+
         if (mLoadingDialog != null) {
             mLoadingDialog.dismiss();
             mLoadingDialog = null;
@@ -321,7 +374,13 @@ public class MainActivity extends Activity
         // Sign-in worked!
         log("Sign-in successful! Loading game state from cloud.");
         showSignOutBar();
-        if (!mAlreadyLoadedState) {
+        // save what the player did while we were disconnected
+        mSnapshotSaver.onCommitterReady();
+        if (mReconcileWithCloud) {
+            // we're showing cached progress; merge in whatever the cloud has in the background
+            mReconcileWithCloud = false;
+            loadFromSnapshot(null, true);
+        } else if (!mAlreadyLoadedState) {
             showSnapshots(getString(R.string.title_load_game), false, false);
         } else {
             updateUi();
@@ -387,11 +446,14 @@ public class MainActivity extends Activity
             case R.id.button_sign_out:
                 // sign out.
                 mSignInClicked = false;
+                mSnapshotSaver.cancel();
                 Games.signOut(mGoogleApiClient);
                 mGoogleApiClient.disconnect();
                 showSignInBar();
                 mSaveGame = new SaveGame();
                 mAlreadyLoadedState = false;
+                mReconcileWithCloud = false;
+                clearSnapshotCache();
                 updateUi();
                 break;
             case R.id.button_next_world:
@@ -433,24 +495,15 @@ public class MainActivity extends Activity
     }
 
     /**
-     * Gets a screenshot to use with snapshots. Note that in practice you probably do not want to
-     * use this approach because tablet screen sizes can become pretty large and because the image
-     * will contain any UI and layout surrounding the area of interest.
+     * Returns the number of stars on each level of the world being viewed, which is what the
+     * cover image of our snapshots shows.
      */
-    Bitmap getScreenShot() {
-        View root = findViewById(R.id.screen_main);
-        Bitmap coverImage;
-        try {
-            root.setDrawingCacheEnabled(true);
-            Bitmap base = root.getDrawingCache();
-            coverImage = base.copy(base.getConfig(), false /* isMutable */);
-        } catch (Exception ex) {
-            Log.i(TAG, "Failed to create screenshot", ex);
-            coverImage = null;
-        } finally {
-            root.setDrawingCacheEnabled(false);
+    int[] getVisibleStars() {
+        int[] stars = new int[LEVELS_PER_WORLD];
+        for (int i = 0; i < LEVELS_PER_WORLD; i++) {
+            stars[i] = mSaveGame.getLevelStars(mWorld, i + 1);
         }
-        return coverImage;
+        return stars;
     }
 
 
@@ -466,17 +519,36 @@ public class MainActivity extends Activity
      * Loads a Snapshot from the user's synchronized storage.
      */
     void loadFromSnapshot(final SnapshotMetadata snapshotMetadata) {
-        if (mLoadingDialog == null) {
-            mLoadingDialog = new ProgressDialog(this);
-            mLoadingDialog.setMessage(getString(R.string.loading_from_cloud));
+        loadFromSnapshot(snapshotMetadata, false);
+    }
+
+    /**
+     * Loads a Snapshot as in {@link #loadFromSnapshot(SnapshotMetadata)}.
+     *
+     * @param reconcile if true, the progress already shown came from the local cache: it is
+     *                  merged with the loaded progress instead of being replaced, and no
+     *                  progress dialog is shown.
+     */
+    private void loadFromSnapshot(final SnapshotMetadata snapshotMetadata,
+            final boolean reconcile) {
+        if (!reconcile) {
+            if (mLoadingDialog == null) {
+                mLoadingDialog = new ProgressDialog(this);
+                mLoadingDialog.setMessage(getString(R.string.loading_from_cloud));
+            }
+
+            mLoadingDialog.show();
         }
 
-        mLoadingDialog.show();
+        final long cachedTimestamp = mCachedTimestamp;
+        final int cacheGeneration = mSnapshotCache.getGeneration();
+        GamesIoExecutor.Task<Integer> task = new GamesIoExecutor.Task<Integer>() {
+            SaveGame mLoaded;
+            boolean mUnchanged;
 
-        AsyncTask<Void, Void, Integer> task = new AsyncTask<Void, Void, Integer>() {
             @Override
-            protected Integer doInBackground(Void... params) {
-                 Snapshots.OpenSnapshotResult result;
+            protected Integer doInBackground() {
+                Snapshots.OpenSnapshotResult result;
                 if (snapshotMetadata != null && snapshotMetadata.getUniqueName() != null) {
                     Log.i(TAG, "Opening snapshot by metadata: " + snapshotMetadata);
                     result = Games.Snapshots.open(mGoogleApiClient,snapshotMetadata).await();
@@ -484,6 +556,9 @@ public class MainActivity extends Activity
                     Log.i(TAG, "Opening snapshot by name: " + currentSaveName);
                     result = Games.Snapshots.open(mGoogleApiClient, currentSaveName, true).await();
                 }
+                if (mAutoResolveConflicts) {
+                    result = resolveConflictsAutomatically(result);
+                }
 
                 int status = result.getStatus().getStatusCode();
 
@@ -507,10 +582,14 @@ public class MainActivity extends Activity
                 }
 
                 if (snapshot != null) {
-                    try {
-                        readSavedGame(snapshot);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error while reading snapshot contents: " + e.getMessage());
+                    SnapshotMetadata metadata = snapshot.getMetadata();
+                    long timestamp = metadata.getLastModifiedTimestamp();
+                    mUnchanged = reconcile && timestamp == cachedTimestamp;
+                    byte[] payload = mUnchanged ? null : readContents(snapshot);
+                    if (payload != null) {
+                        mLoaded = new SaveGame(payload);
+                        mSnapshotCache.write(metadata.getUniqueName(), payload, timestamp,
+                                cacheGeneration);
                     }
                 }
                 return status;
@@ -536,6 +615,21 @@ public class MainActivity extends Activity
                             Toast.LENGTH_SHORT).show();
                 }
 
+                if (mUnchanged) {
+                    Log.i(TAG, "Cached snapshot is up to date.");
+                } else if (mLoaded != null) {
+                    if (reconcile) {
+                        mSaveGame.mergeMax(mLoaded);
+                        if (!Arrays.equals(mSaveGame.toBytes(), mLoaded.toBytes())) {
+                            // we have progress the cloud doesn't; send it up
+                            mSnapshotSaver.requestSave();
+                        }
+                    } else {
+                        mSaveGame = mLoaded;
+                    }
+                    mAlreadyLoadedState = true;
+                }
+
                 if (mLoadingDialog != null && mLoadingDialog.isShowing()) {
                     mLoadingDialog.dismiss();
                     mLoadingDialog = null;
@@ -543,14 +637,84 @@ public class MainActivity extends Activity
                 hideAlertBar();
                 updateUi();
             }
+
+            @Override
+            protected void onCancelled() {
+                if (mLoadingDialog != null && mLoadingDialog.isShowing()) {
+                    mLoadingDialog.dismiss();
+                    mLoadingDialog = null;
+                }
+            }
         };
 
-        task.execute();
+        GamesIoExecutor.getInstance().execute(this, GamesIoExecutor.PRIORITY_LOAD, task);
+    }
+
+    /**
+     * Shows the progress stored in the local snapshot cache, if any, so the player sees it
+     * right away instead of waiting for the Saved Games service. The cache is read in the
+     * background; its progress is merged with the cloud's once we're connected, unless we got
+     * connected first, in which case the cloud's is what we show.
+     */
+    private void renderFromCache() {
+        final long startNanos = System.nanoTime();
+        GamesIoExecutor.getInstance().execute(this, GamesIoExecutor.PRIORITY_LOAD,
+                new GamesIoExecutor.Task<SnapshotCache.Entry>() {
+                    SaveGame mCached;
+
+                    @Override
+                    protected SnapshotCache.Entry doInBackground() {
+                        SnapshotCache.Entry cached = mSnapshotCache.readLast();
+                        mCached = cached == null ? null : SaveGame.tryParse(cached.payload);
+                        return cached;
+                    }
+
+                    @Override
+                    protected void onPostExecute(SnapshotCache.Entry cached) {
+                        if (mCached == null || mAlreadyLoadedState
+                                || mGoogleApiClient.isConnected()) {
+                            return;
+                        }
+                        // keep any stars the player got while we were reading
+                        mCached.mergeMax(mSaveGame);
+                        mSaveGame = mCached;
+                        currentSaveName = cached.uniqueName;
+                        mCachedTimestamp = cached.lastModifiedTimestamp;
+                        mAlreadyLoadedState = true;
+                        mReconcileWithCloud = true;
+                        updateUi();
+                        Log.i(TAG, "Rendered cached progress of " + cached.uniqueName + " in "
+                                + (System.nanoTime() - startNanos) / 1000 + " us");
+                    }
+                });
+    }
+
+    /** Stores a payload we committed in the local snapshot cache, in the background. */
+    private void cacheCommittedSnapshot(final SnapshotMetadata metadata, final byte[] payload) {
+        final String name = metadata.getUniqueName();
+        final long timestamp = metadata.getLastModifiedTimestamp();
+        mCachedTimestamp = timestamp;
+        final int generation = mSnapshotCache.getGeneration();
+        GamesIoExecutor.getInstance().execute(null, GamesIoExecutor.PRIORITY_SAVE,
+                new GamesIoExecutor.Task<Boolean>() {
+                    @Override
+                    protected Boolean doInBackground() {
+                        return mSnapshotCache.write(name, payload, timestamp, generation);
+                    }
+                });
     }
 
-    private void readSavedGame(Snapshot snapshot) throws IOException {
-        mSaveGame = new SaveGame(snapshot.getSnapshotContents().readFully());
-        mAlreadyLoadedState = true;
+    /** Deletes the local snapshot cache, in the background. */
+    private void clearSnapshotCache() {
+        mCachedTimestamp = -1;
+        GamesIoExecutor.getInstance().execute(null, GamesIoExecutor.PRIORITY_SAVE,
+                new GamesIoExecutor.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() {
+                        mSnapshotCache.clear();
+                        return null;
+                    }
+                });
     }
 
     /**
@@ -589,6 +753,65 @@ public class MainActivity extends Activity
         return null;
     }
 
+    /**
+     * Resolves snapshot conflicts without involving the player. Star progress only ever goes
+     * up, so the union of both versions of the progress (the greatest number of stars on each
+     * level) is always a correct resolution. Conflicts that come up while resolving are
+     * resolved the same way, up to MAX_SNAPSHOT_RESOLVE_RETRIES times. The merged progress is
+     * also merged into the in-memory save game. Must be called on a background thread.
+     *
+     * @param result The open snapshot result, which may or may not report a conflict.
+     * @return The result of the last open or resolve. It still reports a conflict if the
+     *         conflict could not be resolved automatically, for instance because one of the
+     *         snapshots could not be decoded, in which case the player must choose.
+     */
+    Snapshots.OpenSnapshotResult resolveConflictsAutomatically(
+            Snapshots.OpenSnapshotResult result) {
+        for (int retry = 0; retry < MAX_SNAPSHOT_RESOLVE_RETRIES
+                && result.getStatus().getStatusCode() == GamesStatusCodes.STATUS_SNAPSHOT_CONFLICT;
+                retry++) {
+            Snapshot snapshot = result.getSnapshot();
+            Snapshot conflictSnapshot = result.getConflictingSnapshot();
+
+            final SaveGame merged = SaveGame.tryParse(readContents(snapshot));
+            SaveGame conflictSaveGame = SaveGame.tryParse(readContents(conflictSnapshot));
+            if (merged == null || conflictSaveGame == null) {
+                Log.w(TAG, "Can't decode conflicting snapshots; letting the player choose.");
+                break;
+            }
+            merged.mergeMax(conflictSaveGame);
+            Log.i(TAG, "Merging conflicting snapshots, retry " + retry);
+
+            SnapshotContents contents = result.getResolutionSnapshotContents();
+            contents.writeBytes(merged.toBytes());
+            SnapshotMetadataChange metadataChange = new SnapshotMetadataChange.Builder()
+                    .setDescription("Merged data at: " + Calendar.getInstance().getTime())
+                    .build();
+            result = Games.Snapshots.resolveConflict(mGoogleApiClient, result.getConflictId(),
+                    snapshot.getMetadata().getSnapshotId(), metadataChange, contents).await();
+
+            // Don't lose the progress from the other device if we're about to save ours.
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mSaveGame.mergeMax(merged);
+                    updateUi();
+                }
+            });
+        }
+        return result;
+    }
+
+    /** Returns the contents of the given snapshot, or null if they can't be read. */
+    private static byte[] readContents(Snapshot snapshot) {
+        try {
+            return snapshot.getSnapshotContents().readFully();
+        } catch (IOException e) {
+            Log.e(TAG, "Error while reading snapshot contents: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      *  Handles resolving the snapshot conflict asynchronously.
      *
@@ -603,10 +826,10 @@ public class MainActivity extends Activity
             final SnapshotMetadata snapshotMetadata) {
 
         Log.i(TAG,"Resolving conflict retry count = " + retryCount + " conflictid = " + conflictId);
-        AsyncTask<Void, Void, Snapshots.OpenSnapshotResult> task =
-                new AsyncTask<Void, Void, Snapshots.OpenSnapshotResult>() {
+        GamesIoExecutor.Task<Snapshots.OpenSnapshotResult> task =
+                new GamesIoExecutor.Task<Snapshots.OpenSnapshotResult>() {
                     @Override
-                    protected Snapshots.OpenSnapshotResult doInBackground(Void... voids) {
+                    protected Snapshots.OpenSnapshotResult doInBackground() {
 
                         Snapshots.OpenSnapshotResult result;
                         if (snapshotMetadata.getUniqueName() != null) {
@@ -646,7 +869,7 @@ public class MainActivity extends Activity
                     }
                 };
 
-        task.execute();
+        GamesIoExecutor.getInstance().execute(this, GamesIoExecutor.PRIORITY_SAVE, task);
     }
 
 
@@ -655,52 +878,110 @@ public class MainActivity extends Activity
      * and stores the Snapshot.
      */
     void saveSnapshot(final SnapshotMetadata snapshotMetadata) {
-        AsyncTask<Void, Void, Snapshots.OpenSnapshotResult> task =
-                new AsyncTask<Void, Void, Snapshots.OpenSnapshotResult>() {
+        saveSnapshot(snapshotMetadata, null);
+    }
+
+    /**
+     * Saves the game to a Snapshot as in {@link #saveSnapshot(SnapshotMetadata)}, reporting
+     * the outcome of the commit to the given saver, if not null.
+     */
+    private void saveSnapshot(final SnapshotMetadata snapshotMetadata,
+            final SnapshotSaver saver) {
+        // the cover is rendered in the background, from the state the player sees right now
+        final int coverWorld = mWorld;
+        final int[] coverStars = getVisibleStars();
+
+        GamesIoExecutor.Task<Snapshots.OpenSnapshotResult> task =
+                new GamesIoExecutor.Task<Snapshots.OpenSnapshotResult>() {
+                    Bitmap mCoverImage;
+
                     @Override
-                    protected Snapshots.OpenSnapshotResult doInBackground(Void... params) {
+                    protected Snapshots.OpenSnapshotResult doInBackground() {
+                        mCoverImage = mCoverRenderer.render(coverWorld, coverStars);
+
+                        Snapshots.OpenSnapshotResult result;
                         if (snapshotMetadata == null) {
                             Log.i(TAG, "Calling open with " + currentSaveName);
-                            return Games.Snapshots.open(mGoogleApiClient, currentSaveName, true)
+                            result = Games.Snapshots.open(mGoogleApiClient, currentSaveName, true)
                                     .await();
                         }
                         else {
                             Log.i(TAG, "Calling open with " + snapshotMetadata);
-                            return Games.Snapshots.open(mGoogleApiClient, snapshotMetadata)
+                            result = Games.Snapshots.open(mGoogleApiClient, snapshotMetadata)
                                     .await();
                         }
+                        if (mAutoResolveConflicts) {
+                            result = resolveConflictsAutomatically(result);
+                        }
+                        return result;
+                    }
+
+                    @Override
+                    protected void onCancelled() {
+                        // the open failed, so the saver isn't waiting on a commit any more
+                        if (saver != null) {
+                            saver.onCommitFinished(false);
+                        }
                     }
 
                     @Override
                     protected void onPostExecute(Snapshots.OpenSnapshotResult result) {
                         Snapshot toWrite = processSnapshotOpenResult(RC_SAVE_SNAPSHOT, result, 0);
                         if (toWrite != null) {
-                            Log.i(TAG, writeSnapshot(toWrite));
+                            Log.i(TAG, "Writing snapshot " + toWrite);
+                            final SaveGame written = mSaveGame;
+                            final byte[] image = written.toBytes();
+                            final SnapshotPayloadWriter.Pending pending =
+                                    mPayloadWriter.write(written, toWrite);
+                            Log.i(TAG, "Snapshot payload for this commit: "
+                                    + pending.payloadBytes + " bytes");
+                            writeSnapshot(toWrite, mCoverImage).setResultCallback(
+                                    new ResultCallback<Snapshots.CommitSnapshotResult>() {
+                                        @Override
+                                        public void onResult(
+                                                Snapshots.CommitSnapshotResult commit) {
+                                            boolean success = commit.getStatus().isSuccess();
+                                            mPayloadWriter.onCommitFinished(pending, written,
+                                                    success);
+                                            if (success) {
+                                                cacheCommittedSnapshot(
+                                                        commit.getSnapshotMetadata(), image);
+                                            }
+                                            if (saver != null) {
+                                                saver.onCommitFinished(success);
+                                            }
+                                        }
+                                    });
                         }
                         else {
                             Log.e(TAG, "Error opening snapshot: " + result.toString());
+                            if (saver != null) {
+                                saver.onCommitFinished(false);
+                            }
                         }
                     }
                 };
 
-        task.execute();
+        // Saves have no owner, so stopping the activity doesn't cancel them: onStop() flushes
+        // the player's latest progress and that commit has to go through.
+        GamesIoExecutor.getInstance().execute(null, GamesIoExecutor.PRIORITY_SAVE, task);
     }
 
     /**
-     * Generates metadata, takes a screenshot, and performs the write operation for saving a
-     * snapshot.
+     * Generates metadata and commits a snapshot whose payload {@link SnapshotPayloadWriter}
+     * has written.
+     *
+     * @param coverImage the cover image for the snapshot.
+     * @return the pending result of the commit.
      */
-    private String writeSnapshot(Snapshot snapshot) {
-        // Set the data payload for the snapshot.
-        snapshot.getSnapshotContents().writeBytes(mSaveGame.toBytes());
-
+    private PendingResult<Snapshots.CommitSnapshotResult> writeSnapshot(Snapshot snapshot,
+            Bitmap coverImage) {
         // Save the snapshot.
         SnapshotMetadataChange metadataChange = new SnapshotMetadataChange.Builder()
-                .setCoverImage(getScreenShot())
+                .setCoverImage(coverImage)
                 .setDescription("Modified data at: " + Calendar.getInstance().getTime())
                 .build();
-        Games.Snapshots.commitAndClose(mGoogleApiClient, snapshot, metadataChange);
-        return snapshot.toString();
+        return Games.Snapshots.commitAndClose(mGoogleApiClient, snapshot, metadataChange);
     }
 
 
@@ -766,8 +1047,8 @@ public class MainActivity extends Activity
         findViewById(R.id.screen_main).setVisibility(View.VISIBLE);
 
         mInLevel = false;
-        // save new data to cloud
-        saveSnapshot(null);
+        // save new data to cloud, coalescing it with any other changes made shortly after
+        mSnapshotSaver.requestSave();
     }
 
     /** Prints a log message (convenience method). */
@@ -805,10 +1086,10 @@ public class MainActivity extends Activity
         mLoadingDialog.show();
 
         //Start an asynchronous task to read this snapshot and load it.
-        AsyncTask<Void, Void, Snapshots.LoadSnapshotsResult> task =
-                new AsyncTask<Void, Void, Snapshots.LoadSnapshotsResult>() {
+        GamesIoExecutor.Task<Snapshots.LoadSnapshotsResult> task =
+                new GamesIoExecutor.Task<Snapshots.LoadSnapshotsResult>() {
                     @Override
-                    protected Snapshots.LoadSnapshotsResult doInBackground(Void... params) {
+                    protected Snapshots.LoadSnapshotsResult doInBackground() {
 
                         Log.i(TAG, "Listing snapshots");
                         return Games.Snapshots.load(mGoogleApiClient, false).await();
@@ -849,7 +1130,7 @@ public class MainActivity extends Activity
                     }
                 };
 
-        task.execute();
+        GamesIoExecutor.getInstance().execute(this, GamesIoExecutor.PRIORITY_LIST, task);
     }
 
     private void selectSnapshotItem(int requestCode, ArrayList<Snapshot> items,
@@ -21,9 +21,9 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.Map;
 
 /**
  * Represents the player's progress in the game. The player's progress is how many stars
@@ -38,38 +38,92 @@ public class SaveGame{
     // serialization format version
     private static final String SERIAL_VERSION = "1.1";
 
-    // Maps a level name (like "2-8") to the number of stars the user has in that level.
-    // Any key that doesn't exist in this map is considered to be associated to the value 0.
-    Map<String,Integer> mLevelStars = new HashMap<String,Integer>();
+    // Binary serialization format. The layout is:
+    //   bytes 0-1: BINARY_MAGIC
+    //   byte  2:   BINARY_VERSION
+    //   byte  3:   levels per world
+    //   bytes 4-5: number of worlds (big endian)
+    //   then BITS_PER_LEVEL bits per level, world-major, packed LSB first.
+    // Since version 2 this full image may be followed by any number of patch records:
+    //   byte PATCH_TAG, varint count, then count x (varint world, varint level, byte stars)
+    // which are applied in order on top of the image.
+    // The first byte of a JSON save is always '{' or whitespace, so the magic
+    // is enough to tell the two formats apart.
+    private static final byte[] BINARY_MAGIC = { (byte) 0xCA, (byte) 0x72 };
+    private static final int BINARY_VERSION = 2;
+    private static final int MIN_BINARY_VERSION = 1;
+    private static final byte PATCH_TAG = 'P';
+    private static final int BINARY_HEADER_SIZE = 6;
+    private static final int BITS_PER_LEVEL = 3;
+
+    // Largest grid the binary format can describe.
+    private static final int MAX_WORLDS = 0xFFFF, MAX_LEVELS_PER_WORLD = 0xFF;
+
+    // Most levels the grid may grow to for level names read from JSON, or levels set by binary
+    // patches, neither of which, unlike a binary image, pays for the grid it describes.
+    private static final int MAX_NAMED_GRID_SIZE = 0x10000;
+
+    // Grid size a new SaveGame starts with; it grows as stars are set on levels outside it.
+    static final int DEFAULT_WORLDS = 20, DEFAULT_LEVELS_PER_WORLD = 12;
+
+    // Number of stars the user has on each level, indexed by
+    // (world - 1) * mLevelsPerWorld + (level - 1). Any level outside the grid is
+    // considered to have 0 stars.
+    byte[] mLevelStars;
+    int mWorlds, mLevelsPerWorld;
+
+    // Grid indices of the levels that changed since the state was last loaded or marked clean.
+    // If mAllDirty is set, there were changes that aren't tracked per level, like merges.
+    private BitSet mDirtyLevels;
+    private boolean mAllDirty = false;
 
     // Minimum and maximum stars the player can have on a level
     public static final int MIN_STARS = 0, MAX_STARS = 5;
 
     /** Constructs an empty SaveGame object. No stars on no levels. */
     public SaveGame() {
+        this(DEFAULT_WORLDS, DEFAULT_LEVELS_PER_WORLD);
     }
 
-    /** Constructs a SaveGame object from serialized data. */
+    /** Constructs an empty SaveGame object with room for the given number of levels. */
+    SaveGame(int worlds, int levelsPerWorld) {
+        mWorlds = worlds;
+        mLevelsPerWorld = levelsPerWorld;
+        mLevelStars = new byte[worlds * levelsPerWorld];
+        mDirtyLevels = new BitSet(mLevelStars.length);
+    }
+
+    /** Constructs a SaveGame object from serialized data, in either binary or JSON format. */
     public SaveGame(byte[] data) {
+        this();
         if (data == null) return; // default progress
-        loadFromJson(new String(data));
+        loadFromBytes(data);
     }
 
     /** Constructs a SaveGame object from a JSON string. */
     public SaveGame(String json) {
+        this();
         if (json == null) return; // default progress
         loadFromJson(json);
     }
 
     /** Constructs a SaveGame object by reading from a SharedPreferences. */
     public SaveGame(SharedPreferences sp, String key) {
+        this();
         loadFromJson(sp.getString(key, ""));
     }
 
     /** Replaces this SaveGame's content with the content loaded from the given JSON string. */
     public void loadFromJson(String json) {
+        readJson(json);
+        markClean();
+    }
+
+    // Reads the given JSON into this SaveGame. Returns false if it had a syntax error, in which
+    // case this SaveGame is left empty.
+    private boolean readJson(String json) {
         zero();
-        if (json == null || json.trim().equals("")) return;
+        if (json == null || json.trim().equals("")) return true;
 
         try {
             JSONObject obj = new JSONObject(json);
@@ -82,7 +136,7 @@ public class SaveGame{
 
             while (iter.hasNext()) {
                 String levelName = (String)iter.next();
-                mLevelStars.put(levelName, levels.getInt(levelName));
+                setLevelStars(levelName, levels.getInt(levelName));
             }
         }
         catch (JSONException ex) {
@@ -91,17 +145,299 @@ public class SaveGame{
 
             // Initializing with empty stars if the game file is corrupt.
             // NOTE: In your game, you want to try recovering from the snapshot payload.
-            mLevelStars.clear();
+            zero();
+            return false;
         }
         catch (NumberFormatException ex) {
             ex.printStackTrace();
             throw new RuntimeException("Save data has an invalid number in it: " + json, ex);
         }
+        return true;
+    }
+
+    /**
+     * Replaces this SaveGame's content with the content loaded from the given serialized data.
+     * The data may be in either the binary format produced by {@link #toBytes()} or the
+     * legacy JSON format.
+     */
+    public void loadFromBytes(byte[] data) {
+        if (isBinary(data)) {
+            readBinary(data);
+        } else {
+            readJson(new String(data));
+        }
+        markClean();
+    }
+
+    /**
+     * Decodes the given serialized data, in either format. Unlike {@link #SaveGame(byte[])},
+     * this doesn't fall back to empty progress when the data can't be decoded.
+     *
+     * @return the decoded SaveGame, or null if the data is missing, corrupt or in an unknown
+     *         format.
+     */
+    static SaveGame tryParse(byte[] data) {
+        if (data == null) return null;
+        SaveGame result = new SaveGame();
+        try {
+            boolean ok = isBinary(data)
+                    ? result.readBinary(data) : result.readJson(new String(data));
+            if (!ok) return null;
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Can't decode save data: " + ex.getMessage());
+            return null;
+        }
+        result.markClean();
+        return result;
+    }
+
+    /** Returns whether the given serialized data is in the binary format. */
+    static boolean isBinary(byte[] data) {
+        return data != null && data.length >= BINARY_HEADER_SIZE
+                && data[0] == BINARY_MAGIC[0] && data[1] == BINARY_MAGIC[1];
+    }
+
+    /**
+     * Replaces this SaveGame's content with the content loaded from binary data: a full image
+     * followed by the patches, if any, that were appended to it. Returns false if the data is
+     * truncated or corrupt, in which case this SaveGame holds whatever could be read.
+     */
+    private boolean readBinary(byte[] data) {
+        zero();
+        int format = data[2] & 0xFF;
+        if (format < MIN_BINARY_VERSION || format > BINARY_VERSION) {
+            throw new RuntimeException("Unexpected binary save format " + format);
+        }
+        int levelsPerWorld = data[3] & 0xFF;
+        int worlds = ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+        int levels = worlds * levelsPerWorld;
+        if (data.length < BINARY_HEADER_SIZE + packedSize(levels)) {
+            Log.e(TAG, "Binary save data is truncated: " + data.length + " bytes for "
+                    + worlds + "x" + levelsPerWorld + " levels.");
+
+            // Initializing with empty stars if the game file is corrupt.
+            return false;
+        }
+
+        ensureCapacity(worlds, levelsPerWorld);
+        for (int i = 0; i < levels; i++) {
+            int stars = readPacked(data, BINARY_HEADER_SIZE, i);
+            if (stars > MAX_STARS) stars = MAX_STARS;
+            mLevelStars[(i / levelsPerWorld) * mLevelsPerWorld + i % levelsPerWorld] =
+                    (byte) stars;
+        }
+        return readPatches(data, BINARY_HEADER_SIZE + packedSize(levels));
+    }
+
+    /**
+     * Applies the patch records found in data, starting at the given offset. Returns false if
+     * a corrupt record was found; the records before it are still applied.
+     */
+    private boolean readPatches(byte[] data, int pos) {
+        int[] cursor = { pos };
+        while (cursor[0] < data.length) {
+            if (data[cursor[0]++] != PATCH_TAG) {
+                Log.e(TAG, "Unexpected record in save data at offset " + (cursor[0] - 1)
+                        + "; ignoring the rest.");
+                return false;
+            }
+            int count = readVarint(data, cursor);
+            if (count < 0) {
+                Log.e(TAG, "Save data has a truncated patch; ignoring the rest.");
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                int world = readVarint(data, cursor);
+                int level = readVarint(data, cursor);
+                if (cursor[0] >= data.length || world < 1 || world > MAX_WORLDS
+                        || level < 1 || level > MAX_LEVELS_PER_WORLD
+                        || outgrowsNamedGrid(world, level)) {
+                    Log.e(TAG, "Save data has a truncated or corrupt patch; ignoring the rest.");
+                    return false;
+                }
+                setLevelStars(world, level, data[cursor[0]++]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serializes the levels that changed since this SaveGame was last loaded or marked clean
+     * as a patch record, which can be appended to the bytes last committed, and marks those
+     * levels clean. Must not be called if {@link #canPatch()} returns false.
+     */
+    public byte[] takePatch() {
+        if (mAllDirty) {
+            throw new IllegalStateException("Changes can't be expressed as a patch.");
+        }
+        int count = mDirtyLevels.cardinality();
+        // tag, count and, per level, world (3 bytes max), level (2 bytes max) and stars
+        byte[] buf = new byte[1 + 5 + count * 6];
+        int[] cursor = { 0 };
+        buf[cursor[0]++] = PATCH_TAG;
+        writeVarint(buf, cursor, count);
+        for (int i = mDirtyLevels.nextSetBit(0); i >= 0; i = mDirtyLevels.nextSetBit(i + 1)) {
+            writeVarint(buf, cursor, i / mLevelsPerWorld + 1);
+            writeVarint(buf, cursor, i % mLevelsPerWorld + 1);
+            buf[cursor[0]++] = mLevelStars[i];
+        }
+        mDirtyLevels.clear();
+        return Arrays.copyOf(buf, cursor[0]);
+    }
+
+    /** Returns whether the changes since the last load or markClean() can be a patch. */
+    public boolean canPatch() {
+        return !mAllDirty;
+    }
+
+    /** Returns whether anything changed since the last load or markClean(). */
+    public boolean isDirty() {
+        return mAllDirty || !mDirtyLevels.isEmpty();
+    }
+
+    /**
+     * Records that the current state has been saved as a full image, so that the next patch
+     * only contains subsequent changes.
+     */
+    public void markClean() {
+        mDirtyLevels.clear();
+        mAllDirty = false;
+    }
+
+    /**
+     * Records that the current state can't be expressed as a patch on top of the last saved
+     * state, for instance because a patch that was taken failed to be saved.
+     */
+    public void markAllDirty() {
+        mAllDirty = true;
+    }
+
+    // Reads an unsigned LEB128 varint at cursor[0], advancing the cursor. Returns -1 if the
+    // data ends before the varint does.
+    private static int readVarint(byte[] buf, int[] cursor) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (cursor[0] >= buf.length) return -1;
+            int b = buf[cursor[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        return -1;
+    }
+
+    // Writes an unsigned LEB128 varint at cursor[0], advancing the cursor.
+    private static void writeVarint(byte[] buf, int[] cursor, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[cursor[0]++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[cursor[0]++] = (byte) value;
     }
 
-    /** Serializes this SaveGame to an array of bytes. */
+    /**
+     * Serializes this SaveGame to an array of bytes, as a full image in the compact binary
+     * format. This does not mark the SaveGame clean; see {@link #markClean()}.
+     */
     public byte[] toBytes() {
-        return toString().getBytes();
+        byte[] data = new byte[BINARY_HEADER_SIZE + packedSize(mLevelStars.length)];
+        data[0] = BINARY_MAGIC[0];
+        data[1] = BINARY_MAGIC[1];
+        data[2] = (byte) BINARY_VERSION;
+        data[3] = (byte) mLevelsPerWorld;
+        data[4] = (byte) (mWorlds >> 8);
+        data[5] = (byte) mWorlds;
+        for (int i = 0; i < mLevelStars.length; i++) {
+            if (mLevelStars[i] != 0) {
+                writePacked(data, BINARY_HEADER_SIZE, i, mLevelStars[i]);
+            }
+        }
+        return data;
+    }
+
+    // Number of bytes needed to hold the given number of packed levels.
+    private static int packedSize(int levels) {
+        return (levels * BITS_PER_LEVEL + 7) / 8;
+    }
+
+    // Reads the star count of the level at the given index from a packed array.
+    private static int readPacked(byte[] buf, int offset, int index) {
+        int bit = index * BITS_PER_LEVEL;
+        int pos = offset + (bit >> 3);
+        int shift = bit & 7;
+        int bits = buf[pos] & 0xFF;
+        if (shift + BITS_PER_LEVEL > 8) {
+            bits |= (buf[pos + 1] & 0xFF) << 8;
+        }
+        return (bits >> shift) & ((1 << BITS_PER_LEVEL) - 1);
+    }
+
+    // Writes the star count of the level at the given index to a zeroed packed array.
+    private static void writePacked(byte[] buf, int offset, int index, int stars) {
+        int bit = index * BITS_PER_LEVEL;
+        int pos = offset + (bit >> 3);
+        int shift = bit & 7;
+        int bits = stars << shift;
+        buf[pos] |= (byte) bits;
+        if (shift + BITS_PER_LEVEL > 8) {
+            buf[pos + 1] |= (byte) (bits >> 8);
+        }
+    }
+
+    // Returns the world part of a level name like "2-8", or -1 if it isn't well formed.
+    private static int parseWorld(String levelName) {
+        int dash = levelName.indexOf('-');
+        return dash < 0 ? -1 : parsePositiveInt(levelName, 0, dash);
+    }
+
+    // Returns the level part of a level name like "2-8", or -1 if it isn't well formed.
+    private static int parseLevel(String levelName) {
+        int dash = levelName.indexOf('-');
+        return dash < 0 ? -1 : parsePositiveInt(levelName, dash + 1, levelName.length());
+    }
+
+    private static int parsePositiveInt(String s, int start, int end) {
+        if (start >= end || end - start > 5) return -1;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // Returns whether the grid would have to grow past MAX_NAMED_GRID_SIZE to hold the level.
+    private boolean outgrowsNamedGrid(int world, int level) {
+        return (world > mWorlds || level > mLevelsPerWorld) && (long) Math.max(world, mWorlds)
+                * Math.max(level, mLevelsPerWorld) > MAX_NAMED_GRID_SIZE;
+    }
+
+    /**
+     * Grows the level grid so that it has room for at least the given number of worlds and
+     * levels per world. Existing star counts keep their world and level.
+     */
+    private void ensureCapacity(int worlds, int levelsPerWorld) {
+        if (worlds <= mWorlds && levelsPerWorld <= mLevelsPerWorld) return;
+        if (worlds > MAX_WORLDS || levelsPerWorld > MAX_LEVELS_PER_WORLD) {
+            throw new IllegalArgumentException("Level grid too large: " + worlds + "x"
+                    + levelsPerWorld);
+        }
+
+        int newWorlds = Math.max(worlds, mWorlds);
+        int newLevelsPerWorld = Math.max(levelsPerWorld, mLevelsPerWorld);
+        byte[] newLevelStars = new byte[newWorlds * newLevelsPerWorld];
+        for (int w = 0; w < mWorlds; w++) {
+            System.arraycopy(mLevelStars, w * mLevelsPerWorld, newLevelStars,
+                    w * newLevelsPerWorld, mLevelsPerWorld);
+        }
+        BitSet newDirtyLevels = new BitSet(newLevelStars.length);
+        for (int i = mDirtyLevels.nextSetBit(0); i >= 0; i = mDirtyLevels.nextSetBit(i + 1)) {
+            newDirtyLevels.set((i / mLevelsPerWorld) * newLevelsPerWorld + i % mLevelsPerWorld);
+        }
+        mLevelStars = newLevelStars;
+        mDirtyLevels = newDirtyLevels;
+        mWorlds = newWorlds;
+        mLevelsPerWorld = newLevelsPerWorld;
     }
 
     /** Serializes this SaveGame to a JSON string. */
@@ -109,8 +445,11 @@ public class SaveGame{
     public String toString() {
         try {
             JSONObject levels = new JSONObject();
-            for (String levelName : mLevelStars.keySet()) {
-                levels.put(levelName, mLevelStars.get(levelName));
+            for (int i = 0; i < mLevelStars.length; i++) {
+                if (mLevelStars[i] != 0) {
+                    levels.put(String.valueOf(i / mLevelsPerWorld + 1) + "-"
+                            + String.valueOf(i % mLevelsPerWorld + 1), mLevelStars[i]);
+                }
             }
 
             JSONObject obj = new JSONObject();
@@ -134,39 +473,60 @@ public class SaveGame{
      */
     public SaveGame unionWith(SaveGame other) {
         SaveGame result = clone();
-        for (String levelName : other.mLevelStars.keySet()) {
-            int existingStars = result.getLevelStars(levelName);
-            int newStars = other.getLevelStars(levelName);
+        result.mergeMax(other);
+        return result;
+    }
 
-            // only overwrite if number of stars is greater
-            if (newStars > existingStars) {
-                result.setLevelStars(levelName, newStars);
+    /**
+     * Merges the given SaveGame into this one, in place. Afterwards every level has the
+     * greatest number of stars it had in either SaveGame. This does not allocate unless the
+     * other SaveGame has levels outside this one's grid.
+     *
+     * @param other The SaveGame to merge into this one.
+     */
+    public void mergeMax(SaveGame other) {
+        ensureCapacity(other.mWorlds, other.mLevelsPerWorld);
+        markAllDirty();
+        byte[] dst = mLevelStars, src = other.mLevelStars;
+        if (other.mLevelsPerWorld == mLevelsPerWorld) {
+            // same layout: a single linear pass over the overlapping levels
+            maxInto(dst, 0, src, 0, src.length);
+        } else {
+            for (int w = 0; w < other.mWorlds; w++) {
+                maxInto(dst, w * mLevelsPerWorld, src, w * other.mLevelsPerWorld,
+                        other.mLevelsPerWorld);
             }
+        }
+    }
 
-            // note that this code doesn't preserve mappings from a level to the value 0,
-            // but that is not a problem because, in our semantics, the absence of a mapping
-            // is equivalent to mapping to 0 stars.
+    // Stores the element-wise max of dst and src into dst. The unconditional store keeps
+    // the loop branch-free so the JIT can vectorize it.
+    private static void maxInto(byte[] dst, int dstPos, byte[] src, int srcPos, int length) {
+        for (int i = 0; i < length; i++) {
+            int a = dst[dstPos + i], b = src[srcPos + i];
+            dst[dstPos + i] = (byte) (a > b ? a : b);
         }
-        return result;
     }
 
     /** Returns a clone of this SaveGame object. */
     public SaveGame clone() {
-        SaveGame result = new SaveGame();
-        for (String levelName : mLevelStars.keySet()) {
-            result.setLevelStars(levelName, getLevelStars(levelName));
-        }
+        SaveGame result = new SaveGame(mWorlds, mLevelsPerWorld);
+        System.arraycopy(mLevelStars, 0, result.mLevelStars, 0, mLevelStars.length);
         return result;
     }
 
     /** Resets this SaveGame object to be empty. Empty means no stars on no levels. */
     public void zero() {
-        mLevelStars.clear();
+        Arrays.fill(mLevelStars, (byte) 0);
+        markAllDirty();
     }
 
     /** Returns whether or not this SaveGame is empty. Empty means no stars on no levels. */
     public boolean isZero() {
-        return mLevelStars.keySet().size() == 0;
+        for (byte stars : mLevelStars) {
+            if (stars != 0) return false;
+        }
+        return true;
     }
 
     /** Save this SaveGame object to a SharedPreferences. */
@@ -181,8 +541,8 @@ public class SaveGame{
      * in the save game, will return 0.
      */
     public int getLevelStars(String levelName) {
-        Integer r = mLevelStars.get(levelName);
-        return r == null ? 0 : r;
+        int world = parseWorld(levelName), level = parseLevel(levelName);
+        return world < 1 || level < 1 ? 0 : getLevelStars(world, level);
     }
 
     /**
@@ -190,26 +550,45 @@ public class SaveGame{
      * in the save game, will return 0.
      */
     public int getLevelStars(int world, int level) {
-        return getLevelStars(String.valueOf(world) + "-" + String.valueOf(level));
+        if (world < 1 || world > mWorlds || level < 1 || level > mLevelsPerWorld) return 0;
+        return mLevelStars[(world - 1) * mLevelsPerWorld + level - 1];
     }
 
-    /** Sets how many stars the player has on the given level. */
+    /**
+     * Sets how many stars the player has on the given level. Level names that aren't of the
+     * form "world-level", or that name a level too far out to keep, are ignored.
+     */
     public void setLevelStars(String levelName, int stars) {
-        if (stars < MIN_STARS) stars = MIN_STARS;
-        if (stars > MAX_STARS) stars = MAX_STARS;
-        if (stars == 0) {
-            // zero stars means remove it from the map
-            if (mLevelStars.containsKey(levelName)) {
-                mLevelStars.remove(levelName);
-            }
-        } else {
-            mLevelStars.put(levelName, stars);
+        int world = parseWorld(levelName), level = parseLevel(levelName);
+        if (world < 1 || level < 1) {
+            Log.w(TAG, "Ignoring stars for malformed level name: " + levelName);
+            return;
+        }
+        if (world > MAX_WORLDS || level > MAX_LEVELS_PER_WORLD
+                || outgrowsNamedGrid(world, level)) {
+            Log.w(TAG, "Ignoring stars for out-of-range level: " + levelName);
+            return;
         }
+        setLevelStars(world, level, stars);
     }
 
     /** Sets how many stars the player has on the given level. */
     public void setLevelStars(int world, int level, int stars) {
-        setLevelStars(String.valueOf(world) + "-" + String.valueOf(level), stars);
+        if (world < 1 || level < 1) {
+            throw new IllegalArgumentException("Invalid level " + world + "-" + level);
+        }
+        if (stars < MIN_STARS) stars = MIN_STARS;
+        if (stars > MAX_STARS) stars = MAX_STARS;
+        if (world > mWorlds || level > mLevelsPerWorld) {
+            // zero stars is what levels outside the grid already have
+            if (stars == 0) return;
+            ensureCapacity(world, level);
+        }
+        int index = (world - 1) * mLevelsPerWorld + level - 1;
+        if (mLevelStars[index] != stars) {
+            mLevelStars[index] = (byte) stars;
+            mDirtyLevels.set(index);
+        }
     }
 
     /**  Implementation of Snapshot interface.  */
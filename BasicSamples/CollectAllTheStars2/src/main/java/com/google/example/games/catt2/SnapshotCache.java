@@ -0,0 +1,228 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Local copy of the snapshots we committed or loaded, so the game can show the player's
+ * progress as soon as it starts, before the Saved Games service has answered.
+ *
+ * Each snapshot is kept in its own file, keyed by its unique name, holding the payload and the
+ * last modified timestamp of the snapshot's metadata. Files are read through a memory map and
+ * replaced atomically when written. The name of the snapshot used last is kept alongside, so
+ * that startup knows which one to read.
+ *
+ * Writes may run on several threads at once, each through its own temporary file. A write
+ * started before the last {@link #clear()}, as told by {@link #getGeneration()}, is dropped,
+ * so that a load or commit still in flight at sign-out doesn't bring the cache back.
+ */
+class SnapshotCache {
+
+    private static final String TAG = "SnapshotCache";
+
+    private static final String DIR_NAME = "snapshot_cache";
+    private static final String PREFS_NAME = "snapshot_cache";
+    private static final String KEY_LAST_NAME = "last_unique_name";
+
+    // File layout: magic, format version, last modified timestamp, payload length, payload.
+    private static final int MAGIC = 0xCA72CAC4;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    /** A cached snapshot. */
+    static class Entry {
+        final String uniqueName;
+        final byte[] payload;
+        final long lastModifiedTimestamp;
+
+        Entry(String uniqueName, byte[] payload, long lastModifiedTimestamp) {
+            this.uniqueName = uniqueName;
+            this.payload = payload;
+            this.lastModifiedTimestamp = lastModifiedTimestamp;
+        }
+    }
+
+    private final File mDir;
+    private final SharedPreferences mPrefs;
+
+    // Number of clear() calls so far. Guarded by this.
+    private int mGeneration = 0;
+
+    SnapshotCache(Context context) {
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** Returns the unique name of the snapshot cached last, or null if there is none. */
+    String getLastUniqueName() {
+        return mPrefs.getString(KEY_LAST_NAME, null);
+    }
+
+    /** Returns the snapshot cached last, or null if there is none or it can't be read. */
+    Entry readLast() {
+        String name = getLastUniqueName();
+        return name == null ? null : read(name);
+    }
+
+    /**
+     * Returns the cached copy of the given snapshot, or null if there is none or it can't be
+     * read. This only maps a small file, so it is fast enough to call while starting up.
+     */
+    Entry read(String uniqueName) {
+        File file = fileFor(uniqueName);
+        if (!file.exists()) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                Log.w(TAG, "Cache file for " + uniqueName + " is truncated.");
+                return null;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                Log.w(TAG, "Cache file for " + uniqueName + " has an unknown format.");
+                return null;
+            }
+            long lastModified = map.getLong();
+            int length = map.getInt();
+            if (length < 0 || length > map.remaining()) {
+                Log.w(TAG, "Cache file for " + uniqueName + " is truncated.");
+                return null;
+            }
+            byte[] payload = new byte[length];
+            map.get(payload);
+            Log.d(TAG, "Read " + length + " cached bytes of " + uniqueName + " in "
+                    + (System.nanoTime() - startNanos) / 1000 + " us");
+            return new Entry(uniqueName, payload, lastModified);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read cache file for " + uniqueName, e);
+            return null;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /** Returns the generation to pass to {@link #write}, taken when the write is started. */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Stores the payload of the given snapshot, replacing any previous copy, and remembers it
+     * as the snapshot cached last. Does disk I/O, so call it off the main thread.
+     *
+     * @param generation what {@link #getGeneration()} returned when the write was started.
+     * @return true if the payload was stored.
+     */
+    boolean write(String uniqueName, byte[] payload, long lastModifiedTimestamp,
+            int generation) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Couldn't create " + mDir);
+            return false;
+        }
+        File file = fileFor(uniqueName);
+        File tmp = null;
+        FileOutputStream out = null;
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", mDir);
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            buf.putInt(MAGIC).putInt(VERSION).putLong(lastModifiedTimestamp)
+                    .putInt(payload.length).put(payload);
+            out = new FileOutputStream(tmp);
+            out.write(buf.array());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write cache file for " + uniqueName, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return false;
+        } finally {
+            close(out);
+        }
+        synchronized (this) {
+            if (generation != mGeneration) {
+                Log.d(TAG, "Cache was cleared since writing " + uniqueName + " started.");
+                tmp.delete();
+                return false;
+            }
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Couldn't replace cache file for " + uniqueName);
+                tmp.delete();
+                return false;
+            }
+            mPrefs.edit().putString(KEY_LAST_NAME, uniqueName).commit();
+        }
+        return true;
+    }
+
+    /**
+     * Deletes every cached snapshot, for instance when the player signs out, and drops the
+     * writes started before.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mPrefs.edit().remove(KEY_LAST_NAME).commit();
+    }
+
+    private File fileFor(String uniqueName) {
+        // unique names are chosen by whoever created the snapshot, so don't use them as is
+        StringBuilder sb = new StringBuilder(uniqueName.length() * 2);
+        for (int i = 0; i < uniqueName.length(); i++) {
+            char c = uniqueName.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_').append(Integer.toHexString(c)).append('_');
+            }
+        }
+        return new File(mDir, sb.toString() + ".bin");
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't close cache file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.util.Log;
+
+import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotContents;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the SaveGame into a snapshot's contents incrementally. When the snapshot still holds
+ * exactly what we last committed to it, by length and CRC32, only a patch with the levels
+ * that changed since then is appended. Every MAX_PATCHES commits, or whenever the snapshot was
+ * changed by someone else, a full image is written instead, which compacts the patches away.
+ *
+ * All methods must be called on the main thread. Commits may overlap: each write returns the
+ * state its commit will leave the snapshot in, to hand back when that commit finishes.
+ */
+class SnapshotPayloadWriter {
+
+    private static final String TAG = "SnapshotPayloadWriter";
+
+    // How many patches may be appended to a full image before it's compacted.
+    static final int MAX_PATCHES = 16;
+
+    // Unique name, length and CRC32 of the snapshot contents we last committed successfully,
+    // or null and -1 if we don't know what the snapshot holds. Another device's image of the
+    // same grid has the same length, so the length alone doesn't tell.
+    private String mCommittedName = null;
+    private int mCommittedLength = -1;
+    private long mCommittedCrc = 0;
+    private int mCommittedPatches = 0;
+
+    /** What a commit in flight will leave in the snapshot, if it succeeds. */
+    static class Pending {
+        final String name;
+        final int length;
+        final long crc;
+        final int patches;
+
+        // Number of payload bytes written for this commit.
+        final int payloadBytes;
+
+        Pending(String name, int length, long crc, int patches, int payloadBytes) {
+            this.name = name;
+            this.length = length;
+            this.crc = crc;
+            this.patches = patches;
+            this.payloadBytes = payloadBytes;
+        }
+    }
+
+    /**
+     * Writes the given SaveGame into the snapshot's contents, as a patch if possible and as a
+     * full image otherwise. The changes written are marked clean in the SaveGame; call
+     * {@link #onCommitFinished} with the result once the snapshot has been committed.
+     */
+    Pending write(SaveGame saveGame, Snapshot snapshot) {
+        SnapshotContents contents = snapshot.getSnapshotContents();
+        String name = snapshot.getMetadata().getUniqueName();
+        int existingLength;
+        CRC32 crc = new CRC32();
+        try {
+            byte[] existing = contents.readFully();
+            existingLength = existing.length;
+            crc.update(existing);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read snapshot contents; writing a full image.", e);
+            existingLength = -1;
+        }
+
+        if (saveGame.canPatch() && mCommittedPatches < MAX_PATCHES
+                && name.equals(mCommittedName) && existingLength == mCommittedLength
+                && crc.getValue() == mCommittedCrc) {
+            // the snapshot holds what we last committed, so appending our changes is enough
+            byte[] patch = saveGame.takePatch();
+            contents.modifyBytes(existingLength, patch, 0, patch.length);
+            crc.update(patch);
+            Pending pending = new Pending(name, existingLength + patch.length, crc.getValue(),
+                    mCommittedPatches + 1, patch.length);
+            Log.d(TAG, "Appended " + patch.length + " byte patch to " + name
+                    + " (" + pending.patches + " since last full image)");
+            return pending;
+        }
+
+        byte[] image = saveGame.toBytes();
+        saveGame.markClean();
+        contents.writeBytes(image);
+        Log.d(TAG, "Wrote " + image.length + " byte full image to " + name);
+        crc.reset();
+        crc.update(image);
+        return new Pending(name, image.length, crc.getValue(), 0, image.length);
+    }
+
+    /**
+     * Called when the commit of the contents {@link #write} returned the given pending state
+     * for finishes. If it failed, the SaveGame is marked so that the next write is a full image.
+     */
+    void onCommitFinished(Pending pending, SaveGame saveGame, boolean success) {
+        if (success) {
+            mCommittedName = pending.name;
+            mCommittedLength = pending.length;
+            mCommittedCrc = pending.crc;
+            mCommittedPatches = pending.patches;
+        } else {
+            mCommittedName = null;
+            mCommittedLength = -1;
+            saveGame.markAllDirty();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Write-behind saver for the game's snapshot. Instead of committing the snapshot every time
+ * the save game changes, callers mark it dirty with {@link #requestSave()}. All the requests
+ * made within a window are coalesced into a single commit, and at most one commit is in flight
+ * at any time; changes made while a commit is in flight are saved by the next one.
+ *
+ * All methods must be called on the main thread.
+ */
+class SnapshotSaver {
+
+    private static final String TAG = "SnapshotSaver";
+
+    /** Performs the actual commit of the current game state. */
+    interface Committer {
+        /**
+         * Starts committing the current game state. Implementations must eventually call
+         * {@link SnapshotSaver#onCommitFinished(boolean)}.
+         */
+        void commit();
+
+        /** Returns whether a commit can start now; while it can't, changes are held. */
+        boolean canCommit();
+    }
+
+    private final Handler mHandler = new Handler();
+    private final Committer mCommitter;
+    private final long mWindowMillis;
+
+    // Is there state that hasn't been handed to the committer yet?
+    private boolean mDirty = false;
+
+    // Is a commit currently in flight?
+    private boolean mInFlight = false;
+
+    // Is a delayed flush currently scheduled?
+    private boolean mFlushScheduled = false;
+
+    // Was flush() called while a commit was in flight?
+    private boolean mFlushRequested = false;
+
+    // Counters, for diagnostics.
+    private int mSavesRequested = 0;
+    private int mSavesCommitted = 0;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    /**
+     * @param windowMillis how long to wait after the first change before committing, so that
+     *                     further changes can be coalesced into the same commit.
+     * @param committer    performs the actual commits.
+     */
+    SnapshotSaver(long windowMillis, Committer committer) {
+        mWindowMillis = windowMillis;
+        mCommitter = committer;
+    }
+
+    /** Marks the game state as changed; it will be committed within the coalescing window. */
+    void requestSave() {
+        mSavesRequested++;
+        mDirty = true;
+        if (!mInFlight) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Commits any pending changes right away, for instance when the activity is stopping. If a
+     * commit is in flight, the pending changes are committed as soon as it finishes; if no
+     * commit can start, they're held until {@link #onCommitterReady()}.
+     */
+    void flush() {
+        cancelScheduledFlush();
+        if (mInFlight) {
+            mFlushRequested = true;
+            return;
+        }
+        mFlushRequested = false;
+        if (!mDirty) {
+            return;
+        }
+        if (!mCommitter.canCommit()) {
+            Log.d(TAG, "Can't commit now; holding changes.");
+            return;
+        }
+        mDirty = false;
+        mInFlight = true;
+        Log.d(TAG, "Committing snapshot (" + mSavesRequested + " saves requested, "
+                + mSavesCommitted + " committed)");
+        mCommitter.commit();
+    }
+
+    /** Called when commits can start again, for instance on connecting; saves held changes. */
+    void onCommitterReady() {
+        if (mDirty && !mInFlight) {
+            scheduleFlush();
+        }
+    }
+
+    /** Drops any pending changes, for instance when the player signs out. */
+    void cancel() {
+        cancelScheduledFlush();
+        mFlushRequested = false;
+        mDirty = false;
+    }
+
+    /** Called by the committer when the commit started by {@link Committer#commit()} ends. */
+    void onCommitFinished(boolean success) {
+        mInFlight = false;
+        if (success) {
+            mSavesCommitted++;
+        }
+        if (mDirty) {
+            // the game changed while the commit was in flight
+            if (mFlushRequested) {
+                flush();
+            } else {
+                scheduleFlush();
+            }
+        } else if (!success) {
+            // Keep the changes for the next commit, but don't retry on our own: the failure
+            // may be a conflict that the player is resolving right now.
+            Log.w(TAG, "Snapshot commit failed; changes will be saved with the next one.");
+            mDirty = true;
+        }
+    }
+
+    /** Returns how many saves have been requested through {@link #requestSave()}. */
+    int getSavesRequested() {
+        return mSavesRequested;
+    }
+
+    /** Returns how many commits have completed successfully. */
+    int getSavesCommitted() {
+        return mSavesCommitted;
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled && mCommitter.canCommit()) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+        }
+    }
+
+    private void cancelScheduledFlush() {
+        if (mFlushScheduled) {
+            mFlushScheduled = false;
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+    }
+}
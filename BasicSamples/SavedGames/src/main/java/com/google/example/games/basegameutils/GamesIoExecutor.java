@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.basegameutils;
+
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs blocking Games API calls (the ones made with {@code PendingResult.await()}) off the main
+ * thread. This replaces one-off AsyncTasks, which all share a single serial executor: there, a
+ * slow snapshot open holds up every other task queued behind it.
+ *
+ * Tasks run on a small, bounded pool of background threads. When all threads are busy, queued
+ * tasks are started in order of priority (loads, then saves, then listings), and in submission
+ * order within the same priority. Each task can be tied to an owner, usually an Activity, so
+ * that {@link #cancelAll(Object)} can drop everything it started when it stops.
+ *
+ * Usage:
+ * <pre>
+ * GamesIoExecutor.getInstance().execute(this, GamesIoExecutor.PRIORITY_LOAD,
+ *         new GamesIoExecutor.Task&lt;Snapshots.OpenSnapshotResult&gt;() {
+ *             protected Snapshots.OpenSnapshotResult doInBackground() {
+ *                 return Games.Snapshots.open(mGoogleApiClient, name, false).await();
+ *             }
+ *             protected void onPostExecute(Snapshots.OpenSnapshotResult result) {
+ *                 ...
+ *             }
+ *         });
+ * ...
+ * protected void onStop() {
+ *     GamesIoExecutor.getInstance().cancelAll(this);
+ *     super.onStop();
+ * }
+ * </pre>
+ */
+public class GamesIoExecutor {
+
+    private static final String TAG = "GamesIoExecutor";
+
+    /** Priority of operations that load data the player is waiting to see. */
+    public static final int PRIORITY_LOAD = 0;
+
+    /** Priority of operations that save or resolve the player's data. */
+    public static final int PRIORITY_SAVE = 1;
+
+    /** Priority of operations that list data, such as the player's snapshots. */
+    public static final int PRIORITY_LIST = 2;
+
+    // Number of background threads. Games API calls mostly wait on the network, so this is
+    // small but more than one, so that a slow call doesn't block everything else.
+    public static final int POOL_SIZE = 3;
+
+    // How long an idle background thread is kept around.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static GamesIoExecutor sInstance = null;
+
+    /**
+     * An operation run by the executor. Like an AsyncTask, {@link #doInBackground()} runs on a
+     * background thread and its result is delivered to {@link #onPostExecute(Object)} on the
+     * main thread, unless the task was cancelled first, in which case {@link #onCancelled()} is
+     * called instead. {@link #onCancelled()} is also called if doInBackground() throws.
+     */
+    public static abstract class Task<Result> implements Runnable, Comparable<Task<?>> {
+        private final AtomicInteger mState = new AtomicInteger(STATE_NEW);
+        private GamesIoExecutor mExecutor;
+        private Object mOwner;
+        private int mPriority;
+        private long mSequence;
+
+        private static final int STATE_NEW = 0;
+        private static final int STATE_QUEUED = 1;
+        private static final int STATE_FINISHED = 2;
+        private static final int STATE_CANCELLED = 3;
+
+        /** Performs the operation, on a background thread. */
+        protected abstract Result doInBackground();
+
+        /** Receives the result of {@link #doInBackground()}, on the main thread. */
+        protected void onPostExecute(Result result) {
+        }
+
+        /**
+         * Called on the main thread instead of onPostExecute() when the task is cancelled, or
+         * when doInBackground() threw.
+         */
+        protected void onCancelled() {
+        }
+
+        /**
+         * Cancels the task. If it hasn't started, it won't; if it is running, its result is
+         * dropped. Either way, {@link #onCancelled()} is called on the main thread.
+         *
+         * @return true if the task was cancelled, false if it had already finished or been
+         *         cancelled.
+         */
+        public final boolean cancel() {
+            if (!mState.compareAndSet(STATE_QUEUED, STATE_CANCELLED)) {
+                return false;
+            }
+            mExecutor.onCancelled(this);
+            return true;
+        }
+
+        /** Returns whether the task was cancelled. */
+        public final boolean isCancelled() {
+            return mState.get() == STATE_CANCELLED;
+        }
+
+        @Override
+        public final void run() {
+            if (isCancelled()) {
+                return;
+            }
+            Result result = null;
+            boolean failed = false;
+            try {
+                result = doInBackground();
+            } catch (RuntimeException e) {
+                // the task still has to leave the active tasks, and its owner hear about it
+                Log.e(TAG, "Task " + this + " failed", e);
+                failed = true;
+            }
+            final Result finalResult = result;
+            final boolean finalFailed = failed;
+            mExecutor.mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mState.compareAndSet(STATE_QUEUED, STATE_FINISHED)) {
+                        mExecutor.remove(Task.this);
+                        if (finalFailed) {
+                            onCancelled();
+                        } else {
+                            onPostExecute(finalResult);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public final int compareTo(Task<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final ThreadPoolExecutor mPool;
+
+    // Tasks submitted and not yet finished or cancelled. Only touched on the main thread.
+    private final ArrayList<Task<?>> mActiveTasks = new ArrayList<Task<?>>();
+
+    /** Returns the executor shared by the whole app. Must be called on the main thread. */
+    public static GamesIoExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new GamesIoExecutor(POOL_SIZE);
+        }
+        return sInstance;
+    }
+
+    GamesIoExecutor(int poolSize) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "GamesIo #" + mCount.getAndIncrement());
+            }
+        };
+        mPool = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task. Must be called on the main thread.
+     *
+     * @param owner the object whose {@link #cancelAll(Object)} call should cancel this task,
+     *              usually the calling Activity. Tasks with a null owner, such as saves that
+     *              should finish even after the Activity stops, can only be cancelled one by
+     *              one through {@link Task#cancel()}.
+     * @param priority one of {@link #PRIORITY_LOAD}, {@link #PRIORITY_SAVE} or
+     *                 {@link #PRIORITY_LIST}.
+     * @param task the task to run. A task can only be executed once.
+     * @return the task.
+     */
+    public <Result> Task<Result> execute(Object owner, int priority, Task<Result> task) {
+        if (!task.mState.compareAndSet(Task.STATE_NEW, Task.STATE_QUEUED)) {
+            throw new IllegalStateException("Task has already been executed.");
+        }
+        task.mExecutor = this;
+        task.mOwner = owner;
+        task.mPriority = priority;
+        task.mSequence = mNextSequence.getAndIncrement();
+        mActiveTasks.add(task);
+        mPool.execute(task);
+        return task;
+    }
+
+    /**
+     * Cancels every task submitted with the given owner that hasn't finished yet, typically
+     * from the owner's onStop(). Must be called on the main thread.
+     *
+     * @return the number of tasks cancelled.
+     */
+    public int cancelAll(Object owner) {
+        if (owner == null) {
+            return 0;
+        }
+        ArrayList<Task<?>> toCancel = new ArrayList<Task<?>>();
+        for (Task<?> task : mActiveTasks) {
+            if (task.mOwner == owner) {
+                toCancel.add(task);
+            }
+        }
+        int cancelled = 0;
+        for (Task<?> task : toCancel) {
+            if (task.cancel()) {
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            Log.d(TAG, "Cancelled " + cancelled + " task(s) of " + owner);
+        }
+        return cancelled;
+    }
+
+    /** Returns the number of tasks submitted and not yet finished or cancelled. */
+    public int getActiveTaskCount() {
+        return mActiveTasks.size();
+    }
+
+    private void onCancelled(final Task<?> task) {
+        // queued tasks don't need to hold a thread until their turn comes
+        mPool.remove(task);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                remove(task);
+                task.onCancelled();
+            }
+        });
+    }
+
+    private void remove(Task<?> task) {
+        mActiveTasks.remove(task);
+    }
+}
@@ -21,7 +21,6 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -40,6 +39,7 @@ import com.google.android.gms.games.snapshot.SnapshotMetadata;
 import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
 import com.google.android.gms.games.snapshot.Snapshots;
 import com.google.example.games.basegameutils.BaseGameUtils;
+import com.google.example.games.basegameutils.GamesIoExecutor;
 
 import java.io.IOException;
 
@@ -121,6 +121,8 @@ public class MainActivity extends Activity implements View.OnClickListener,
     @Override
     protected void onStop() {
         super.onStop();
+        // The client is about to disconnect, so pending operations can't complete anyway.
+        GamesIoExecutor.getInstance().cancelAll(this);
         if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
             mGoogleApiClient.disconnect();
         }
@@ -339,14 +341,10 @@ public class MainActivity extends Activity implements View.OnClickListener,
         final long playedTimeMillis = 60 * 60 * 1000;
         final Bitmap bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.ic_launcher);
 
-        AsyncTask<Void, Void, Boolean> migrateTask = new AsyncTask<Void, Void, Boolean>() {
+        showProgressDialog("Migrating");
+        GamesIoExecutor.Task<Boolean> migrateTask = new GamesIoExecutor.Task<Boolean>() {
             @Override
-            protected void onPreExecute() {
-                showProgressDialog("Migrating");
-            }
-
-            @Override
-            protected Boolean doInBackground(Void... params) {
+            protected Boolean doInBackground() {
                 // Get AppState Data
                 AppStateManager.StateResult load = AppStateManager.load(
                         mGoogleApiClient, APP_STATE_KEY).await();
@@ -408,8 +406,13 @@ public class MainActivity extends Activity implements View.OnClickListener,
                 dismissProgressDialog();
                 clearDataUI();
             }
+
+            @Override
+            protected void onCancelled() {
+                dismissProgressDialog();
+            }
         };
-        migrateTask.execute();
+        GamesIoExecutor.getInstance().execute(this, GamesIoExecutor.PRIORITY_SAVE, migrateTask);
     }
 
     /**
@@ -475,14 +478,10 @@ public class MainActivity extends Activity implements View.OnClickListener,
         // Use the data from the EditText as the new Snapshot data.
         final byte[] data = getData().getBytes();
 
-        AsyncTask<Void, Void, Boolean> updateTask = new AsyncTask<Void, Void, Boolean>() {
+        showProgressDialog("Updating Saved Game");
+        GamesIoExecutor.Task<Boolean> updateTask = new GamesIoExecutor.Task<Boolean>() {
             @Override
-            protected void onPreExecute() {
-                showProgressDialog("Updating Saved Game");
-            }
-
-            @Override
-            protected Boolean doInBackground(Void... params) {
+            protected Boolean doInBackground() {
                 Snapshots.OpenSnapshotResult open = Games.Snapshots.open(
                         mGoogleApiClient, snapshotName, createIfMissing).await();
 
@@ -518,8 +517,13 @@ public class MainActivity extends Activity implements View.OnClickListener,
                 dismissProgressDialog();
                 clearDataUI();
             }
+
+            @Override
+            protected void onCancelled() {
+                dismissProgressDialog();
+            }
         };
-        updateTask.execute();
+        GamesIoExecutor.getInstance().execute(this, GamesIoExecutor.PRIORITY_SAVE, updateTask);
     }
 
     /**
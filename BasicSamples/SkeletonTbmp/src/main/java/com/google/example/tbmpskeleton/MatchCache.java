@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.tbmpskeleton;
+
+import android.util.Log;
+
+import com.google.android.gms.games.multiplayer.turnbased.TurnBasedMatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the last state we saw of each match, keyed by match ID, so that what the match update
+ * listener and the results of our own actions tell us isn't thrown away. A state is only
+ * replaced by a newer one, by last-updated timestamp then match version, so that an update
+ * that arrives late can't roll a match back.
+ *
+ * The data of a match where it's our turn is decoded in the background as soon as we get it,
+ * or load it from its file, so that opening the match, from the inbox or from the update
+ * itself, doesn't have to decode it. The cache is kept in files, one per match, written in the
+ * background in the order the states came in, and loaded in the background when the cache is
+ * opened; until then, it reports misses, which only cost us the decoding.
+ */
+final class MatchCache {
+
+    private static final String TAG = "MatchCache";
+
+    // File format: FILE_MAGIC, FILE_VERSION, then the fields of an Entry, in order; the data
+    // as an int length, or -1 for none, and that many bytes.
+    private static final int FILE_MAGIC = 0x4D434348;
+    private static final int FILE_VERSION = 1;
+    private static final String FILE_SUFFIX = ".match";
+
+    /** Most matches kept; the one updated least recently goes first. */
+    static final int MAX_ENTRIES = 64;
+
+    /** The state of a match, when we last saw it. */
+    static final class Entry {
+        final String matchId;
+        final long lastUpdated;
+        final int version;
+        final int status;
+        final int turnStatus;
+        final byte[] data;
+
+        // The data decoded in the background, until it's taken, or null.
+        private SkeletonTurn mDecoded;
+
+        Entry(String matchId, long lastUpdated, int version, int status, int turnStatus,
+                byte[] data) {
+            this.matchId = matchId;
+            this.lastUpdated = lastUpdated;
+            this.version = version;
+            this.status = status;
+            this.turnStatus = turnStatus;
+            this.data = data;
+        }
+
+        Entry(TurnBasedMatch match) {
+            this(match.getMatchId(), match.getLastUpdatedTimestamp(), match.getVersion(),
+                    match.getStatus(), match.getTurnStatus(), match.getData());
+        }
+
+        /** Returns whether this state is newer than the given one. */
+        boolean isNewerThan(Entry other) {
+            return lastUpdated != other.lastUpdated
+                    ? lastUpdated > other.lastUpdated : version > other.version;
+        }
+
+        boolean isSameState(TurnBasedMatch match) {
+            return lastUpdated == match.getLastUpdatedTimestamp()
+                    && version == match.getVersion();
+        }
+
+        boolean isMyTurn() {
+            return status == TurnBasedMatch.MATCH_STATUS_ACTIVE
+                    && turnStatus == TurnBasedMatch.MATCH_TURN_STATUS_MY_TURN;
+        }
+
+        private synchronized void setDecoded(SkeletonTurn turn) {
+            mDecoded = turn;
+        }
+
+        private synchronized SkeletonTurn takeDecoded() {
+            SkeletonTurn turn = mDecoded;
+            mDecoded = null;
+            return turn;
+        }
+    }
+
+    private final File mDir;
+    private final Executor mIo;
+
+    // Set by close(), after which states are only kept in memory. Only touched on the main
+    // thread.
+    private boolean mClosed = false;
+
+    // Guarded by itself.
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * @param dir the directory the matches are kept in.
+     * @param io  runs the loading, decoding and writing, in order, on a background thread.
+     */
+    MatchCache(File dir, Executor io) {
+        mDir = dir;
+        mIo = io;
+    }
+
+    /** Loads the matches kept in files, in the background. */
+    void open() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Stops writing to the files, before the I/O executor is shut down. The states already
+     * handed to it are still written.
+     */
+    void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Keeps the state of a match, unless we have a newer one.
+     *
+     * @return false if the state was older than, or the same as, the one we have.
+     */
+    boolean put(TurnBasedMatch match) {
+        final Entry entry = new Entry(match);
+        if (!putEntry(entry)) {
+            return false;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                decode(entry);
+                write(entry);
+            }
+        });
+        return true;
+    }
+
+    /** Forgets a match, when it's removed or canceled. */
+    void remove(final String matchId) {
+        synchronized (mEntries) {
+            mEntries.remove(matchId);
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                fileOf(matchId).delete();
+            }
+        });
+    }
+
+    /** Returns the last state we saw of a match, or null. */
+    Entry get(String matchId) {
+        synchronized (mEntries) {
+            return mEntries.get(matchId);
+        }
+    }
+
+    /**
+     * Returns the turn data of a match, decoded in the background if we had it already, or
+     * decoded now otherwise. The turn is the caller's to change. Returns null if the data was
+     * written by a newer version of the game.
+     */
+    SkeletonTurn getTurnData(TurnBasedMatch match) {
+        Entry entry = get(match.getMatchId());
+        SkeletonTurn turn = entry != null && entry.isSameState(match) ? entry.takeDecoded() : null;
+        if (turn != null) {
+            Log.d(TAG, "Turn data of " + match.getMatchId() + " was decoded already");
+            return turn;
+        }
+        return SkeletonTurn.unpersist(match.getData());
+    }
+
+    // Keeps the entry if it's newer than the one we have, evicting the oldest if full.
+    private boolean putEntry(Entry entry) {
+        synchronized (mEntries) {
+            Entry current = mEntries.get(entry.matchId);
+            if (current != null && !entry.isNewerThan(current)) {
+                return false;
+            }
+            mEntries.put(entry.matchId, entry);
+            if (mEntries.size() > MAX_ENTRIES) {
+                Entry oldest = null;
+                for (Entry e : mEntries.values()) {
+                    if (oldest == null || e.lastUpdated < oldest.lastUpdated) {
+                        oldest = e;
+                    }
+                }
+                remove(oldest.matchId);
+            }
+            return true;
+        }
+    }
+
+    private File fileOf(String matchId) {
+        try {
+            return new File(mDir, URLEncoder.encode(matchId, "UTF-8") + FILE_SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Runs a task in the background, unless the cache is closed.
+    private void execute(Runnable task) {
+        if (mClosed) {
+            Log.d(TAG, "Closed; not writing to " + mDir);
+            return;
+        }
+        mIo.execute(task);
+    }
+
+    // On the background thread.
+    private void load() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        int loaded = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            Entry entry = read(file);
+            if (entry == null || !file.equals(fileOf(entry.matchId))) {
+                Log.w(TAG, "Dropping unreadable cached match " + file.getName());
+                file.delete();
+            } else if (putEntry(entry)) {
+                decode(entry);
+                loaded++;
+            }
+        }
+        Log.d(TAG, "Loaded " + loaded + " cached matches");
+    }
+
+    // On the background thread. Decodes the data of a match where it's our turn, unless a newer
+    // state came in since.
+    private void decode(Entry entry) {
+        if (entry.isMyTurn() && entry.data != null && get(entry.matchId) == entry) {
+            entry.setDecoded(SkeletonTurn.unpersist(entry.data));
+        }
+    }
+
+    // On the background thread. Returns null if the file can't be read.
+    private static Entry read(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            String matchId = in.readUTF();
+            long lastUpdated = in.readLong();
+            int version = in.readInt();
+            int status = in.readInt();
+            int turnStatus = in.readInt();
+            int length = in.readInt();
+            byte[] data = null;
+            if (length >= 0) {
+                if (length > file.length()) {
+                    return null;
+                }
+                data = new byte[length];
+                in.readFully(data);
+            }
+            return new Entry(matchId, lastUpdated, version, status, turnStatus, data);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // On the background thread. Writes to a temporary file first, so that a write that fails
+    // halfway leaves the previous state.
+    private void write(Entry entry) {
+        if (get(entry.matchId) != entry) {
+            // a newer state, or a removal, came in since; it's queued after us
+            return;
+        }
+        File file = fileOf(entry.matchId);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("Can't create " + mDir);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(entry.matchId);
+            out.writeLong(entry.lastUpdated);
+            out.writeInt(entry.version);
+            out.writeInt(entry.status);
+            out.writeInt(entry.turnStatus);
+            if (entry.data == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache match " + entry.matchId, e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
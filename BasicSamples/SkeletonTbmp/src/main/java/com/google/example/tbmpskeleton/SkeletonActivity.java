@@ -21,6 +21,7 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
@@ -34,6 +35,7 @@ import com.google.android.gms.games.GamesStatusCodes;
 import com.google.android.gms.games.multiplayer.Invitation;
 import com.google.android.gms.games.multiplayer.Multiplayer;
 import com.google.android.gms.games.multiplayer.OnInvitationReceivedListener;
+import com.google.android.gms.games.multiplayer.Participant;
 import com.google.android.gms.games.multiplayer.realtime.RoomConfig;
 import com.google.android.gms.games.multiplayer.turnbased.OnTurnBasedMatchUpdateReceivedListener;
 import com.google.android.gms.games.multiplayer.turnbased.TurnBasedMatch;
@@ -41,7 +43,11 @@ import com.google.android.gms.games.multiplayer.turnbased.TurnBasedMatchConfig;
 import com.google.android.gms.games.multiplayer.turnbased.TurnBasedMultiplayer;
 import com.google.example.games.basegameutils.BaseGameUtils;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -100,11 +106,30 @@ public class SkeletonActivity extends Activity
     // This is the current match we're in; null if not loaded
     public TurnBasedMatch mMatch;
 
+    // The order turns go in, in the current match; null if not loaded
+    private TurnOrder mTurnOrder;
+
+    // How the participants of a match take turns.
+    private static final TurnOrder.Ordering TURN_ORDERING = TurnOrder.SKIP_LEFT;
+
+    // The signed-in player's ID; null if not connected
+    private String mPlayerId;
+
     // This is the current match data after being unpersisted.
     // Do not retain references to match data once you have
     // taken an action on the match, such as takeTurn()
     public SkeletonTurn mTurnData;
 
+    // The last state we saw of each match.
+    private MatchCache mMatchCache;
+
+    // The thread that reads and writes the match cache and the turn journal, in order.
+    private ExecutorService mFileIo;
+
+    // Sends the turns we take, and the matches we finish or leave, from a journal that
+    // keeps them until the API has them, so that we don't have to wait for it.
+    private TurnSender mTurnSender;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -123,6 +148,32 @@ public class SkeletonActivity extends Activity
 
         mDataView = ((TextView) findViewById(R.id.data_view));
         mTurnTextView = ((TextView) findViewById(R.id.turn_counter_view));
+
+        mFileIo = Executors.newSingleThreadExecutor();
+        mMatchCache = new MatchCache(new File(getFilesDir(), "matches"), mFileIo);
+        mMatchCache.open();
+
+        Handler handler = new Handler();
+        TurnJournal journal = new TurnJournal(new File(getFilesDir(), "turn-journal"), mFileIo,
+                handler);
+        mTurnSender = new TurnSender(mGoogleApiClient, journal, handler, mTurnSenderListener);
+        journal.open(new Runnable() {
+            @Override
+            public void run() {
+                // send what was left from last time, if we're connected already
+                mTurnSender.resume();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        // stop feeding the file I/O first, then let the states and actions already queued be
+        // saved
+        mTurnSender.close();
+        mMatchCache.close();
+        mFileIo.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -135,6 +186,7 @@ public class SkeletonActivity extends Activity
     @Override
     protected void onStop() {
         super.onStop();
+        mTurnSender.pause();
         Log.d(TAG, "onStop(): Disconnecting from Google APIs");
         if (mGoogleApiClient.isConnected()) {
             mGoogleApiClient.disconnect();
@@ -145,6 +197,11 @@ public class SkeletonActivity extends Activity
     public void onConnected(Bundle connectionHint) {
         Log.d(TAG, "onConnected(): Connection successful");
 
+        mPlayerId = Games.Players.getCurrentPlayerId(mGoogleApiClient);
+
+        // send what we couldn't while we were away
+        mTurnSender.resume();
+
         // Retrieve the TurnBasedMatch from the connectionHint
         if (connectionHint != null) {
             mTurnBasedMatch = connectionHint.getParcelable(Multiplayer.EXTRA_TURN_BASED_MATCH);
@@ -178,6 +235,7 @@ public class SkeletonActivity extends Activity
     @Override
     public void onConnectionSuspended(int i) {
         Log.d(TAG, "onConnectionSuspended():  Trying to reconnect.");
+        mTurnSender.pause();
         mGoogleApiClient.connect();
         setViewVisibility();
     }
@@ -260,30 +318,16 @@ public class SkeletonActivity extends Activity
     // Leave the game during your turn. Note that there is a separate
     // Games.TurnBasedMultiplayer.leaveMatch() if you want to leave NOT on your turn.
     public void onLeaveClicked(View view) {
-        showSpinner();
         String nextParticipantId = getNextParticipantId();
 
-        Games.TurnBasedMultiplayer.leaveMatchDuringTurn(mGoogleApiClient, mMatch.getMatchId(),
-                nextParticipantId).setResultCallback(
-                    new ResultCallback<TurnBasedMultiplayer.LeaveMatchResult>() {
-            @Override
-            public void onResult(TurnBasedMultiplayer.LeaveMatchResult result) {
-                processResult(result);
-            }
-        });
+        mTurnSender.send(TurnJournal.OP_LEAVE_DURING_TURN, mMatch, nextParticipantId, null);
+        isDoingTurn = false;
         setViewVisibility();
     }
 
     // Finish the game. Sometimes, this is your only choice.
     public void onFinishClicked(View view) {
-        showSpinner();
-        Games.TurnBasedMultiplayer.finishMatch(mGoogleApiClient, mMatch.getMatchId())
-                .setResultCallback(new ResultCallback<TurnBasedMultiplayer.UpdateMatchResult>() {
-                    @Override
-                    public void onResult(TurnBasedMultiplayer.UpdateMatchResult result) {
-                        processResult(result);
-                    }
-                });
+        mTurnSender.send(TurnJournal.OP_FINISH, mMatch, null, null);
 
         isDoingTurn = false;
         setViewVisibility();
@@ -293,27 +337,54 @@ public class SkeletonActivity extends Activity
     // Upload your new gamestate, then take a turn, and pass it on to the next
     // player.
     public void onDoneClicked(View view) {
-        showSpinner();
-
         String nextParticipantId = getNextParticipantId();
         // Create the next turn
         mTurnData.turnCounter += 1;
         mTurnData.data = mDataView.getText().toString();
 
-        showSpinner();
-
-        Games.TurnBasedMultiplayer.takeTurn(mGoogleApiClient, mMatch.getMatchId(),
-                mTurnData.persist(), nextParticipantId).setResultCallback(
-                new ResultCallback<TurnBasedMultiplayer.UpdateMatchResult>() {
-            @Override
-            public void onResult(TurnBasedMultiplayer.UpdateMatchResult result) {
-                processResult(result);
-            }
-        });
+        // the turn is sent in the background, and we move on right away
+        mTurnSender.send(TurnJournal.OP_TAKE_TURN, mMatch, nextParticipantId,
+                mTurnData.persist());
 
         mTurnData = null;
+        isDoingTurn = false;
+        setViewVisibility();
     }
 
+    private final TurnSender.Listener mTurnSenderListener = new TurnSender.Listener() {
+        @Override
+        public void onActionSent(TurnJournal.Op op, TurnBasedMatch match) {
+            if (match == null) {
+                return;
+            }
+            if (isDoingTurn && !match.getMatchId().equals(mMatch.getMatchId())) {
+                // we've moved on to another match; don't pull the player out of it
+                mMatchCache.put(match);
+                return;
+            }
+            if (op.type == TurnJournal.OP_LEAVE_DURING_TURN
+                    || op.type == TurnJournal.OP_LEAVE) {
+                onMatchLeft(match);
+            } else {
+                onMatchUpdated(match);
+            }
+        }
+
+        @Override
+        public void onActionFailed(TurnJournal.Op op, int statusCode) {
+            checkStatusCode(null, statusCode);
+        }
+
+        @Override
+        public void onActionDelayed(TurnJournal.Op op, long retryInMillis) {
+            if (op.attempts == 1) {
+                Toast.makeText(SkeletonActivity.this,
+                        "Saved your move; it will be sent when the connection is back.",
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
     // Sign-in, Sign out behavior
 
     // Update the visibility based on what state we're in.
@@ -497,14 +568,12 @@ public class SkeletonActivity extends Activity
         mTurnData.data = "First turn";
 
         mMatch = match;
-
-        String playerId = Games.Players.getCurrentPlayerId(mGoogleApiClient);
-        String myParticipantId = mMatch.getParticipantId(playerId);
+        mTurnOrder = buildTurnOrder(match);
 
         showSpinner();
 
         Games.TurnBasedMultiplayer.takeTurn(mGoogleApiClient, match.getMatchId(),
-                mTurnData.persist(), myParticipantId).setResultCallback(
+                mTurnData.persist(), mTurnOrder.getMyParticipantId()).setResultCallback(
                 new ResultCallback<TurnBasedMultiplayer.UpdateMatchResult>() {
                     @Override
                     public void onResult(TurnBasedMultiplayer.UpdateMatchResult result) {
@@ -524,6 +593,7 @@ public class SkeletonActivity extends Activity
             }
         });
         mMatch = null;
+        mTurnOrder = null;
         isDoingTurn = false;
     }
 
@@ -536,38 +606,31 @@ public class SkeletonActivity extends Activity
      * @return participantId of next player, or null if automatching
      */
     public String getNextParticipantId() {
+        return mTurnOrder.getMyNextParticipantId();
+    }
 
-        String playerId = Games.Players.getCurrentPlayerId(mGoogleApiClient);
-        String myParticipantId = mMatch.getParticipantId(playerId);
-
-        ArrayList<String> participantIds = mMatch.getParticipantIds();
-
-        int desiredIndex = -1;
-
-        for (int i = 0; i < participantIds.size(); i++) {
-            if (participantIds.get(i).equals(myParticipantId)) {
-                desiredIndex = i + 1;
+    // Works out the order turns go in, once per state of the match.
+    private TurnOrder buildTurnOrder(TurnBasedMatch match) {
+        ArrayList<String> participantIds = match.getParticipantIds();
+        HashSet<String> leftIds = new HashSet<String>();
+        for (String participantId : participantIds) {
+            int status = match.getParticipantStatus(participantId);
+            if (status == Participant.STATUS_LEFT || status == Participant.STATUS_DECLINED) {
+                leftIds.add(participantId);
             }
         }
-
-        if (desiredIndex < participantIds.size()) {
-            return participantIds.get(desiredIndex);
-        }
-
-        if (mMatch.getAvailableAutoMatchSlots() <= 0) {
-            // You've run out of automatch slots, so we start over.
-            return participantIds.get(0);
-        } else {
-            // You have not yet fully automatched, so null will find a new
-            // person to play against.
-            return null;
-        }
+        // the same on every device, as String.hashCode() is specified
+        long seed = match.getMatchId().hashCode();
+        return new TurnOrder(participantIds, match.getParticipantId(mPlayerId), leftIds,
+                match.getAvailableAutoMatchSlots(), TURN_ORDERING, seed);
     }
 
     // This is the main function that gets called when players choose a match
     // from the inbox, or else create a match and want to start it.
     public void updateMatch(TurnBasedMatch match) {
         mMatch = match;
+        mTurnOrder = buildTurnOrder(match);
+        mMatchCache.put(match);
 
         int status = match.getStatus();
         int turnStatus = match.getTurnStatus();
@@ -600,7 +663,19 @@ public class SkeletonActivity extends Activity
         // OK, it's active. Check on turn status.
         switch (turnStatus) {
             case TurnBasedMatch.MATCH_TURN_STATUS_MY_TURN:
-                mTurnData = SkeletonTurn.unpersist(mMatch.getData());
+                if (mTurnSender.isPending(match.getMatchId())) {
+                    // we took our turn; the match just doesn't know yet
+                    showWarning("Sending...", "Your last move in this match is being sent.");
+                    break;
+                }
+                mTurnData = mMatchCache.getTurnData(mMatch);
+                if (mTurnData == null) {
+                    showWarning("Update needed", "This match was played with a newer version "
+                            + "of the game. Update the game to take your turn.");
+                    break;
+                }
+                mTurnData.setMaxDataSize(
+                        Games.TurnBasedMultiplayer.getMaxMatchDataSize(mGoogleApiClient));
                 setGameplayUI();
                 return;
             case TurnBasedMatch.MATCH_TURN_STATUS_THEIR_TURN:
@@ -624,6 +699,8 @@ public class SkeletonActivity extends Activity
             return;
         }
 
+        mMatchCache.remove(result.getMatchId());
+
         isDoingTurn = false;
 
         showWarning("Match",
@@ -638,6 +715,8 @@ public class SkeletonActivity extends Activity
             return;
         }
 
+        mMatchCache.put(match);
+
         if (match.getData() != null) {
             // This is a game that has already started, so I'll just start
             updateMatch(match);
@@ -648,12 +727,8 @@ public class SkeletonActivity extends Activity
     }
 
 
-    private void processResult(TurnBasedMultiplayer.LeaveMatchResult result) {
-        TurnBasedMatch match = result.getMatch();
-        dismissSpinner();
-        if (!checkStatusCode(match, result.getStatus().getStatusCode())) {
-            return;
-        }
+    private void onMatchLeft(TurnBasedMatch match) {
+        mMatchCache.put(match);
         isDoingTurn = (match.getTurnStatus() == TurnBasedMatch.MATCH_TURN_STATUS_MY_TURN);
         showWarning("Left", "You've left this match.");
     }
@@ -665,6 +740,11 @@ public class SkeletonActivity extends Activity
         if (!checkStatusCode(match, result.getStatus().getStatusCode())) {
             return;
         }
+        onMatchUpdated(match);
+    }
+
+    private void onMatchUpdated(TurnBasedMatch match) {
+        mMatchCache.put(match);
         if (match.canRematch()) {
             askForRematch();
         }
@@ -696,11 +776,25 @@ public class SkeletonActivity extends Activity
 
     @Override
     public void onTurnBasedMatchReceived(TurnBasedMatch match) {
-        Toast.makeText(this, "A match was updated.", Toast.LENGTH_SHORT).show();
+        if (!mMatchCache.put(match)) {
+            Log.d(TAG, "Ignoring an update older than what we have of " + match.getMatchId());
+            return;
+        }
+
+        // if we're looking at this match, and not in the middle of a turn, show the update
+        // rather than have the player go through the inbox to see it
+        if (!isDoingTurn && mMatch != null && mMatch.getMatchId().equals(match.getMatchId())) {
+            updateMatch(match);
+            return;
+        }
+
+        Toast.makeText(this, match.getTurnStatus() == TurnBasedMatch.MATCH_TURN_STATUS_MY_TURN
+                ? "It's your turn in a match." : "A match was updated.", Toast.LENGTH_SHORT).show();
     }
 
     @Override
     public void onTurnBasedMatchRemoved(String matchId) {
+        mMatchCache.remove(matchId);
         Toast.makeText(this, "A match was removed.", Toast.LENGTH_SHORT).show();
 
     }
@@ -782,6 +876,7 @@ public class SkeletonActivity extends Activity
             case R.id.sign_out_button:
                 mSignInClicked = false;
                 Games.signOut(mGoogleApiClient);
+                mPlayerId = null;
                 if (mGoogleApiClient.isConnected()) {
                     mGoogleApiClient.disconnect();
                 }
@@ -16,6 +16,7 @@
 
 package com.google.example.tbmpskeleton;
 
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 
@@ -26,6 +27,20 @@ import android.util.Log;
 
 /**
  * Basic turn data. It's just a blank data string and a turn number counter.
+ *
+ * Turns are written in the tagged binary format of {@link TurnCodec}, and read in either that
+ * format or the JSON one earlier versions wrote. Fields of the binary format that this version
+ * doesn't know are kept, and written back with the next turn, so that players on a newer
+ * version don't lose them when an older one takes a turn. Data written with a newer
+ * {@link TurnCodec#VERSION} than ours may mean something else by the fields we do know, so
+ * it isn't read at all.
+ *
+ * The match data is a keyframe, the whole data and turn counter, followed by a chain of
+ * {@link TurnDelta}s, one per turn taken since. The API stores the match data whole, so each
+ * turn uploads all of it; a large keyframe is compressed, once, and the turns after it
+ * append what they changed to the bytes they got, without encoding the rest again. When the
+ * chain has MAX_DELTAS deltas, outweighs the keyframe, or nears the most match data the API
+ * accepts, the next turn writes a new keyframe instead.
  * 
  * @author wolff
  * 
@@ -34,14 +49,144 @@ public class SkeletonTurn {
 
     public static final String TAG = "EBTurn";
 
+    // Field IDs of the binary format. Never reuse the ID of a removed field.
+    static final int FIELD_DATA = 1;
+    static final int FIELD_TURN_COUNTER = 2;
+    static final int FIELD_DELTA = 3;
+    static final int FIELD_DATA_DEFLATED = 4;
+
+    // Version of the format that added FIELD_DELTA and FIELD_DATA_DEFLATED. Data of an older
+    // version that has them got them from a player on a version that didn't know them, and
+    // wrote its own FIELD_DATA; replaying them over it would lose that player's turn.
+    static final int CHAIN_VERSION = 2;
+
+    // Most deltas after a keyframe, which bounds what reading the turn has to replay.
+    static final int MAX_DELTAS = 32;
+
+    // Percentage of the maximum match data size above which we write a keyframe.
+    static final int COMPACT_AT_PERCENT = 75;
+
+    // Data shorter than this, in UTF-8 bytes, isn't worth compressing.
+    static final int DEFLATE_MIN_BYTES = 256;
+
     public String data = "";
     public int turnCounter;
 
+    // Fields we read but don't know, already encoded, or null if there were none.
+    private byte[] mUnknownFields;
+
+    // The keyframe and deltas we read, already encoded, and the data they add up to, or null
+    // if the turn wasn't read from binary match data.
+    private byte[] mChain;
+    private String mChainData;
+    private int mChainDeltas;
+    private int mChainDeltaBytes;
+
+    // The maximum match data size, or 0 if unknown.
+    private int mMaxDataSize = 0;
+
     public SkeletonTurn() {
     }
 
+    /**
+     * Sets the most bytes the API accepts as match data, from
+     * Games.TurnBasedMultiplayer.getMaxMatchDataSize(), so that the chain of deltas is
+     * compacted into a keyframe before it gets near it.
+     */
+    public void setMaxDataSize(int maxDataSize) {
+        mMaxDataSize = maxDataSize;
+    }
+
     // This is the byte array we will write out to the TBMP API.
     public byte[] persist() {
+        TurnDelta delta = nextDelta();
+        TurnCodec.Writer writer;
+        if (delta != null) {
+            writer = new TurnCodec.Writer(mChain.length + delta.getFieldSize(FIELD_DELTA)
+                    + unknownFieldsSize());
+            writer.writeRaw(mChain);
+            delta.writeTo(writer, FIELD_DELTA);
+        } else {
+            int dataLength = TurnCodec.utf8Length(data);
+            byte[] deflated = deflateData(dataLength);
+            writer = new TurnCodec.Writer(keyframeSize(dataLength, deflated)
+                    + unknownFieldsSize());
+            if (deflated != null) {
+                writer.writeBytesField(FIELD_DATA_DEFLATED, deflated);
+            } else {
+                writer.writeStringField(FIELD_DATA, data, dataLength);
+            }
+            writer.writeVarintField(FIELD_TURN_COUNTER, turnCounter);
+        }
+        if (mUnknownFields != null) {
+            writer.writeRaw(mUnknownFields);
+        }
+        byte[] bytes = writer.toByteArray();
+
+        Log.d(TAG, "==== PERSISTING turn " + turnCounter + ", " + bytes.length + " bytes, "
+                + (delta == null ? "keyframe" : "delta " + (mChainDeltas + 1)));
+
+        return bytes;
+    }
+
+    /**
+     * Returns the size {@link #persist} will write, for instance to check it against the API's
+     * maximum match data size. This doesn't encode the turn, unless it's due a keyframe large
+     * enough to be compressed.
+     */
+    public int getEncodedSize() {
+        TurnDelta delta = nextDelta();
+        int bodySize;
+        if (delta != null) {
+            bodySize = mChain.length + delta.getFieldSize(FIELD_DELTA);
+        } else {
+            int dataLength = TurnCodec.utf8Length(data);
+            bodySize = keyframeSize(dataLength, deflateData(dataLength));
+        }
+        return TurnCodec.HEADER_SIZE + bodySize + unknownFieldsSize();
+    }
+
+    // Returns the delta to append to the chain we read, or null to write a keyframe.
+    private TurnDelta nextDelta() {
+        if (mChain == null || mChainDeltas >= MAX_DELTAS) {
+            return null;
+        }
+        TurnDelta delta = TurnDelta.between(mChainData, data, turnCounter);
+        int deltaSize = delta.getFieldSize(FIELD_DELTA);
+        if (mChainDeltaBytes + deltaSize > mChain.length - mChainDeltaBytes) {
+            // replaying the deltas would take longer than reading a new keyframe
+            return null;
+        }
+        long compactAt = (long) mMaxDataSize * COMPACT_AT_PERCENT / 100;
+        if (mMaxDataSize > 0 && TurnCodec.HEADER_SIZE + mChain.length + deltaSize
+                + unknownFieldsSize() > compactAt) {
+            return null;
+        }
+        return delta;
+    }
+
+    // Returns the data compressed, or null if it's better written as is.
+    private byte[] deflateData(int dataLength) {
+        if (dataLength < DEFLATE_MIN_BYTES) {
+            return null;
+        }
+        byte[] deflated = TurnCodec.deflate(data.getBytes(TurnCodec.UTF_8));
+        return deflated.length < dataLength ? deflated : null;
+    }
+
+    private int keyframeSize(int dataLength, byte[] deflated) {
+        return (deflated != null ? TurnCodec.bytesFieldSize(FIELD_DATA_DEFLATED, deflated.length)
+                : TurnCodec.stringFieldSize(FIELD_DATA, dataLength))
+                + TurnCodec.varintFieldSize(FIELD_TURN_COUNTER, turnCounter);
+    }
+
+    private int unknownFieldsSize() {
+        return mUnknownFields == null ? 0 : mUnknownFields.length;
+    }
+
+    // The JSON format earlier versions wrote, for comparison, or for players who can't read
+    // the binary one.
+    public byte[] persistJson() {
         JSONObject retVal = new JSONObject();
 
         try {
@@ -49,8 +194,7 @@ public class SkeletonTurn {
             retVal.put("turnCounter", turnCounter);
 
         } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Log.e(TAG, "Can't write turn " + turnCounter + " as JSON", e);
         }
 
         String st = retVal.toString();
@@ -60,7 +204,8 @@ public class SkeletonTurn {
         return st.getBytes(Charset.forName("UTF-8"));
     }
 
-    // Creates a new instance of SkeletonTurn.
+    // Creates a new instance of SkeletonTurn. Returns null if the data was written by a newer
+    // version of the game, which this one can't take a turn on.
     static public SkeletonTurn unpersist(byte[] byteArray) {
 
         if (byteArray == null) {
@@ -68,11 +213,108 @@ public class SkeletonTurn {
             return new SkeletonTurn();
         }
 
+        if (TurnCodec.isBinary(byteArray)) {
+            return unpersistBinary(byteArray);
+        }
+        return unpersistJson(byteArray);
+    }
+
+    private static SkeletonTurn unpersistBinary(byte[] byteArray) {
+        TurnCodec.Reader reader = new TurnCodec.Reader(byteArray);
+        if (reader.getVersion() > TurnCodec.VERSION) {
+            Log.w(TAG, "Turn data is version " + reader.getVersion() + ", newer than our "
+                    + TurnCodec.VERSION + "; not reading it.");
+            return null;
+        }
+        boolean chained = reader.getVersion() >= CHAIN_VERSION;
+        SkeletonTurn retVal = new SkeletonTurn();
+        ByteArrayOutputStream chain = new ByteArrayOutputStream(byteArray.length);
+        ByteArrayOutputStream unknown = null;
+        int deltas = 0;
+        int deltaBytes = 0;
+        boolean corrupt = false;
+        while (reader.next()) {
+            int start = reader.getFieldStart();
+            int fieldId = reader.getFieldId();
+            int wireType = reader.getWireType();
+            if (!chained && (fieldId == FIELD_DELTA || fieldId == FIELD_DATA_DEFLATED)) {
+                // stale, so neither read nor written back
+                reader.skip();
+                continue;
+            }
+            if (fieldId == FIELD_DATA && wireType == TurnCodec.WIRE_BYTES) {
+                String data = reader.readString();
+                if (reader.isMalformed()) {
+                    break;
+                }
+                retVal.data = data;
+                deltas = 0;
+                deltaBytes = 0;
+            } else if (fieldId == FIELD_DATA_DEFLATED && wireType == TurnCodec.WIRE_BYTES) {
+                byte[] deflated = reader.readBytes();
+                byte[] utf8 = reader.isMalformed() ? null : TurnCodec.inflate(deflated);
+                if (utf8 == null) {
+                    corrupt = true;
+                    break;
+                }
+                retVal.data = new String(utf8, TurnCodec.UTF_8);
+                deltas = 0;
+                deltaBytes = 0;
+            } else if (fieldId == FIELD_TURN_COUNTER && wireType == TurnCodec.WIRE_VARINT) {
+                int counter = reader.readInt();
+                if (reader.isMalformed()) {
+                    break;
+                }
+                retVal.turnCounter = counter;
+            } else if (fieldId == FIELD_DELTA && wireType == TurnCodec.WIRE_BYTES) {
+                TurnCodec.Reader nested = reader.readMessage();
+                TurnDelta delta = nested == null ? null : TurnDelta.read(nested);
+                String data = delta == null ? null : delta.applyTo(retVal.data);
+                if (data == null) {
+                    // the turns after this one can't be replayed either
+                    corrupt = true;
+                    break;
+                }
+                retVal.data = data;
+                retVal.turnCounter = delta.turnCounter;
+                deltas++;
+                deltaBytes += reader.getPosition() - start;
+            } else {
+                reader.skip();
+                if (!reader.isMalformed()) {
+                    if (unknown == null) {
+                        unknown = new ByteArrayOutputStream();
+                    }
+                    unknown.write(byteArray, start, reader.getPosition() - start);
+                }
+                continue;
+            }
+            chain.write(byteArray, start, reader.getPosition() - start);
+        }
+        if (unknown != null) {
+            retVal.mUnknownFields = unknown.toByteArray();
+        }
+        retVal.mChain = chain.toByteArray();
+        retVal.mChainData = retVal.data;
+        retVal.mChainDeltas = deltas;
+        retVal.mChainDeltaBytes = deltaBytes;
+
+        Log.d(TAG, "====UNPERSIST turn " + retVal.turnCounter + ", " + byteArray.length
+                + " bytes, version " + reader.getVersion() + ", " + deltas + " deltas");
+        if (reader.isMalformed() || corrupt) {
+            Log.w(TAG, "Turn data malformed at byte " + reader.getFieldStart()
+                    + "; keeping the turns read before it.");
+        }
+
+        return retVal;
+    }
+
+    private static SkeletonTurn unpersistJson(byte[] byteArray) {
         String st = null;
         try {
             st = new String(byteArray, "UTF-8");
-        } catch (UnsupportedEncodingException e1) {
-            e1.printStackTrace();
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Can't decode turn data", e);
             return null;
         }
 
@@ -91,8 +333,7 @@ public class SkeletonTurn {
             }
 
         } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Log.e(TAG, "Turn data isn't valid JSON; keeping what was read of it", e);
         }
 
         return retVal;
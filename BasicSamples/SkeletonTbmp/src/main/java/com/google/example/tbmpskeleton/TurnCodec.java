@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.tbmpskeleton;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the binary turn data format. The layout is:
+ *   bytes 0-1: MAGIC
+ *   byte  2:   VERSION
+ *   then any number of fields, each a varint tag, (field ID << 3) | wire type, followed by
+ *   a varint (WIRE_VARINT) or a varint length and that many bytes (WIRE_BYTES).
+ * Strings are length-prefixed UTF-8, and nested messages are length-prefixed fields. A reader
+ * skips the fields it doesn't know by their wire type, so fields can be added without breaking
+ * the players that run an older version. A field that changes what the others mean, so that
+ * reading the data without it gets it wrong, needs a new VERSION instead; readers refuse data
+ * of a version newer than theirs.
+ *
+ * The first byte of a JSON turn is always '{' or whitespace, and never 0xB7, which can't
+ * start UTF-8 text, so the magic is enough to tell the two formats apart.
+ */
+final class TurnCodec {
+
+    static final byte[] MAGIC = { (byte) 0xB7, (byte) 0x54 };
+    // Version 2 adds deltas and compressed data, which change what FIELD_DATA holds, so
+    // readers of version 1 that check the version refuse it.
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 3;
+
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_FIXED64 = 1;
+    static final int WIRE_BYTES = 2;
+    static final int WIRE_FIXED32 = 5;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Most bytes we inflate compressed data to, so that corrupt data can't exhaust memory.
+    static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+    private TurnCodec() {
+    }
+
+    /** Returns whether the data is in the binary format, rather than legacy JSON. */
+    static boolean isBinary(byte[] data) {
+        return data.length >= HEADER_SIZE && data[0] == MAGIC[0] && data[1] == MAGIC[1];
+    }
+
+    /** Returns the size of a varint field. */
+    static int varintFieldSize(int fieldId, int value) {
+        return varintSize(tag(fieldId, WIRE_VARINT)) + varintSize(value);
+    }
+
+    /** Returns the size of a string field whose UTF-8 encoding is utf8Length bytes long. */
+    static int stringFieldSize(int fieldId, int utf8Length) {
+        return bytesFieldSize(fieldId, utf8Length);
+    }
+
+    /** Returns the size of a field holding length bytes. */
+    static int bytesFieldSize(int fieldId, int length) {
+        return varintSize(tag(fieldId, WIRE_BYTES)) + varintSize(length) + length;
+    }
+
+    /** Returns the size of a field holding a nested message of bodySize bytes. */
+    static int messageFieldSize(int fieldId, int bodySize) {
+        return varintSize(tag(fieldId, WIRE_BYTES)) + varintSize(bodySize) + bodySize;
+    }
+
+    /** Returns the size of a value as an unsigned varint; negative values take 5 bytes. */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the length of the UTF-8 encoding of a string, without encoding it. Unpaired
+     * surrogates count as the '?' they are replaced with, as String.getBytes() does.
+     */
+    static int utf8Length(String s) {
+        int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // 4 bytes for the pair of chars
+                bytes += 2;
+                i++;
+            } else if (!isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /** Compresses data with zlib, favoring speed. */
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Uncompresses what {@link #deflate} wrote, or returns null if it's corrupt. */
+    static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // truncated
+                    return null;
+                }
+                out.write(chunk, 0, length);
+                if (out.size() > MAX_INFLATED_SIZE) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Character.isSurrogate() needs API level 19.
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static int tag(int fieldId, int wireType) {
+        return (fieldId << 3) | wireType;
+    }
+
+    /** Writes a turn into a buffer of the exact size, computed beforehand. */
+    static final class Writer {
+        private final byte[] mBuf;
+        private int mPos = 0;
+
+        Writer(int bodySize) {
+            mBuf = new byte[HEADER_SIZE + bodySize];
+            mBuf[mPos++] = MAGIC[0];
+            mBuf[mPos++] = MAGIC[1];
+            mBuf[mPos++] = VERSION;
+        }
+
+        void writeVarintField(int fieldId, int value) {
+            writeVarint(tag(fieldId, WIRE_VARINT));
+            writeVarint(value);
+        }
+
+        /** Writes a string field; utf8Length must be {@link TurnCodec#utf8Length}(value). */
+        void writeStringField(int fieldId, String value, int utf8Length) {
+            writeVarint(tag(fieldId, WIRE_BYTES));
+            writeVarint(utf8Length);
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    mBuf[mPos++] = (byte) c;
+                } else if (c < 0x800) {
+                    mBuf[mPos++] = (byte) (0xC0 | (c >> 6));
+                    mBuf[mPos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    mBuf[mPos++] = (byte) (0xF0 | (cp >> 18));
+                    mBuf[mPos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    mBuf[mPos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    mBuf[mPos++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (isSurrogate(c)) {
+                    mBuf[mPos++] = '?';
+                } else {
+                    mBuf[mPos++] = (byte) (0xE0 | (c >> 12));
+                    mBuf[mPos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    mBuf[mPos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        void writeBytesField(int fieldId, byte[] value) {
+            writeVarint(tag(fieldId, WIRE_BYTES));
+            writeVarint(value.length);
+            writeRaw(value);
+        }
+
+        /** Starts a nested message field; its bodySize bytes of fields are written next. */
+        void writeMessageHeader(int fieldId, int bodySize) {
+            writeVarint(tag(fieldId, WIRE_BYTES));
+            writeVarint(bodySize);
+        }
+
+        /** Copies fields that were already encoded, such as the unknown fields of a turn. */
+        void writeRaw(byte[] fields) {
+            writeRaw(fields, 0, fields.length);
+        }
+
+        void writeRaw(byte[] fields, int offset, int length) {
+            System.arraycopy(fields, offset, mBuf, mPos, length);
+            mPos += length;
+        }
+
+        byte[] toByteArray() {
+            if (mPos != mBuf.length) {
+                throw new IllegalStateException("Wrote " + mPos + " bytes of " + mBuf.length);
+            }
+            return mBuf;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                mBuf[mPos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuf[mPos++] = (byte) value;
+        }
+    }
+
+    /**
+     * Reads the fields of a turn, in order. After {@link #next} returns true, read the field's
+     * value with the method that matches its wire type, or skip it.
+     */
+    static final class Reader {
+        private final byte[] mBuf;
+        private final int mEnd;
+        private int mPos;
+        private int mFieldStart;
+        private int mFieldId;
+        private int mWireType;
+        private boolean mMalformed = false;
+
+        /** @param data turn data for which {@link #isBinary} is true. */
+        Reader(byte[] data) {
+            this(data, HEADER_SIZE, data.length);
+        }
+
+        // Reads the fields between start and end, of a nested message for instance.
+        private Reader(byte[] data, int start, int end) {
+            mBuf = data;
+            mPos = start;
+            mEnd = end;
+        }
+
+        /** Returns the version the data was written with. */
+        int getVersion() {
+            return mBuf[2] & 0xFF;
+        }
+
+        /** Moves to the next field; returns false at the end of the data, or if it's malformed. */
+        boolean next() {
+            if (mMalformed || mPos >= mEnd) {
+                return false;
+            }
+            mFieldStart = mPos;
+            int tag = readVarint();
+            mFieldId = tag >>> 3;
+            mWireType = tag & 0x7;
+            return !mMalformed;
+        }
+
+        int getFieldId() {
+            return mFieldId;
+        }
+
+        int getWireType() {
+            return mWireType;
+        }
+
+        /** Returns the offset of the current field's tag, to copy the whole field. */
+        int getFieldStart() {
+            return mFieldStart;
+        }
+
+        int getPosition() {
+            return mPos;
+        }
+
+        /** Returns whether reading stopped on a truncated field or an unknown wire type. */
+        boolean isMalformed() {
+            return mMalformed;
+        }
+
+        int readInt() {
+            return readVarint();
+        }
+
+        String readString() {
+            int length = readLength();
+            if (length < 0) {
+                return "";
+            }
+            String value = new String(mBuf, mPos, length, UTF_8);
+            mPos += length;
+            return value;
+        }
+
+        byte[] readBytes() {
+            int length = readLength();
+            if (length < 0) {
+                return new byte[0];
+            }
+            byte[] value = new byte[length];
+            System.arraycopy(mBuf, mPos, value, 0, length);
+            mPos += length;
+            return value;
+        }
+
+        /**
+         * Returns a reader of the nested message in the current field, and moves past it.
+         * Returns null if the field is malformed.
+         */
+        Reader readMessage() {
+            int length = readLength();
+            if (length < 0) {
+                return null;
+            }
+            Reader nested = new Reader(mBuf, mPos, mPos + length);
+            mPos += length;
+            return nested;
+        }
+
+        /** Skips the current field, whatever its ID. */
+        void skip() {
+            int length;
+            switch (mWireType) {
+                case WIRE_VARINT:
+                    readVarint();
+                    return;
+                case WIRE_FIXED64:
+                    length = 8;
+                    break;
+                case WIRE_BYTES:
+                    length = readVarint();
+                    break;
+                case WIRE_FIXED32:
+                    length = 4;
+                    break;
+                default:
+                    // we can't tell where the field ends
+                    mMalformed = true;
+                    return;
+            }
+            if (mMalformed || length < 0 || length > mEnd - mPos) {
+                mMalformed = true;
+                return;
+            }
+            mPos += length;
+        }
+
+        // Reads the length of a WIRE_BYTES field, or returns -1 if it's past the end.
+        private int readLength() {
+            int length = readVarint();
+            if (mMalformed || length < 0 || length > mEnd - mPos) {
+                mMalformed = true;
+                return -1;
+            }
+            return length;
+        }
+
+        // Reads an unsigned LEB128 varint of at most 5 bytes.
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (mPos >= mEnd) {
+                    break;
+                }
+                int b = mBuf[mPos++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            mMalformed = true;
+            return 0;
+        }
+    }
+}
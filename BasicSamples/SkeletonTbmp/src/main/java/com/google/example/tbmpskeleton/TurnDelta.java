@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.tbmpskeleton;
+
+/**
+ * What one turn changed in the turn data: the chars between a prefix and a suffix the turn
+ * kept are replaced with new text, and the turn counter set. A turn usually edits one spot of
+ * the data, so the delta is much smaller than the data.
+ *
+ * A delta is written as a nested message of {@link TurnCodec}, with these fields.
+ */
+final class TurnDelta {
+
+    static final int FIELD_PREFIX = 1;
+    static final int FIELD_SUFFIX = 2;
+    static final int FIELD_TEXT = 3;
+    static final int FIELD_TURN_COUNTER = 4;
+
+    // Number of chars kept at the start and at the end of the data.
+    final int prefix;
+    final int suffix;
+
+    // What replaces the chars between them.
+    final String text;
+
+    final int turnCounter;
+
+    private final int mTextLength;
+
+    private TurnDelta(int prefix, int suffix, String text, int turnCounter) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.text = text;
+        this.turnCounter = turnCounter;
+        mTextLength = TurnCodec.utf8Length(text);
+    }
+
+    /** Returns the delta that turns the data from into the data to. */
+    static TurnDelta between(String from, String to, int turnCounter) {
+        int max = Math.min(from.length(), to.length());
+        int prefix = 0;
+        while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        // don't split a surrogate pair between what's kept and what's replaced
+        if (prefix > 0 && Character.isHighSurrogate(to.charAt(prefix - 1))) {
+            prefix--;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(to.charAt(to.length() - suffix))) {
+            suffix--;
+        }
+        return new TurnDelta(prefix, suffix,
+                to.substring(prefix, to.length() - suffix), turnCounter);
+    }
+
+    /**
+     * Reads a delta written by {@link #writeTo}, skipping the fields it doesn't know.
+     * Returns null if it's malformed.
+     */
+    static TurnDelta read(TurnCodec.Reader reader) {
+        int prefix = 0, suffix = 0, turnCounter = 0;
+        String text = "";
+        while (reader.next()) {
+            int fieldId = reader.getFieldId();
+            int wireType = reader.getWireType();
+            if (fieldId == FIELD_PREFIX && wireType == TurnCodec.WIRE_VARINT) {
+                prefix = reader.readInt();
+            } else if (fieldId == FIELD_SUFFIX && wireType == TurnCodec.WIRE_VARINT) {
+                suffix = reader.readInt();
+            } else if (fieldId == FIELD_TEXT && wireType == TurnCodec.WIRE_BYTES) {
+                text = reader.readString();
+            } else if (fieldId == FIELD_TURN_COUNTER && wireType == TurnCodec.WIRE_VARINT) {
+                turnCounter = reader.readInt();
+            } else {
+                reader.skip();
+            }
+        }
+        if (reader.isMalformed() || prefix < 0 || suffix < 0) {
+            return null;
+        }
+        return new TurnDelta(prefix, suffix, text, turnCounter);
+    }
+
+    /** Returns the data after the delta, or null if it doesn't apply to that data. */
+    String applyTo(String data) {
+        if (prefix > data.length() - suffix) {
+            return null;
+        }
+        if (text.isEmpty() && prefix + suffix == data.length()) {
+            return data;
+        }
+        return data.substring(0, prefix) + text + data.substring(data.length() - suffix);
+    }
+
+    /** Returns the size of the delta written as a field. */
+    int getFieldSize(int fieldId) {
+        return TurnCodec.messageFieldSize(fieldId, bodySize());
+    }
+
+    void writeTo(TurnCodec.Writer writer, int fieldId) {
+        writer.writeMessageHeader(fieldId, bodySize());
+        writer.writeVarintField(FIELD_PREFIX, prefix);
+        writer.writeVarintField(FIELD_SUFFIX, suffix);
+        writer.writeStringField(FIELD_TEXT, text, mTextLength);
+        writer.writeVarintField(FIELD_TURN_COUNTER, turnCounter);
+    }
+
+    private int bodySize() {
+        return TurnCodec.varintFieldSize(FIELD_PREFIX, prefix)
+                + TurnCodec.varintFieldSize(FIELD_SUFFIX, suffix)
+                + TurnCodec.stringFieldSize(FIELD_TEXT, mTextLength)
+                + TurnCodec.varintFieldSize(FIELD_TURN_COUNTER, turnCounter);
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.tbmpskeleton;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * A durable record of the actions we took on matches and haven't heard back about: turns
+ * taken, matches finished and left. Each action is appended to a file, and synced, as it's
+ * taken, and marked done once the API has it, so that an action taken while offline, or just
+ * before the app dies, is sent when we can, in the order it was taken.
+ *
+ * The file is only ever appended to. Each record is its length, the CRC32 of its body, and
+ * the body: an action, or the sequence number of an action that is done. A record cut short
+ * by a crash fails its check and ends the journal there. The file is deleted when no action
+ * is pending, and rewritten with just the pending ones when it holds too many done ones.
+ *
+ * An action is taken on a version of its match; a second action of the same kind on the same
+ * version of the same match is the first one again, and isn't recorded twice.
+ *
+ * The journal is used on the main thread, and does its file I/O on a background executor, in
+ * the order it was asked for, so that taking an action doesn't wait for the disk. Until the
+ * file is read back, the actions appended are only kept in memory, and {@link #peek} returns
+ * none, so that they aren't sent ahead of older ones.
+ */
+final class TurnJournal {
+
+    private static final String TAG = "TurnJournal";
+
+    static final int OP_TAKE_TURN = 1;
+    static final int OP_FINISH = 2;
+    // Leaving during our turn passes the turn on, to participantId, or to an auto-match slot
+    // if it's null; leaving outside it doesn't.
+    static final int OP_LEAVE_DURING_TURN = 3;
+    static final int OP_LEAVE = 4;
+
+    private static final int RECORD_OP = 1;
+    private static final int RECORD_DONE = 2;
+
+    // Done records in the file above which it's rewritten with only the pending actions.
+    private static final int COMPACT_AT_DONE = 64;
+
+    /** An action on a match, to send to the API. */
+    static final class Op {
+        // Set when the action is written to the file.
+        long seq;
+        final int type;
+        final String matchId;
+        // Version of the match the action was taken on.
+        final int matchVersion;
+        // Participant the turn goes to, or null for an auto-match slot or no one.
+        final String participantId;
+        // Match data to send, or null.
+        final byte[] data;
+
+        // Attempts at sending the action; ones read back from the file may have been sent
+        // before the app stopped.
+        int attempts;
+
+        Op(long seq, int type, String matchId, int matchVersion, String participantId,
+                byte[] data) {
+            this.seq = seq;
+            this.type = type;
+            this.matchId = matchId;
+            this.matchVersion = matchVersion;
+            this.participantId = participantId;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return "Op#" + seq + "(" + type + " on " + matchId + " v" + matchVersion + ")";
+        }
+    }
+
+    // What reading the file back found, handed from the background thread to the main one.
+    private static final class Loaded {
+        final ArrayList<Op> pending = new ArrayList<Op>();
+        long nextSeq = 1;
+        int doneRecords = 0;
+    }
+
+    private final File mFile;
+    private final Executor mIo;
+    private final Handler mHandler;
+
+    // Only touched on the main thread.
+    private final ArrayList<Op> mPending = new ArrayList<Op>();
+    private long mNextSeq = 1;
+    private int mDoneRecords = 0;
+    private boolean mLoaded = false;
+    // Set by close(), after which nothing more is written.
+    private boolean mClosed = false;
+
+    /**
+     * @param file    the file the journal is kept in.
+     * @param io      runs the file I/O, in order, on a background thread.
+     * @param handler posts back to the main thread.
+     */
+    TurnJournal(File file, Executor io, Handler handler) {
+        mFile = file;
+        mIo = io;
+        mHandler = handler;
+    }
+
+    /**
+     * Reads back the actions still pending, in the background, then runs onLoaded on the main
+     * thread. Actions appended in the meantime go after them.
+     */
+    void open(final Runnable onLoaded) {
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Loaded loaded = load();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed) {
+                            return;
+                        }
+                        onLoaded(loaded);
+                        onLoaded.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops writing to the file, before the I/O executor is shut down. The actions already
+     * handed to it are still written; ones appended or completed after this are only kept in
+     * memory, and a pending read back is dropped.
+     */
+    void close() {
+        mClosed = true;
+    }
+
+    /** Returns whether the actions pending from before have been read back. */
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Records an action, unless the same action on the same version of the match is pending.
+     * The action is written to the file in the background.
+     *
+     * @return the pending action. It's kept in memory even if writing it fails.
+     */
+    Op append(int type, String matchId, int matchVersion, String participantId, byte[] data) {
+        Op pending = find(type, matchId, matchVersion);
+        if (pending != null) {
+            Log.d(TAG, "Already pending: " + pending);
+            return pending;
+        }
+        Op op = new Op(0, type, matchId, matchVersion, participantId, data);
+        mPending.add(op);
+        if (mLoaded) {
+            record(op);
+        }
+        return op;
+    }
+
+    /** Marks an action as done: sent, or given up on. */
+    void complete(Op op) {
+        if (!mPending.remove(op)) {
+            return;
+        }
+        if (mPending.isEmpty()) {
+            mDoneRecords = 0;
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mFile.delete();
+                }
+            });
+            return;
+        }
+        final byte[] body = encodeDone(op);
+        final List<byte[]> compacted;
+        if (++mDoneRecords >= COMPACT_AT_DONE) {
+            compacted = encode(mPending);
+            mDoneRecords = 0;
+        } else {
+            compacted = null;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (compacted != null) {
+                        compact(compacted);
+                    } else {
+                        writeRecord(body);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to record an action as done; it may be sent again", e);
+                }
+            }
+        });
+    }
+
+    /** Returns the oldest pending action, or null, or null until the journal is loaded. */
+    Op peek() {
+        return !mLoaded || mPending.isEmpty() ? null : mPending.get(0);
+    }
+
+    /** Returns the pending actions, oldest first. */
+    List<Op> getPending() {
+        return new ArrayList<Op>(mPending);
+    }
+
+    /** Returns whether an action on the given match is pending. */
+    boolean isPending(String matchId) {
+        for (Op op : mPending) {
+            if (op.matchId.equals(matchId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Op find(int type, String matchId, int matchVersion) {
+        for (Op op : mPending) {
+            if (op.type == type && op.matchVersion == matchVersion && op.matchId.equals(matchId)) {
+                return op;
+            }
+        }
+        return null;
+    }
+
+    // Gives the action its sequence number and writes it to the file in the background.
+    private void record(Op op) {
+        op.seq = mNextSeq++;
+        final Op recorded = op;
+        final byte[] body = encode(op);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeRecord(body);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to record " + recorded + "; it won't survive a restart",
+                            e);
+                }
+            }
+        });
+    }
+
+    // Runs file I/O in the background, unless the journal is closed.
+    private void execute(Runnable task) {
+        if (mClosed) {
+            Log.d(TAG, "Closed; not writing to " + mFile);
+            return;
+        }
+        mIo.execute(task);
+    }
+
+    // Takes in what load() read back, ahead of the actions appended since.
+    private void onLoaded(Loaded loaded) {
+        ArrayList<Op> appended = new ArrayList<Op>(mPending);
+        mPending.clear();
+        mPending.addAll(loaded.pending);
+        mNextSeq = loaded.nextSeq;
+        mDoneRecords = loaded.doneRecords;
+        mLoaded = true;
+        for (Op op : appended) {
+            if (find(op.type, op.matchId, op.matchVersion) == null) {
+                mPending.add(op);
+                record(op);
+            }
+        }
+        Log.d(TAG, "Read back " + loaded.pending.size() + " pending actions");
+    }
+
+    // Encodes the given actions, for compact().
+    private static List<byte[]> encode(List<Op> ops) {
+        ArrayList<byte[]> bodies = new ArrayList<byte[]>(ops.size());
+        for (Op op : ops) {
+            bodies.add(encode(op));
+        }
+        return bodies;
+    }
+
+    private static byte[] encode(Op op) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(RECORD_OP);
+            out.writeLong(op.seq);
+            out.writeByte(op.type);
+            out.writeUTF(op.matchId);
+            out.writeInt(op.matchVersion);
+            out.writeBoolean(op.participantId != null);
+            if (op.participantId != null) {
+                out.writeUTF(op.participantId);
+            }
+            out.writeInt(op.data == null ? -1 : op.data.length);
+            if (op.data != null) {
+                out.write(op.data);
+            }
+        } catch (IOException e) {
+            // writing to memory doesn't fail
+            throw new AssertionError(e);
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] encodeDone(Op op) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(RECORD_DONE);
+            out.writeLong(op.seq);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return body.toByteArray();
+    }
+
+    // On the background thread. Appends a record and syncs it to the disk.
+    private void writeRecord(byte[] body) throws IOException {
+        FileOutputStream fos = new FileOutputStream(mFile, true);
+        try {
+            writeRecord(fos, body);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void writeRecord(FileOutputStream fos, byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        DataOutputStream out = new DataOutputStream(fos);
+        out.writeInt(body.length);
+        out.writeInt((int) crc.getValue());
+        out.write(body);
+        out.flush();
+    }
+
+    // On the background thread. Rewrites the file with only the given records.
+    private void compact(List<byte[]> bodies) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            for (byte[] body : bodies) {
+                writeRecord(fos, body);
+            }
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + mFile);
+        }
+    }
+
+    // On the background thread.
+    private Loaded load() {
+        Loaded loaded = new Loaded();
+        if (!mFile.exists()) {
+            return loaded;
+        }
+        DataInputStream in = null;
+        boolean badTail = false;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int crc = in.readInt();
+                if (length < 0 || length > mFile.length()) {
+                    throw new IOException("Bad record length " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 check = new CRC32();
+                check.update(body);
+                if ((int) check.getValue() != crc) {
+                    throw new IOException("Bad record checksum");
+                }
+                readRecord(new DataInputStream(new ByteArrayInputStream(body)), loaded);
+            }
+        } catch (IOException e) {
+            // a record cut short by a crash; the ones before it stand
+            Log.w(TAG, "Journal ends in a bad record; keeping " + loaded.pending.size()
+                    + " pending actions read before it", e);
+            badTail = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        for (Op op : loaded.pending) {
+            op.attempts = 1;
+        }
+        if (badTail || loaded.pending.isEmpty()) {
+            // drop the bad record, so that what we append next isn't lost behind it
+            try {
+                if (loaded.pending.isEmpty()) {
+                    mFile.delete();
+                } else {
+                    compact(encode(loaded.pending));
+                    loaded.doneRecords = 0;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to rewrite the journal", e);
+            }
+        }
+        return loaded;
+    }
+
+    private static void readRecord(DataInputStream in, Loaded loaded) throws IOException {
+        int kind = in.readByte();
+        long seq = in.readLong();
+        loaded.nextSeq = Math.max(loaded.nextSeq, seq + 1);
+        if (kind == RECORD_DONE) {
+            for (int i = 0; i < loaded.pending.size(); i++) {
+                if (loaded.pending.get(i).seq == seq) {
+                    loaded.pending.remove(i);
+                    break;
+                }
+            }
+            loaded.doneRecords++;
+            return;
+        }
+        int type = in.readByte();
+        String matchId = in.readUTF();
+        int matchVersion = in.readInt();
+        String participantId = in.readBoolean() ? in.readUTF() : null;
+        int length = in.readInt();
+        byte[] data = null;
+        if (length >= 0) {
+            data = new byte[length];
+            in.readFully(data);
+        }
+        loaded.pending.add(new Op(seq, type, matchId, matchVersion, participantId, data));
+    }
+}
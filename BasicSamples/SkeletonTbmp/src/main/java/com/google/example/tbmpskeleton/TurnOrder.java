@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.tbmpskeleton;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The order in which the participants of a match take their turns. It's worked out once per
+ * state of the match, along with who plays after whom, so that passing the turn on is a
+ * lookup, rather than a search of the participants and a call for our identity.
+ *
+ * After the last participant in the order, the turn goes to an auto-match slot while the
+ * match has some, then back to the first participant.
+ */
+final class TurnOrder {
+
+    /** Arranges the participants of a match in the order they play in. */
+    interface Ordering {
+        /**
+         * Arranges, in place, the participants who play, in the order they play in.
+         *
+         * @param leftIds the participants who left or declined the match; never us.
+         * @param seed    a number that is the same on every participant's device, for the
+         *                orderings that need to pick one order among many.
+         */
+        void arrange(List<String> participantIds, Set<String> leftIds, long seed);
+    }
+
+    /** Everyone, in the order the match lists them, as the sample always did. */
+    static final Ordering ROUND_ROBIN = new Ordering() {
+        @Override
+        public void arrange(List<String> participantIds, Set<String> leftIds, long seed) {
+        }
+    };
+
+    /** The participants still in the match, in the order the match lists them. */
+    static final Ordering SKIP_LEFT = new Ordering() {
+        @Override
+        public void arrange(List<String> participantIds, Set<String> leftIds, long seed) {
+            participantIds.removeAll(leftIds);
+        }
+    };
+
+    /**
+     * The participants still in the match, shuffled by the seed. Each participant is placed by
+     * a hash of the seed and their ID alone, so players leaving or joining don't move the
+     * others around, and nobody plays twice in a row or is skipped when they do. Every device
+     * must shuffle the same way, so the hash is spelled out here rather than left to the
+     * platform.
+     */
+    static final Ordering RANDOM = new Ordering() {
+        @Override
+        public void arrange(List<String> participantIds, Set<String> leftIds, final long seed) {
+            Collections.sort(participantIds, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    long ka = rank(seed, a), kb = rank(seed, b);
+                    // the order the match lists participants in may differ between devices
+                    return ka != kb ? (ka < kb ? -1 : 1) : a.compareTo(b);
+                }
+            });
+            participantIds.removeAll(leftIds);
+        }
+    };
+
+    // Where a participant goes in the RANDOM order: the seed and the ID's String.hashCode(),
+    // which is the same everywhere, mixed by the SplitMix64 finalizer.
+    private static long rank(long seed, String participantId) {
+        long z = seed * 0x9E3779B97F4A7C15L + participantId.hashCode();
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private final String mMyParticipantId;
+
+    // Who plays after each participant in the order; null for an auto-match slot.
+    private final HashMap<String, String> mSuccessors = new HashMap<String, String>();
+    private final String mMyNextParticipantId;
+
+    /**
+     * @param participantIds  the participants of the match, as it lists them.
+     * @param myParticipantId our participant ID in the match.
+     * @param leftIds         the participants who left or declined the match.
+     * @param autoMatchSlots  how many players auto-matching may still add.
+     * @param ordering        how to order the participants.
+     * @param seed            passed on to the ordering.
+     */
+    TurnOrder(List<String> participantIds, String myParticipantId, Set<String> leftIds,
+            int autoMatchSlots, Ordering ordering, long seed) {
+        mMyParticipantId = myParticipantId;
+
+        ArrayList<String> order = new ArrayList<String>(participantIds);
+        if (leftIds.contains(myParticipantId)) {
+            // we're taking a turn, so we're still playing
+            leftIds = new HashSet<String>(leftIds);
+            leftIds.remove(myParticipantId);
+        }
+        ordering.arrange(order, leftIds, seed);
+
+        int size = order.size();
+        for (int i = 0; i < size; i++) {
+            String next;
+            if (i + 1 < size) {
+                next = order.get(i + 1);
+            } else {
+                // you've run out of automatch slots, so we start over; otherwise, null
+                // will find a new person to play against
+                next = autoMatchSlots > 0 ? null : order.get(0);
+            }
+            mSuccessors.put(order.get(i), next);
+        }
+
+        if (mSuccessors.containsKey(myParticipantId)) {
+            mMyNextParticipantId = mSuccessors.get(myParticipantId);
+        } else {
+            // we aren't in the order; the turn goes on as if we were last
+            mMyNextParticipantId = autoMatchSlots > 0 || size == 0 ? null : order.get(0);
+        }
+    }
+
+    /** Returns our participant ID in the match. */
+    String getMyParticipantId() {
+        return mMyParticipantId;
+    }
+
+    /** Returns who we pass the turn to, or null to pass it to an auto-match slot. */
+    String getMyNextParticipantId() {
+        return mMyNextParticipantId;
+    }
+
+    /**
+     * Returns who plays after a participant, or null if it's an auto-match slot, or the
+     * participant isn't in the order.
+     */
+    String getNextParticipantId(String participantId) {
+        return mSuccessors.get(participantId);
+    }
+}
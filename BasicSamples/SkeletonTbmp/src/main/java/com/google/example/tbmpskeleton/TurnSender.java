@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.tbmpskeleton;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.games.Games;
+import com.google.android.gms.games.GamesStatusCodes;
+import com.google.android.gms.games.multiplayer.turnbased.TurnBasedMatch;
+import com.google.android.gms.games.multiplayer.turnbased.TurnBasedMultiplayer;
+
+/**
+ * Sends the actions recorded in a {@link TurnJournal}, one at a time, in the order they were
+ * taken, so that the game can move on as soon as an action is recorded, rather than wait for
+ * the API.
+ *
+ * An action that fails for want of a network is kept, and tried again when we reconnect, or
+ * after a delay that doubles with each attempt. So is one the API deferred: Play Games
+ * Services keeps those and sends them itself, so before sending an action again, we load its
+ * match, and if the match moved past the version the action was taken on, the action made it
+ * and is done. Any other error drops the action, and is reported.
+ */
+final class TurnSender {
+
+    private static final String TAG = "TurnSender";
+
+    // Delay before the first retry, doubled for each retry after it up to the maximum.
+    static final long INITIAL_BACKOFF_MILLIS = 2000;
+    static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    /** Hears about the actions sent, on the main thread. */
+    interface Listener {
+        /** Called when the API took an action, with the match it returned, if any. */
+        void onActionSent(TurnJournal.Op op, TurnBasedMatch match);
+
+        /** Called when an action was dropped because the API refused it. */
+        void onActionFailed(TurnJournal.Op op, int statusCode);
+
+        /** Called when an action couldn't be sent now, and will be tried again. */
+        void onActionDelayed(TurnJournal.Op op, long retryInMillis);
+    }
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final TurnJournal mJournal;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    // The action being sent, or null.
+    private TurnJournal.Op mInFlight;
+
+    // Bumped when the action in flight is dropped, by pause() or resume(): disconnecting
+    // cancels its call, and a result that still comes in for it is ignored.
+    private int mGeneration = 0;
+
+    // Set by close(), after which nothing is sent.
+    private boolean mClosed = false;
+
+    // Whether we're waiting to try again.
+    private boolean mRetryPosted = false;
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            mRetryPosted = false;
+            sendNext();
+        }
+    };
+
+    TurnSender(GoogleApiClient googleApiClient, TurnJournal journal, Handler handler,
+            Listener listener) {
+        mGoogleApiClient = googleApiClient;
+        mJournal = journal;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /** Records an action, then sends it once the actions before it are sent. */
+    void send(int type, TurnBasedMatch match, String participantId, byte[] data) {
+        mJournal.append(type, match.getMatchId(), match.getVersion(), participantId, data);
+        if (!mRetryPosted) {
+            sendNext();
+        }
+    }
+
+    /** Sends the pending actions now, when we connect; the next failure waits again. */
+    void resume() {
+        pause();
+        for (TurnJournal.Op op : mJournal.getPending()) {
+            op.attempts = Math.min(op.attempts, 1);
+        }
+        sendNext();
+    }
+
+    /**
+     * Stops retrying, when we disconnect. The action in flight, if any, is dropped, but stays
+     * in the journal; the next attempt checks whether it made it first.
+     */
+    void pause() {
+        mHandler.removeCallbacks(mRetry);
+        mRetryPosted = false;
+        if (mInFlight != null) {
+            mInFlight.attempts = Math.max(mInFlight.attempts, 1);
+            mInFlight = null;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Stops sending for good, and closes the journal, before the I/O executor it writes on is
+     * shut down. The actions still pending are sent by the next sender, from the file.
+     */
+    void close() {
+        pause();
+        mClosed = true;
+        mJournal.close();
+    }
+
+    /** Returns whether an action on the given match is waiting to be sent. */
+    boolean isPending(String matchId) {
+        return mJournal.isPending(matchId);
+    }
+
+    private void sendNext() {
+        if (mClosed || mInFlight != null || !mGoogleApiClient.isConnected()) {
+            return;
+        }
+        final TurnJournal.Op op = mJournal.peek();
+        if (op == null) {
+            return;
+        }
+        mInFlight = op;
+        final int generation = mGeneration;
+        if (op.attempts == 0) {
+            sendOp(op, generation);
+            return;
+        }
+
+        // it may have made it already
+        Games.TurnBasedMultiplayer.loadMatch(mGoogleApiClient, op.matchId).setResultCallback(
+                new ResultCallback<TurnBasedMultiplayer.LoadMatchResult>() {
+                    @Override
+                    public void onResult(TurnBasedMultiplayer.LoadMatchResult result) {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        int statusCode = result.getStatus().getStatusCode();
+                        TurnBasedMatch match = result.getMatch();
+                        if (statusCode != GamesStatusCodes.STATUS_OK || match == null) {
+                            onSendResult(op, generation, statusCode, null);
+                        } else if (match.getVersion() > op.matchVersion) {
+                            Log.d(TAG, op + " made it already, match is at v"
+                                    + match.getVersion());
+                            onSendResult(op, generation, GamesStatusCodes.STATUS_OK, match);
+                        } else {
+                            sendOp(op, generation);
+                        }
+                    }
+                });
+    }
+
+    private void sendOp(final TurnJournal.Op op, final int generation) {
+        op.attempts++;
+        Log.d(TAG, "Sending " + op + ", attempt " + op.attempts);
+        switch (op.type) {
+            case TurnJournal.OP_TAKE_TURN:
+                onUpdate(op, generation, Games.TurnBasedMultiplayer.takeTurn(mGoogleApiClient,
+                        op.matchId, op.data, op.participantId));
+                break;
+            case TurnJournal.OP_FINISH:
+                onUpdate(op, generation, op.data == null
+                        ? Games.TurnBasedMultiplayer.finishMatch(mGoogleApiClient, op.matchId)
+                        : Games.TurnBasedMultiplayer.finishMatch(mGoogleApiClient, op.matchId,
+                                op.data));
+                break;
+            case TurnJournal.OP_LEAVE_DURING_TURN:
+            case TurnJournal.OP_LEAVE:
+                (op.type == TurnJournal.OP_LEAVE
+                        ? Games.TurnBasedMultiplayer.leaveMatch(mGoogleApiClient, op.matchId)
+                        : Games.TurnBasedMultiplayer.leaveMatchDuringTurn(mGoogleApiClient,
+                                op.matchId, op.participantId)).setResultCallback(
+                        new ResultCallback<TurnBasedMultiplayer.LeaveMatchResult>() {
+                            @Override
+                            public void onResult(TurnBasedMultiplayer.LeaveMatchResult result) {
+                                onSendResult(op, generation, result.getStatus().getStatusCode(),
+                                        result.getMatch());
+                            }
+                        });
+                break;
+            default:
+                Log.w(TAG, "Dropping " + op + " of unknown type");
+                onSendResult(op, generation, GamesStatusCodes.STATUS_INTERNAL_ERROR, null);
+        }
+    }
+
+    private void onUpdate(final TurnJournal.Op op, final int generation,
+            PendingResult<TurnBasedMultiplayer.UpdateMatchResult> pending) {
+        pending.setResultCallback(new ResultCallback<TurnBasedMultiplayer.UpdateMatchResult>() {
+            @Override
+            public void onResult(TurnBasedMultiplayer.UpdateMatchResult result) {
+                onSendResult(op, generation, result.getStatus().getStatusCode(),
+                        result.getMatch());
+            }
+        });
+    }
+
+    private void onSendResult(TurnJournal.Op op, int generation, int statusCode,
+            TurnBasedMatch match) {
+        if (generation != mGeneration) {
+            // dropped by pause(); it's tried again from the journal
+            Log.d(TAG, "Ignoring late result " + statusCode + " for " + op);
+            return;
+        }
+        mInFlight = null;
+        switch (statusCode) {
+            case GamesStatusCodes.STATUS_OK:
+                mJournal.complete(op);
+                mListener.onActionSent(op, match);
+                break;
+            case GamesStatusCodes.STATUS_NETWORK_ERROR_OPERATION_DEFERRED:
+            case GamesStatusCodes.STATUS_NETWORK_ERROR_OPERATION_FAILED:
+            case GamesStatusCodes.STATUS_NETWORK_ERROR_NO_DATA:
+            case GamesStatusCodes.STATUS_NETWORK_ERROR_STALE_DATA:
+            case GamesStatusCodes.STATUS_CLIENT_RECONNECT_REQUIRED:
+            case GamesStatusCodes.STATUS_MATCH_ERROR_LOCALLY_MODIFIED:
+                // a deferred action of ours is still waiting to be sent by the API
+                // attempts is at least 1 here, so the next try checks the match first
+                op.attempts = Math.max(op.attempts, 1);
+                long delay = Math.min(INITIAL_BACKOFF_MILLIS << Math.min(op.attempts - 1, 16),
+                        MAX_BACKOFF_MILLIS);
+                Log.d(TAG, op + " failed with " + statusCode + ", retrying in " + delay + " ms");
+                mListener.onActionDelayed(op, delay);
+                mRetryPosted = true;
+                mHandler.postDelayed(mRetry, delay);
+                return;
+            default:
+                Log.w(TAG, "Dropping " + op + ", failed with " + statusCode);
+                mJournal.complete(op);
+                mListener.onActionFailed(op, statusCode);
+        }
+        sendNext();
+    }
+}
@@ -203,19 +203,6 @@ public class MainActivity extends FragmentActivity
         switchToFragment(mWinFragment);
     }
 
-    // Checks if n is prime. We don't consider 0 and 1 to be prime.
-    // This is not an implementation we are mathematically proud of, but it gets the job done.
-    boolean isPrime(int n) {
-        int i;
-        if (n == 0 || n == 1) return false;
-        for (i = 2; i <= n / 2; i++) {
-            if (n % i == 0) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     /**
      * Check for achievements and unlock the appropriate ones.
      *
@@ -225,7 +212,7 @@ public class MainActivity extends FragmentActivity
     void checkForAchievements(int requestedScore, int finalScore) {
         // Check if each condition is met; if so, unlock the corresponding
         // achievement.
-        if (isPrime(finalScore)) {
+        if (Primes.isPrime(finalScore)) {
             mOutbox.mPrimeAchievement = true;
             achievementToast(getString(R.string.achievement_prime_toast_text));
         }
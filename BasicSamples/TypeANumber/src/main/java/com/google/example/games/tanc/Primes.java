@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.tanc;
+
+/**
+ * The number theory behind the "prime" achievement. Kept apart from the Activity so that it
+ * has no Android dependency and can be benchmarked on a plain JVM.
+ */
+final class Primes {
+
+    private Primes() {
+    }
+
+    // Checks if n is prime. We don't consider 0 and 1 to be prime.
+    // This is not an implementation we are mathematically proud of, but it gets the job done.
+    static boolean isPrime(int n) {
+        int i;
+        if (n == 0 || n == 1) return false;
+        for (i = 2; i <= n / 2; i++) {
+            if (n % i == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
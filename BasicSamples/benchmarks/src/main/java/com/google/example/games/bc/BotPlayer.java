@@ -0,0 +1,241 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A scripted ButtonClicker player for the {@link LoopbackNetwork}. It plays the game the way
+ * MainActivity does, through the same {@link ScoreChannel}: it starts when the room is
+ * connected, clicks at random intervals averaging the given rate, pings its peers, and
+ * broadcasts its final score when its {@link GameClock} says the game is over. Its timers are
+ * posted to the network, the way MainActivity posts them to a Handler. The player with the
+ * lowest ID hosts the game, and the others follow its clock, unless clock sync is disabled.
+ */
+final class BotPlayer implements LoopbackNetwork.RoomUpdateListener,
+        LoopbackNetwork.RealTimeMessageReceivedListener {
+
+    // Interval between game ticks, as in MainActivity.
+    private static final long TICK_MILLIS = 1000;
+
+    private final String mId;
+    private final LoopbackNetwork mNetwork;
+    private final Random mRandom;
+    private final double mClicksPerSecond;
+    private final boolean mSyncClock;
+
+    private final RoomBroadcaster mBroadcaster;
+    private final ScoreChannel mChannel;
+    private final GameClock mClock;
+
+    // Records the player's messages, if set.
+    private MatchRecorder mRecorder = null;
+
+    private int mScore = 0;
+    private boolean mPlaying = false;
+    private long mFinishedAt = -1;
+
+    private final Runnable mClick = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPlaying) {
+                return;
+            }
+            mScore++;
+            scheduleBroadcast(mChannel.onScoreChanged(mScore, mNetwork.now()));
+            mNetwork.postDelayed(mClick, nextClickDelay());
+        }
+    };
+
+    private boolean mBroadcastPosted = false;
+    private final Runnable mPendingBroadcast = new Runnable() {
+        @Override
+        public void run() {
+            mBroadcastPosted = false;
+            scheduleBroadcast(mChannel.onTimer(mScore, mNetwork.now()));
+        }
+    };
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPlaying) {
+                return;
+            }
+            long delay = mClock.getDelayToNextTick();
+            if (delay >= 0) {
+                mNetwork.postDelayed(mTick, delay);
+                return;
+            }
+            // game over
+            mPlaying = false;
+            mFinishedAt = mNetwork.now();
+            mChannel.broadcast(mScore, true, mFinishedAt);
+        }
+    };
+
+    // Pings the peers during the game, as MainActivity does while it's in the room.
+    private final Runnable mPinger = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPlaying) {
+                return;
+            }
+            mChannel.ping(mNetwork.now());
+            if (mSyncClock) {
+                mChannel.announceStart(false);
+            }
+            mNetwork.postDelayed(mPinger, ScoreChannel.PING_INTERVAL_MILLIS);
+        }
+    };
+
+    /**
+     * Creates a player and adds it to the room.
+     *
+     * @param clicksPerSecond        the average rate the player clicks at.
+     * @param gameMillis             the duration of the game.
+     * @param maxBroadcastsPerSecond the maximum rate of interim score broadcasts.
+     * @param syncClock              whether to follow the host's game clock.
+     */
+    BotPlayer(String id, final LoopbackNetwork network, Random random, double clicksPerSecond,
+            long gameMillis, int maxBroadcastsPerSecond, boolean syncClock) {
+        mId = id;
+        mNetwork = network;
+        mRandom = random;
+        mClicksPerSecond = clicksPerSecond;
+        mSyncClock = syncClock;
+        final RoomBroadcaster.Transport transport = network.join(id, this, this);
+        mBroadcaster = new RoomBroadcaster(new RoomBroadcaster.Transport() {
+            @Override
+            public void sendReliable(byte[] msg, String participantId) {
+                record(participantId, msg, true);
+                transport.sendReliable(msg, participantId);
+            }
+
+            @Override
+            public void sendUnreliableToOthers(byte[] msg) {
+                record(null, msg, false);
+                transport.sendUnreliableToOthers(msg);
+            }
+
+            @Override
+            public void sendUnreliable(byte[] msg, String participantId) {
+                record(participantId, msg, false);
+                transport.sendUnreliable(msg, participantId);
+            }
+        });
+        mClock = new GameClock(new GameClock.TimeSource() {
+            @Override
+            public long now() {
+                return network.now();
+            }
+        }, gameMillis, TICK_MILLIS);
+        mChannel = new ScoreChannel(mBroadcaster, maxBroadcastsPerSecond, mClock);
+    }
+
+    /** Records the player's game, as MainActivity does; call before the room connects. */
+    void setRecorder(MatchRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    @Override
+    public void onRoomConnected(String myId, List<String> participantIds) {
+        ArrayList<String> recipients = new ArrayList<String>(participantIds);
+        recipients.remove(myId);
+        mBroadcaster.setRecipients(recipients);
+        mChannel.addParticipants(recipients);
+        if (mRecorder != null) {
+            mRecorder.start(myId, mNetwork.now());
+            mRecorder.recordRoom(mNetwork.now(), recipients);
+        }
+
+        // the host is the participant with the lowest ID, as in MainActivity; with clock
+        // sync disabled, every player is its own host
+        String hostId = myId;
+        for (String participantId : participantIds) {
+            if (participantId.compareTo(hostId) < 0) {
+                hostId = participantId;
+            }
+        }
+        mChannel.setHostId(!mSyncClock || hostId.equals(myId) ? null : hostId);
+
+        // start the game
+        mScore = 0;
+        mChannel.reset();
+        mClock.start();
+        mPlaying = true;
+        if (mSyncClock) {
+            mChannel.announceStart(true);
+        }
+        mNetwork.postDelayed(mClick, nextClickDelay());
+        mNetwork.postDelayed(mTick, mClock.getDelayToNextTick());
+        mNetwork.postDelayed(mPinger, 0);
+    }
+
+    @Override
+    public void onRealTimeMessageReceived(String senderId, byte[] data, boolean reliable) {
+        if (mRecorder != null) {
+            mRecorder.recordIncoming(mNetwork.now(), senderId, data, reliable);
+        }
+        int clockSyncs = mChannel.getClockSyncs();
+        mChannel.onMessageReceived(senderId, data, mNetwork.now());
+        if (mChannel.getClockSyncs() != clockSyncs && mPlaying) {
+            // the game start moved, and so did the next tick
+            mNetwork.removeCallbacks(mTick);
+            mNetwork.postDelayed(mTick, Math.max(0, mClock.getDelayToNextTick()));
+        }
+    }
+
+    String getId() {
+        return mId;
+    }
+
+    /** Returns the player's score, final once the game is over. */
+    int getScore() {
+        return mScore;
+    }
+
+    /** Returns the virtual time the game was over at, or -1 if it isn't over yet. */
+    long getFinishedAt() {
+        return mFinishedAt;
+    }
+
+    ScoreChannel getChannel() {
+        return mChannel;
+    }
+
+    private void record(String recipientId, byte[] msg, boolean reliable) {
+        if (mRecorder != null) {
+            mRecorder.recordOutgoing(mNetwork.now(), recipientId, msg, reliable);
+        }
+    }
+
+    private void scheduleBroadcast(long delayMillis) {
+        if (delayMillis >= 0 && !mBroadcastPosted) {
+            mBroadcastPosted = true;
+            mNetwork.postDelayed(mPendingBroadcast, delayMillis);
+        }
+    }
+
+    // Returns the time until the next click: exponentially distributed, so clicks are a
+    // Poisson process, with bursts as well as pauses.
+    private long nextClickDelay() {
+        double seconds = -Math.log(1 - mRandom.nextDouble()) / mClicksPerSecond;
+        return Math.max(1, (long) (seconds * 1000));
+    }
+}
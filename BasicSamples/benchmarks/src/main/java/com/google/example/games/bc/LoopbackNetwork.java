@@ -0,0 +1,323 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A stand-in for the real-time multiplayer API, for a single room, that delivers messages
+ * between participants in the same process. It is a discrete-event simulation: time is
+ * virtual, and {@link #run()} processes message deliveries and timers in time order, so a
+ * 20-second game takes as long as its message handling.
+ *
+ * Unreliable messages get a random latency, so they may arrive out of order, and may be lost
+ * or delivered twice. Reliable ones are never lost, and arrive in the order they were sent to
+ * each participant, but each loss costs them a retransmission, one round trip later.
+ *
+ * The listener interfaces mirror the parts of RoomUpdateListener and
+ * RealTimeMessageReceivedListener the game uses, since the real ones can't be implemented
+ * outside of Android.
+ */
+final class LoopbackNetwork {
+
+    /** Conditions of the simulated network. */
+    static final class Conditions {
+        // One-way latency of every message, in milliseconds: a base, plus a random part
+        // uniformly distributed between 0 and jitterMillis.
+        long latencyMillis = 40;
+        long jitterMillis = 40;
+
+        // Probability that a message is lost, and that an unreliable one is delivered twice.
+        double lossRate = 0.05;
+        double duplicateRate = 0.01;
+    }
+
+    /** Called when the room is connected, i.e. every participant joined. */
+    interface RoomUpdateListener {
+        /**
+         * @param myId           the ID of the participant being notified.
+         * @param participantIds the IDs of all the participants, including myId.
+         */
+        void onRoomConnected(String myId, List<String> participantIds);
+    }
+
+    /** Called when a participant receives a message. */
+    interface RealTimeMessageReceivedListener {
+        void onRealTimeMessageReceived(String senderId, byte[] data, boolean reliable);
+    }
+
+    /** A participant of the room, and the transport it sends its messages with. */
+    final class Endpoint implements RoomBroadcaster.Transport {
+        final String mId;
+        final int mIndex;
+        final RoomUpdateListener mRoomListener;
+        final RealTimeMessageReceivedListener mMessageListener;
+
+        // Time the last reliable message to each participant, by index, is delivered at.
+        long[] mReliableTail = new long[0];
+
+        Endpoint(String id, int index, RoomUpdateListener roomListener,
+                RealTimeMessageReceivedListener messageListener) {
+            mId = id;
+            mIndex = index;
+            mRoomListener = roomListener;
+            mMessageListener = messageListener;
+        }
+
+        @Override
+        public void sendReliable(byte[] msg, String participantId) {
+            Endpoint to = mEndpointsById.get(participantId);
+            if (to == null) {
+                throw new IllegalArgumentException("Not in the room: " + participantId);
+            }
+            mReliableSent++;
+            long time = mNow + nextLatency();
+            while (mRandom.nextDouble() < mConditions.lossRate) {
+                time += 2 * mConditions.latencyMillis;
+                mRetransmissions++;
+            }
+            // delivered in order: never before the previous message to the same participant
+            time = Math.max(time, mReliableTail[to.mIndex]);
+            mReliableTail[to.mIndex] = time;
+            schedule(new Event(time, this, to, msg.clone(), true));
+        }
+
+        @Override
+        public void sendUnreliableToOthers(byte[] msg) {
+            byte[] data = msg.clone();
+            for (Endpoint to : mEndpoints) {
+                if (to != this) {
+                    sendUnreliable(data, to);
+                }
+            }
+        }
+
+        @Override
+        public void sendUnreliable(byte[] msg, String participantId) {
+            Endpoint to = mEndpointsById.get(participantId);
+            if (to == null) {
+                throw new IllegalArgumentException("Not in the room: " + participantId);
+            }
+            sendUnreliable(msg.clone(), to);
+        }
+
+        private void sendUnreliable(byte[] data, Endpoint to) {
+            mUnreliableSent++;
+            if (mRandom.nextDouble() < mConditions.lossRate) {
+                mLost++;
+                return;
+            }
+            schedule(new Event(mNow + nextLatency(), this, to, data, false));
+            if (mRandom.nextDouble() < mConditions.duplicateRate) {
+                mDuplicated++;
+                schedule(new Event(mNow + nextLatency(), this, to, data, false));
+            }
+        }
+    }
+
+    // A timer or a message delivery, ordered by time, then by scheduling order.
+    private static final class Event implements Comparable<Event> {
+        final long mTime;
+        long mOrder;
+        final Runnable mTask;
+        final Endpoint mFrom;
+        final Endpoint mTo;
+        final byte[] mData;
+        final boolean mReliable;
+
+        Event(long time, Runnable task) {
+            mTime = time;
+            mTask = task;
+            mFrom = null;
+            mTo = null;
+            mData = null;
+            mReliable = false;
+        }
+
+        Event(long time, Endpoint from, Endpoint to, byte[] data, boolean reliable) {
+            mTime = time;
+            mTask = null;
+            mFrom = from;
+            mTo = to;
+            mData = data;
+            mReliable = reliable;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+        }
+    }
+
+    private final Conditions mConditions;
+    private final Random mRandom;
+
+    private final ArrayList<Endpoint> mEndpoints = new ArrayList<Endpoint>();
+    private final HashMap<String, Endpoint> mEndpointsById = new HashMap<String, Endpoint>();
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+    private long mNextOrder = 0;
+
+    // Current virtual time, in milliseconds.
+    private long mNow = 0;
+
+    // Counters, for the reports.
+    private long mEventsRun = 0;
+    private long mReliableSent = 0;
+    private long mUnreliableSent = 0;
+    private long mDelivered = 0;
+    private long mLost = 0;
+    private long mDuplicated = 0;
+    private long mRetransmissions = 0;
+    private long mLastDeliveryAt = 0;
+
+    /** @param random the source of the latencies and losses, seeded for reproducible runs. */
+    LoopbackNetwork(Conditions conditions, Random random) {
+        mConditions = conditions;
+        mRandom = random;
+    }
+
+    /**
+     * Adds a participant to the room.
+     *
+     * @return the transport the participant sends its messages with.
+     */
+    Endpoint join(String participantId, RoomUpdateListener roomListener,
+            RealTimeMessageReceivedListener messageListener) {
+        if (mEndpointsById.containsKey(participantId)) {
+            throw new IllegalArgumentException("Already in the room: " + participantId);
+        }
+        Endpoint endpoint = new Endpoint(participantId, mEndpoints.size(), roomListener,
+                messageListener);
+        mEndpoints.add(endpoint);
+        mEndpointsById.put(participantId, endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Connects the room: every participant is notified, each after a random delay, since
+     * devices don't learn about it at the same time.
+     *
+     * @param maxSkewMillis the maximum delay.
+     */
+    void connect(long maxSkewMillis) {
+        ArrayList<String> ids = new ArrayList<String>(mEndpoints.size());
+        for (Endpoint endpoint : mEndpoints) {
+            ids.add(endpoint.mId);
+            endpoint.mReliableTail = new long[mEndpoints.size()];
+        }
+        final List<String> participantIds = Collections.unmodifiableList(ids);
+        for (final Endpoint endpoint : mEndpoints) {
+            long skew = maxSkewMillis > 0 ? (long) (mRandom.nextDouble() * maxSkewMillis) : 0;
+            postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    endpoint.mRoomListener.onRoomConnected(endpoint.mId, participantIds);
+                }
+            }, skew);
+        }
+    }
+
+    /** Runs the task once the given virtual time has elapsed, like Handler.postDelayed(). */
+    void postDelayed(Runnable task, long delayMillis) {
+        schedule(new Event(mNow + Math.max(0, delayMillis), task));
+    }
+
+    /** Cancels the pending runs of the task, like Handler.removeCallbacks(). */
+    void removeCallbacks(Runnable task) {
+        Iterator<Event> it = mEvents.iterator();
+        while (it.hasNext()) {
+            if (it.next().mTask == task) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Returns the current virtual time, in milliseconds. */
+    long now() {
+        return mNow;
+    }
+
+    /** Processes events in time order until there are none left. */
+    void run() {
+        Event event;
+        while ((event = mEvents.poll()) != null) {
+            mNow = event.mTime;
+            mEventsRun++;
+            if (event.mTask != null) {
+                event.mTask.run();
+            } else {
+                mDelivered++;
+                mLastDeliveryAt = mNow;
+                event.mTo.mMessageListener.onRealTimeMessageReceived(event.mFrom.mId,
+                        event.mData, event.mReliable);
+            }
+        }
+    }
+
+    long getEventsRun() {
+        return mEventsRun;
+    }
+
+    long getReliableSent() {
+        return mReliableSent;
+    }
+
+    long getUnreliableSent() {
+        return mUnreliableSent;
+    }
+
+    long getDelivered() {
+        return mDelivered;
+    }
+
+    long getLost() {
+        return mLost;
+    }
+
+    long getDuplicated() {
+        return mDuplicated;
+    }
+
+    long getRetransmissions() {
+        return mRetransmissions;
+    }
+
+    /** Returns the virtual time the last message was delivered at. */
+    long getLastDeliveryAt() {
+        return mLastDeliveryAt;
+    }
+
+    private void schedule(Event event) {
+        event.mOrder = mNextOrder++;
+        mEvents.add(event);
+    }
+
+    private long nextLatency() {
+        long jitter = mConditions.jitterMillis > 0
+                ? (long) (mRandom.nextDouble() * mConditions.jitterMillis) : 0;
+        return mConditions.latencyMillis + jitter;
+    }
+}
@@ -0,0 +1,226 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a recording written by {@link MatchRecorder}, one record at a time. Participant ID
+ * definitions are resolved as they are read, so {@link #next()} only returns the records that
+ * say what happened, with absolute times and participant IDs.
+ *
+ * A recording cut short, because the app was killed before the writer thread was done, ends
+ * at its last complete record.
+ */
+final class MatchRecordReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final InputStream mIn;
+    private final long mWallClockMillis;
+    private final ArrayList<String> mIds = new ArrayList<String>();
+    private String mMyId = null;
+    private long mTime = 0;
+    private boolean mTruncated = false;
+
+    // The current record.
+    byte type;
+    long timeMillis;
+
+    // The participant a message was received from or sent to; null for a message sent to all
+    // the others.
+    String participantId;
+
+    boolean reliable;
+    byte[] payload;
+
+    // For REC_ROOM records, the peers our broadcasts go to.
+    final ArrayList<String> roomIds = new ArrayList<String>();
+
+    MatchRecordReader(File file) throws IOException {
+        mIn = new BufferedInputStream(new FileInputStream(file));
+        try {
+            if (readInt() != MatchRecorder.MAGIC) {
+                throw new IOException(file + " isn't a match recording.");
+            }
+            int version = readByte();
+            if (version != MatchRecorder.VERSION) {
+                throw new IOException("Unsupported recording version " + version + ".");
+            }
+            mWallClockMillis = readLong();
+        } catch (IOException e) {
+            mIn.close();
+            throw e;
+        }
+    }
+
+    /** Returns the wall clock time the recording started at. */
+    long getWallClockMillis() {
+        return mWallClockMillis;
+    }
+
+    /** Returns the participant ID of the player who recorded the game, once REC_START is read. */
+    String getMyId() {
+        return mMyId;
+    }
+
+    /** Returns whether the recording ended in the middle of a record. */
+    boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Reads the next record into the fields of this reader.
+     *
+     * @return false at the end of the recording.
+     */
+    boolean next() throws IOException {
+        try {
+            while (true) {
+                int recordType = mIn.read();
+                if (recordType < 0) {
+                    return false;
+                }
+                type = (byte) recordType;
+                mTime += readVarint();
+                timeMillis = mTime;
+                participantId = null;
+                reliable = false;
+                payload = null;
+                roomIds.clear();
+
+                switch (type) {
+                    case MatchRecorder.REC_ID:
+                        int index = (int) readVarint();
+                        if (index != mIds.size()) {
+                            throw new IOException("ID " + index + " defined out of order.");
+                        }
+                        mIds.add(new String(readBytes(), UTF_8));
+                        continue;
+                    case MatchRecorder.REC_START:
+                        mMyId = id(readVarint());
+                        return true;
+                    case MatchRecorder.REC_ROOM:
+                        long count = readVarint();
+                        for (long i = 0; i < count; i++) {
+                            roomIds.add(id(readVarint()));
+                        }
+                        return true;
+                    case MatchRecorder.REC_IN:
+                        participantId = id(readVarint());
+                        readPayload();
+                        return true;
+                    case MatchRecorder.REC_OUT:
+                        long recipient = readVarint();
+                        participantId = recipient == 0 ? null : id(recipient - 1);
+                        readPayload();
+                        return true;
+                    case MatchRecorder.REC_END:
+                        return true;
+                    default:
+                        throw new IOException("Unknown record type " + type + ".");
+                }
+            }
+        } catch (EOFException e) {
+            mTruncated = true;
+            return false;
+        }
+    }
+
+    /** Returns the IDs of every participant seen so far, us included. */
+    List<String> getParticipantIds() {
+        return mIds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private String id(long index) throws IOException {
+        if (index < 0 || index >= mIds.size()) {
+            throw new IOException("Undefined ID " + index + ".");
+        }
+        return mIds.get((int) index);
+    }
+
+    private void readPayload() throws IOException {
+        reliable = (readByte() & MatchRecorder.FLAG_RELIABLE) != 0;
+        payload = readBytes();
+    }
+
+    private byte[] readBytes() throws IOException {
+        long length = readVarint();
+        if (length > MatchRecorder.MAX_PAYLOAD) {
+            throw new IOException("Record too long: " + length + " bytes.");
+        }
+        byte[] bytes = new byte[(int) length];
+        int read = 0;
+        while (read < bytes.length) {
+            int n = mIn.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    private int readByte() throws IOException {
+        int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    private int readInt() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    private long readLong() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+}
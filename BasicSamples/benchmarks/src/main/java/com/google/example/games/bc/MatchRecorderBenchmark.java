@@ -0,0 +1,85 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks what recording a message costs the game thread: encoding it into the ring buffer
+ * of a {@link MatchRecorder}, while its writer thread drains the buffer to a file. A game
+ * records a few dozen messages per second, so even a microsecond per record would be well
+ * under 1% of a core. The benchmark records far faster than any game, so the writer may fall
+ * behind and records be dropped; that's counted, not waited for, as in the game.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchRecorderBenchmark {
+
+    private final byte[] mScore = new ScoreMessage()
+            .set(ScoreMessage.TYPE_INTERIM, 12, 42, ScoreMessage.NO_TIMESTAMP).encode().clone();
+    private final byte[] mPing = new ScoreMessage()
+            .set(ScoreMessage.TYPE_PING, 3, 0, 123456789L).encode().clone();
+
+    private File mFile;
+    private MatchRecorder mRecorder;
+    private long mNow = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("match-", ".bcr");
+        mRecorder = new MatchRecorder(mFile, Long.MAX_VALUE, Integer.MAX_VALUE);
+        mRecorder.start("p_1000", mNow);
+        mRecorder.recordRoom(mNow, Arrays.asList("p_1001", "p_1002", "p_1003"));
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mRecorder.stop(mNow);
+        mRecorder.awaitClosed();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int recordIncoming() {
+        mRecorder.recordIncoming(++mNow, "p_1002", mScore, false);
+        return mRecorder.getRecords();
+    }
+
+    @Benchmark
+    public int recordOutgoing() {
+        mRecorder.recordOutgoing(++mNow, null, mPing, false);
+        return mRecorder.getRecords();
+    }
+}
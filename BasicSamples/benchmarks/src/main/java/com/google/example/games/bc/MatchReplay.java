@@ -0,0 +1,205 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TreeSet;
+
+/**
+ * Replays a game recorded by {@link MatchRecorder}, on the JVM, to see how the recording
+ * player's view of the scores evolved. The messages received are fed, at their recorded
+ * times, to the same {@link ScoreChannel} the game uses, so the replay goes through the same
+ * states the game did, and prints the timeline of the scores: each change of a peer's score,
+ * and each score we sent.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:replayMatch -PreplayFile=match-1446051234567.bcr
+ * </pre>
+ *
+ * Recordings are kept in the app's files, under recordings/, and can be pulled with
+ * "adb shell run-as com.google.example.games.bc cat files/recordings/&lt;name&gt;".
+ * Pass --quiet before the file to only print the final state.
+ */
+final class MatchReplay {
+
+    // Interval between game ticks, as in MainActivity.
+    private static final long TICK_MILLIS = 1000;
+
+    private final PrintStream mOut;
+    private final boolean mVerbose;
+
+    // The replay's current time, on the recording's clock.
+    private long mNow;
+    private long mStartedAt = -1;
+
+    private final ScoreChannel mChannel;
+    private final RoomBroadcaster mBroadcaster;
+    private final ScoreMessage mSent = new ScoreMessage();
+
+    // Our last score sent, and whether it was final.
+    private int mMyScore = 0;
+    private boolean mMyScoreFinal = false;
+
+    private int mReceived = 0;
+    private int mSentCount = 0;
+
+    MatchReplay(PrintStream out, boolean verbose, long gameMillis) {
+        mOut = out;
+        mVerbose = verbose;
+
+        // what the channel sends during the replay, pongs for instance, goes nowhere: what
+        // was really sent is in the recording
+        mBroadcaster = new RoomBroadcaster(new RoomBroadcaster.Transport() {
+            @Override
+            public void sendReliable(byte[] msg, String participantId) {
+            }
+
+            @Override
+            public void sendUnreliableToOthers(byte[] msg) {
+            }
+
+            @Override
+            public void sendUnreliable(byte[] msg, String participantId) {
+            }
+        });
+        GameClock clock = new GameClock(new GameClock.TimeSource() {
+            @Override
+            public long now() {
+                return mNow;
+            }
+        }, gameMillis, TICK_MILLIS);
+        mChannel = new ScoreChannel(mBroadcaster, 10 /* as in MainActivity */, clock);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean verbose = true;
+        int arg = 0;
+        if (args.length > 0 && args[0].equals("--quiet")) {
+            verbose = false;
+            arg++;
+        }
+        if (arg != args.length - 1) {
+            System.err.println("Usage: MatchReplay [--quiet] <recording>");
+            System.exit(2);
+        }
+        new MatchReplay(System.out, verbose, 20000).replay(new File(args[arg]));
+    }
+
+    /** Replays a recording, printing its timeline as it goes, and the final state. */
+    void replay(File file) throws IOException {
+        MatchRecordReader reader = new MatchRecordReader(file);
+        try {
+            mOut.println("Recorded " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss")
+                    .format(new Date(reader.getWallClockMillis())));
+            while (reader.next()) {
+                mNow = reader.timeMillis;
+                apply(reader);
+            }
+            if (reader.isTruncated()) {
+                mOut.println("(recording truncated)");
+            }
+            printSummary(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Returns the channel the recording is replayed through, in its state so far. */
+    ScoreChannel getChannel() {
+        return mChannel;
+    }
+
+    private void apply(MatchRecordReader record) {
+        switch (record.type) {
+            case MatchRecorder.REC_START:
+                mStartedAt = mNow;
+                mChannel.reset();
+                mChannel.getClock().start();
+                mMyScore = 0;
+                mMyScoreFinal = false;
+                event(record.getMyId(), "starts the game");
+                break;
+            case MatchRecorder.REC_ROOM:
+                mBroadcaster.setRecipients(record.roomIds);
+                mChannel.addParticipants(record.roomIds);
+
+                // the host is the participant with the lowest ID, as in MainActivity
+                String myId = record.getMyId();
+                String hostId = myId;
+                for (String participantId : record.roomIds) {
+                    if (hostId == null || participantId.compareTo(hostId) < 0) {
+                        hostId = participantId;
+                    }
+                }
+                mChannel.setHostId(hostId == null || hostId.equals(myId) ? null : hostId);
+                event(myId, "is in a room with " + record.roomIds
+                        + (mChannel.isHost() ? ", as the host" : ", hosted by " + hostId));
+                break;
+            case MatchRecorder.REC_IN:
+                mReceived++;
+                int clockSyncs = mChannel.getClockSyncs();
+                PeerScoreTracker scores = mChannel.getPeerScores();
+                String senderId = record.participantId;
+                if (mChannel.onMessageReceived(senderId, record.payload, mNow)) {
+                    event(senderId, "is at " + scores.getScore(senderId)
+                            + (scores.isFinished(senderId) ? " final" : ""));
+                } else if (mChannel.getClockSyncs() != clockSyncs) {
+                    event(senderId, "moves our clock to "
+                            + mChannel.getClock().getElapsedMillis() + " ms into the game");
+                }
+                break;
+            case MatchRecorder.REC_OUT:
+                mSentCount++;
+                if (mSent.decode(record.payload) && mSent.isScore()
+                        && (mSent.score != mMyScore || mSent.isFinal() != mMyScoreFinal)) {
+                    mMyScore = mSent.score;
+                    mMyScoreFinal = mSent.isFinal();
+                    event(record.getMyId(), "sends " + mMyScore + (mMyScoreFinal ? " final" : ""));
+                }
+                break;
+            case MatchRecorder.REC_END:
+                event(record.getMyId(), "leaves the game");
+                break;
+        }
+    }
+
+    private void event(String participantId, String what) {
+        if (mVerbose) {
+            long elapsed = mStartedAt < 0 ? 0 : mNow - mStartedAt;
+            mOut.println(String.format("%8d ms  %-12s %s", elapsed, participantId, what));
+        }
+    }
+
+    private void printSummary(MatchRecordReader reader) {
+        mOut.println("Messages: " + mReceived + " received, " + mSentCount + " sent, "
+                + mChannel.getUndecodable() + " undecodable, "
+                + mChannel.getPeerScores().getStaleDropped() + " stale");
+        mOut.println("Clock syncs: " + mChannel.getClockSyncs());
+        mOut.println("Final scores:");
+        mOut.println("  " + reader.getMyId() + " " + mMyScore + (mMyScoreFinal ? " final" : ""));
+        PeerScoreTracker scores = mChannel.getPeerScores();
+        TreeSet<String> peers = new TreeSet<String>(reader.getParticipantIds());
+        peers.remove(reader.getMyId());
+        for (String peer : peers) {
+            mOut.println("  " + peer + " " + scores.getScore(peer)
+                    + (scores.isFinished(peer) ? " final" : ""));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the message pipeline's queue, with a thread offering messages, as the receive
+ * callback does, and another draining them, as the network thread does. The offering side is
+ * what the UI thread pays per message; it never waits for the other, and drops messages if
+ * the queue is full, which this benchmark, offering far faster than any room sends, makes
+ * happen. The sink decodes each message, as the game's does.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagePipelineBenchmark {
+
+    private static final String SENDER = "p_1001";
+
+    private final byte[] mMsg = new ScoreMessage()
+            .set(ScoreMessage.TYPE_INTERIM, 12, 42, ScoreMessage.NO_TIMESTAMP).encode().clone();
+
+    private final ScoreMessage mDecoded = new ScoreMessage();
+    private int mScoreTotal = 0;
+
+    // The draining thread polls, so there's nothing to post the drain task to.
+    private final MessagePipeline mPipeline = new MessagePipeline(256, new Executor() {
+        @Override
+        public void execute(Runnable task) {
+        }
+    }, new MessagePipeline.Sink() {
+        @Override
+        public void onMessage(String senderId, byte[] data, boolean reliable,
+                long receivedAtMillis) {
+            if (mDecoded.decode(data)) {
+                mScoreTotal += mDecoded.score;
+            }
+        }
+
+        @Override
+        public void onBatchEnd() {
+        }
+    });
+
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(1)
+    public boolean offer() {
+        return mPipeline.offer(SENDER, mMsg, false, 0);
+    }
+
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(1)
+    public int drain() {
+        mPipeline.drain();
+        return mScoreTotal;
+    }
+}
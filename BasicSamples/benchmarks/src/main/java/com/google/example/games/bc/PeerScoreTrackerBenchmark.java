@@ -0,0 +1,108 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks applying a received score, from each peer in turn: the HashMap and HashSet the
+ * game used to keep scores and finished peers in, against PeerScoreTracker's arrays indexed
+ * by participant number. The sender IDs are new strings each time, as the API returns them,
+ * so their hash codes aren't cached. Run with -PjmhProfiler=gc to see the boxing of the map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerScoreTrackerBenchmark {
+
+    // Number of peers in the room, not including us.
+    @Param({"1", "3", "7"})
+    public int peers;
+
+    // What the game kept before.
+    private final HashMap<String, Integer> mParticipantScore = new HashMap<String, Integer>();
+    private final HashSet<String> mFinishedParticipants = new HashSet<String>();
+
+    private final ParticipantIndex mIndex = new ParticipantIndex();
+    private final PeerScoreTracker mTracker = new PeerScoreTracker(mIndex);
+    private final ScoreMessage mMsg = new ScoreMessage();
+
+    // The sender IDs, as char arrays to build new strings from.
+    private char[][] mSenders;
+    private int mNext = 0;
+    private int mSequence = 0;
+
+    @Setup
+    public void setUp() {
+        mSenders = new char[peers][];
+        ArrayList<String> ids = new ArrayList<String>();
+        for (int i = 0; i < peers; i++) {
+            String id = "p_" + (1000 + i) + "_" + Long.toHexString(0x5DEECE66DL * (i + 1));
+            mSenders[i] = id.toCharArray();
+            ids.add(id);
+        }
+        mIndex.addAll(ids);
+    }
+
+    private String nextSender() {
+        char[] sender = mSenders[mNext];
+        mNext = (mNext + 1) % mSenders.length;
+        return new String(sender);
+    }
+
+    /** What onRealTimeMessageReceived() used to do with a score. */
+    @Benchmark
+    public int hashMap() {
+        String sender = nextSender();
+        int score = mSequence++ & 0xFFFF;
+        int existingScore = mParticipantScore.containsKey(sender)
+                ? mParticipantScore.get(sender) : 0;
+        if (score > existingScore) {
+            mParticipantScore.put(sender, score);
+        }
+        if ((score & 0xFF) == 0) {
+            mFinishedParticipants.add(sender);
+        }
+        return mParticipantScore.size();
+    }
+
+    @Benchmark
+    public boolean participantIndex() {
+        String sender = nextSender();
+        int sequence = mSequence++ & Integer.MAX_VALUE;
+        mMsg.set((sequence & 0xFF) == 0 ? ScoreMessage.TYPE_FINAL : ScoreMessage.TYPE_INTERIM,
+                sequence, sequence & 0xFFFF, ScoreMessage.NO_TIMESTAMP);
+        return mTracker.onScore(sender, mMsg);
+    }
+}
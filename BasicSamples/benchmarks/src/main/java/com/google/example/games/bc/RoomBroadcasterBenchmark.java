@@ -0,0 +1,155 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the CPU cost of one score broadcast, excluding the network calls themselves:
+ * the per-participant loop broadcastScore() used to run, which checks every participant's ID
+ * and status and sends to each, against RoomBroadcaster's cached recipients.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBroadcasterBenchmark {
+
+    // Status of the participants who joined the room, as in Participant.STATUS_JOINED.
+    private static final int STATUS_JOINED = 2;
+
+    /** Stand-in for the API's Participant, with what the old loop looked at. */
+    static final class FakeParticipant {
+        final String mId;
+        final int mStatus;
+
+        FakeParticipant(String id, int status) {
+            mId = id;
+            mStatus = status;
+        }
+
+        String getParticipantId() {
+            return mId;
+        }
+
+        int getStatus() {
+            return mStatus;
+        }
+    }
+
+    /** Transport that only counts the sends. */
+    static final class CountingTransport implements RoomBroadcaster.Transport {
+        int mSends;
+
+        @Override
+        public void sendReliable(byte[] msg, String participantId) {
+            mSends++;
+        }
+
+        @Override
+        public void sendUnreliableToOthers(byte[] msg) {
+            mSends++;
+        }
+
+        @Override
+        public void sendUnreliable(byte[] msg, String participantId) {
+            mSends++;
+        }
+    }
+
+    // Number of participants in the room, including us. Rooms hold 2 to 4 players; 8 shows
+    // how the costs scale.
+    @Param({"2", "4", "8"})
+    public int roomSize;
+
+    private final CountingTransport mTransport = new CountingTransport();
+    private final RoomBroadcaster mBroadcaster = new RoomBroadcaster(mTransport);
+    private final ArrayList<FakeParticipant> mParticipants = new ArrayList<FakeParticipant>();
+    private final byte[] mMsg = new ScoreMessage()
+            .set(ScoreMessage.TYPE_INTERIM, 1, 42, ScoreMessage.NO_TIMESTAMP).encode();
+    private String mMyId;
+
+    @Setup
+    public void setUp() {
+        ArrayList<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < roomSize; i++) {
+            // IDs are built at runtime, as they are when read from the API
+            String id = new StringBuilder("p_").append(1000 + i).toString();
+            mParticipants.add(new FakeParticipant(id, STATUS_JOINED));
+            if (i == 0) {
+                mMyId = new String(id);
+            } else {
+                recipients.add(id);
+            }
+        }
+        mBroadcaster.setRecipients(recipients);
+    }
+
+    /** What broadcastScore(false) used to do. */
+    @Benchmark
+    public int perParticipantLoopUnreliable() {
+        int recipients = 0;
+        for (FakeParticipant p : mParticipants) {
+            if (p.getParticipantId().equals(mMyId))
+                continue;
+            if (p.getStatus() != STATUS_JOINED)
+                continue;
+            ++recipients;
+            mTransport.sendUnreliable(mMsg, p.getParticipantId());
+        }
+        return recipients;
+    }
+
+    @Benchmark
+    public int cachedFanOutUnreliable() {
+        return mBroadcaster.broadcast(mMsg, false);
+    }
+
+    /** What broadcastScore(true) used to do. */
+    @Benchmark
+    public int perParticipantLoopReliable() {
+        int recipients = 0;
+        for (FakeParticipant p : mParticipants) {
+            if (p.getParticipantId().equals(mMyId))
+                continue;
+            if (p.getStatus() != STATUS_JOINED)
+                continue;
+            ++recipients;
+            mTransport.sendReliable(mMsg, p.getParticipantId());
+        }
+        return recipients;
+    }
+
+    @Benchmark
+    public int cachedFanOutReliable() {
+        return mBroadcaster.broadcast(mMsg, true);
+    }
+}
@@ -0,0 +1,330 @@
+/* Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Plays ButtonClicker games between {@link BotPlayer}s over {@link LoopbackNetwork}s,
+ * headless, to measure how fast the game's message handling runs and check that every player
+ * ends up with the final score of every other one, whatever the network does to the messages.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:simulateRooms -PsimArgs="--rooms 1000 --loss 0.2"
+ * </pre>
+ *
+ * Options: --rooms, --players, --game-millis, --clicks-per-second (a comma-separated list,
+ * assigned to the players in turn), --max-broadcasts-per-second, --latency, --jitter, --loss,
+ * --duplicates, --skew (the maximum delay between players starting), --sync (true or false:
+ * whether players follow the host's game clock), --seed, --out (a file to write the results
+ * to, as JSON) and --record (a file to record the game of the first player of the first room
+ * to, for {@link MatchReplay}). Exits with status 1 if any room didn't converge.
+ */
+final class RoomSimulator {
+
+    // How many of the rooms that didn't converge are described in the results.
+    private static final int MAX_REPORTED_FAILURES = 10;
+
+    int mRooms = 500;
+    int mPlayers = 4;
+    long mGameMillis = 20000;
+    double[] mClicksPerSecond = {2, 5, 8, 12};
+    int mMaxBroadcastsPerSecond = 10; // as in MainActivity
+    long mSkewMillis = 300;
+    boolean mSyncClock = true;
+    long mSeed = 1;
+    File mOut = null;
+    File mRecord = null;
+    final LoopbackNetwork.Conditions mConditions = new LoopbackNetwork.Conditions();
+
+    // Totals over all the rooms.
+    private long mEvents;
+    private long mClicks;
+    private long mReliableSent;
+    private long mUnreliableSent;
+    private long mDelivered;
+    private long mLost;
+    private long mDuplicated;
+    private long mRetransmissions;
+    private long mStaleDropped;
+    private long mSettleMillisTotal;
+    private long mSettleMillisMax;
+    private long mEndSpreadMillisTotal;
+    private long mEndSpreadMillisMax;
+    private long mRttSamples;
+    private long mP50Total;
+    private int mP95Max;
+    private double mLossEstimateTotal;
+    private long mRateTotal;
+    private int mConverged;
+    private final ArrayList<String> mFailures = new ArrayList<String>();
+
+    public static void main(String[] args) throws IOException, JSONException {
+        RoomSimulator simulator = new RoomSimulator();
+        simulator.parseArgs(args);
+        long start = System.nanoTime();
+        simulator.run();
+        long wallNanos = System.nanoTime() - start;
+
+        JSONObject results = simulator.toJson(wallNanos);
+        System.out.println(results.toString(2));
+        if (simulator.mOut != null) {
+            simulator.mOut.getAbsoluteFile().getParentFile().mkdirs();
+            Writer writer = new OutputStreamWriter(new FileOutputStream(simulator.mOut), "UTF-8");
+            try {
+                writer.write(results.toString(2));
+            } finally {
+                writer.close();
+            }
+        }
+        if (simulator.mConverged != simulator.mRooms) {
+            System.exit(1);
+        }
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String name = args[i];
+            String value = args[i + 1];
+            if (name.equals("--rooms")) {
+                mRooms = Integer.parseInt(value);
+            } else if (name.equals("--players")) {
+                mPlayers = Integer.parseInt(value);
+            } else if (name.equals("--game-millis")) {
+                mGameMillis = Long.parseLong(value);
+            } else if (name.equals("--clicks-per-second")) {
+                String[] rates = value.split(",");
+                mClicksPerSecond = new double[rates.length];
+                for (int j = 0; j < rates.length; j++) {
+                    mClicksPerSecond[j] = Double.parseDouble(rates[j]);
+                }
+            } else if (name.equals("--max-broadcasts-per-second")) {
+                mMaxBroadcastsPerSecond = Integer.parseInt(value);
+            } else if (name.equals("--latency")) {
+                mConditions.latencyMillis = Long.parseLong(value);
+            } else if (name.equals("--jitter")) {
+                mConditions.jitterMillis = Long.parseLong(value);
+            } else if (name.equals("--loss")) {
+                mConditions.lossRate = Double.parseDouble(value);
+            } else if (name.equals("--duplicates")) {
+                mConditions.duplicateRate = Double.parseDouble(value);
+            } else if (name.equals("--skew")) {
+                mSkewMillis = Long.parseLong(value);
+            } else if (name.equals("--sync")) {
+                mSyncClock = Boolean.parseBoolean(value);
+            } else if (name.equals("--seed")) {
+                mSeed = Long.parseLong(value);
+            } else if (name.equals("--out")) {
+                mOut = new File(value);
+            } else if (name.equals("--record")) {
+                mRecord = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (mPlayers < 2) {
+            throw new IllegalArgumentException("A room needs at least 2 players.");
+        }
+        if (mConditions.lossRate >= 1) {
+            throw new IllegalArgumentException("Loss rate must be less than 1.");
+        }
+    }
+
+    /** Plays every room, one after the other. */
+    void run() {
+        for (int room = 0; room < mRooms; room++) {
+            playRoom(room);
+        }
+    }
+
+    private void playRoom(int room) {
+        // each room has its own random sequence, so any room can be replayed on its own
+        Random random = new Random(mSeed * 1000003 + room);
+        LoopbackNetwork network = new LoopbackNetwork(mConditions, random);
+        BotPlayer[] players = new BotPlayer[mPlayers];
+        for (int i = 0; i < mPlayers; i++) {
+            players[i] = new BotPlayer("p_" + (i + 1), network, random,
+                    mClicksPerSecond[i % mClicksPerSecond.length], mGameMillis,
+                    mMaxBroadcastsPerSecond, mSyncClock);
+        }
+        MatchRecorder recorder = null;
+        if (room == 0 && mRecord != null) {
+            recorder = new MatchRecorder(mRecord, Long.MAX_VALUE, Integer.MAX_VALUE);
+            players[0].setRecorder(recorder);
+        }
+        network.connect(mSkewMillis);
+        network.run();
+        if (recorder != null) {
+            recorder.stop(network.now());
+            awaitRecording(recorder);
+        }
+
+        // Every player must know the final score of every other one.
+        StringBuilder failure = null;
+        long firstFinishedAt = Long.MAX_VALUE;
+        long lastFinishedAt = 0;
+        for (BotPlayer player : players) {
+            firstFinishedAt = Math.min(firstFinishedAt, player.getFinishedAt());
+            lastFinishedAt = Math.max(lastFinishedAt, player.getFinishedAt());
+            PeerScoreTracker peerScores = player.getChannel().getPeerScores();
+            for (BotPlayer peer : players) {
+                if (peer == player) {
+                    continue;
+                }
+                int seen = peerScores.getScore(peer.getId());
+                boolean finished = peerScores.isFinished(peer.getId());
+                if (seen != peer.getScore() || !finished) {
+                    if (failure == null) {
+                        failure = new StringBuilder("room " + room + ":");
+                    }
+                    failure.append(' ').append(player.getId()).append(" has ")
+                            .append(peer.getId()).append(" at ").append(seen)
+                            .append(finished ? " final" : " interim")
+                            .append(" instead of ").append(peer.getScore());
+                }
+            }
+            mClicks += player.getChannel().getScheduler().getScoreChanges();
+            mStaleDropped += peerScores.getStaleDropped();
+            mRateTotal += player.getChannel().getBroadcastRate();
+
+            // what the player measured of the network, to compare with its conditions
+            for (BotPlayer peer : players) {
+                LatencyMonitor.Stats stats = player.getChannel().getLatency()
+                        .getStats(peer.getId());
+                if (peer != player && stats != null && stats.samples > 0) {
+                    mRttSamples++;
+                    mP50Total += stats.p50;
+                    mP95Max = Math.max(mP95Max, stats.p95);
+                    mLossEstimateTotal += stats.loss;
+                }
+            }
+        }
+
+        if (failure == null) {
+            mConverged++;
+        } else if (mFailures.size() < MAX_REPORTED_FAILURES) {
+            mFailures.add(failure.toString());
+        }
+
+        // how long the last final score took to reach everyone, once the game was over
+        long settleMillis = Math.max(0, network.getLastDeliveryAt() - lastFinishedAt);
+        mSettleMillisTotal += settleMillis;
+        mSettleMillisMax = Math.max(mSettleMillisMax, settleMillis);
+
+        // how far apart the players' games ended
+        long spreadMillis = lastFinishedAt - firstFinishedAt;
+        mEndSpreadMillisTotal += spreadMillis;
+        mEndSpreadMillisMax = Math.max(mEndSpreadMillisMax, spreadMillis);
+
+        mEvents += network.getEventsRun();
+        mReliableSent += network.getReliableSent();
+        mUnreliableSent += network.getUnreliableSent();
+        mDelivered += network.getDelivered();
+        mLost += network.getLost();
+        mDuplicated += network.getDuplicated();
+        mRetransmissions += network.getRetransmissions();
+    }
+
+    private static void awaitRecording(MatchRecorder recorder) {
+        try {
+            recorder.awaitClosed();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (recorder.getError() != null) {
+            throw new IllegalStateException("Can't record to " + recorder.getFile(),
+                    recorder.getError());
+        }
+        System.err.println("Recorded " + recorder.getRecords() + " records to "
+                + recorder.getFile() + ", " + recorder.getDropped() + " dropped");
+    }
+
+    JSONObject toJson(long wallNanos) throws JSONException {
+        double wallSeconds = wallNanos / 1e9;
+
+        JSONObject config = new JSONObject();
+        config.put("rooms", mRooms);
+        config.put("players", mPlayers);
+        config.put("gameMillis", mGameMillis);
+        JSONArray rates = new JSONArray();
+        for (double rate : mClicksPerSecond) {
+            rates.put(rate);
+        }
+        config.put("clicksPerSecond", rates);
+        config.put("maxBroadcastsPerSecond", mMaxBroadcastsPerSecond);
+        config.put("latencyMillis", mConditions.latencyMillis);
+        config.put("jitterMillis", mConditions.jitterMillis);
+        config.put("lossRate", mConditions.lossRate);
+        config.put("duplicateRate", mConditions.duplicateRate);
+        config.put("skewMillis", mSkewMillis);
+        config.put("syncClock", mSyncClock);
+        config.put("seed", mSeed);
+
+        JSONObject throughput = new JSONObject();
+        throughput.put("wallMillis", wallNanos / 1000000);
+        throughput.put("events", mEvents);
+        throughput.put("messagesDelivered", mDelivered);
+        throughput.put("messagesPerSecond", (long) (mDelivered / wallSeconds));
+        throughput.put("simulatedGamesPerSecond", mRooms / wallSeconds);
+
+        JSONObject traffic = new JSONObject();
+        traffic.put("clicks", mClicks);
+        traffic.put("reliableSent", mReliableSent);
+        traffic.put("unreliableSent", mUnreliableSent);
+        traffic.put("lost", mLost);
+        traffic.put("duplicated", mDuplicated);
+        traffic.put("retransmissions", mRetransmissions);
+        traffic.put("staleDropped", mStaleDropped);
+
+        JSONObject convergence = new JSONObject();
+        convergence.put("converged", mConverged);
+        convergence.put("failed", mRooms - mConverged);
+        convergence.put("meanSettleMillis", mRooms == 0 ? 0 : mSettleMillisTotal / mRooms);
+        convergence.put("maxSettleMillis", mSettleMillisMax);
+        convergence.put("meanEndSpreadMillis", mRooms == 0 ? 0 : mEndSpreadMillisTotal / mRooms);
+        convergence.put("maxEndSpreadMillis", mEndSpreadMillisMax);
+        convergence.put("failures", new JSONArray(mFailures));
+
+        JSONObject latency = new JSONObject();
+        latency.put("measuredPeers", mRttSamples);
+        latency.put("meanP50RttMillis", mRttSamples == 0 ? 0 : mP50Total / mRttSamples);
+        latency.put("maxP95RttMillis", mP95Max);
+        latency.put("meanLossEstimate", mRttSamples == 0 ? 0 : mLossEstimateTotal / mRttSamples);
+        latency.put("meanFinalBroadcastsPerSecond",
+                mRooms == 0 ? 0 : (double) mRateTotal / (mRooms * mPlayers));
+
+        JSONObject results = new JSONObject();
+        results.put("config", config);
+        results.put("throughput", throughput);
+        results.put("traffic", traffic);
+        results.put("convergence", convergence);
+        results.put("latency", latency);
+        return results;
+    }
+}
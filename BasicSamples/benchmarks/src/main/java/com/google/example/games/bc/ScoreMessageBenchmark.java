@@ -0,0 +1,89 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.bc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks encoding and decoding the score messages sent during a game, and applying them
+ * to the peer score tracker. None of these should allocate once warmed up; run with
+ * -PjmhProfiler=gc and check that gc.alloc.rate.norm is 0 bytes per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoreMessageBenchmark {
+
+    // Score carried by the messages: 1 and 2 byte varints, and one that overflowed the first
+    // version's single byte.
+    @Param({"57", "300", "100000"})
+    public int score;
+
+    // Whether the messages carry a timestamp.
+    @Param({"false", "true"})
+    public boolean withTimestamp;
+
+    private final ScoreMessage mOutgoing = new ScoreMessage();
+    private final ScoreMessage mIncoming = new ScoreMessage();
+    private final PeerScoreTracker mTracker = new PeerScoreTracker(new ParticipantIndex());
+    private byte[] mReceived;
+    private int mSequence = 0;
+
+    @Setup
+    public void setUp() {
+        long timestamp = withTimestamp ? 1420070400000L : ScoreMessage.NO_TIMESTAMP;
+        mReceived = new ScoreMessage()
+                .set(ScoreMessage.TYPE_INTERIM, 12345, score, timestamp).encode().clone();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        long timestamp = withTimestamp ? 1420070400000L + mSequence : ScoreMessage.NO_TIMESTAMP;
+        return mOutgoing.set(ScoreMessage.TYPE_INTERIM, mSequence++ & 0xFFFF, score, timestamp)
+                .encode();
+    }
+
+    @Benchmark
+    public int decode() {
+        if (!mIncoming.decode(mReceived)) {
+            return -1;
+        }
+        return mIncoming.score;
+    }
+
+    @Benchmark
+    public boolean decodeAndTrack() {
+        mIncoming.decode(mReceived);
+        // a fresh sequence number each time, so the message is applied rather than dropped
+        mIncoming.sequence = mSequence++ & Integer.MAX_VALUE;
+        return mTracker.onScore("p_1", mIncoming);
+    }
+}
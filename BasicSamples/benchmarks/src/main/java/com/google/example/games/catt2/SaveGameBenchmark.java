@@ -0,0 +1,114 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing, serializing, merging and copying SaveGames, from the size of the sample
+ * game (20 worlds of 12 levels) up to 100,000 levels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveGameBenchmark {
+
+    // Worlds x levels per world.
+    @Param({"20x12", "100x100", "1000x100"})
+    public String size;
+
+    private SaveGame mSaveGame;
+    private SaveGame mOther;
+    private SaveGame mMergeTarget;
+    private String mJson;
+    private byte[] mBytes;
+
+    @Setup
+    public void setUp() {
+        int split = size.indexOf('x');
+        int worlds = Integer.parseInt(size.substring(0, split));
+        int levels = Integer.parseInt(size.substring(split + 1));
+        Random random = new Random(42);
+        mSaveGame = randomSaveGame(random, worlds, levels);
+        mOther = randomSaveGame(random, worlds, levels);
+        mMergeTarget = mSaveGame.clone();
+        mJson = mSaveGame.toString();
+        mBytes = mSaveGame.toBytes();
+    }
+
+    private static SaveGame randomSaveGame(Random random, int worlds, int levels) {
+        SaveGame saveGame = new SaveGame(worlds, levels);
+        for (int w = 1; w <= worlds; w++) {
+            for (int l = 1; l <= levels; l++) {
+                saveGame.setLevelStars(w, l, random.nextInt(6));
+            }
+        }
+        return saveGame;
+    }
+
+    @Benchmark
+    public SaveGame parseJson() {
+        return new SaveGame(mJson);
+    }
+
+    @Benchmark
+    public SaveGame parseBinary() {
+        return new SaveGame(mBytes);
+    }
+
+    @Benchmark
+    public String serializeJson() {
+        return mSaveGame.toString();
+    }
+
+    @Benchmark
+    public byte[] serializeBinary() {
+        return mSaveGame.toBytes();
+    }
+
+    @Benchmark
+    public SaveGame unionWith() {
+        return mSaveGame.unionWith(mOther);
+    }
+
+    @Benchmark
+    public SaveGame mergeMax() {
+        // merging is idempotent, so every invocation does the same amount of work
+        mMergeTarget.mergeMax(mOther);
+        return mMergeTarget;
+    }
+
+    @Benchmark
+    public SaveGame cloneSaveGame() {
+        return mSaveGame.clone();
+    }
+}
@@ -0,0 +1,129 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.tbmpskeleton;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks writing and reading the turn data sent through the turn-based API, in the binary
+ * format turns are written in, and in the JSON format earlier versions wrote, which is still
+ * read. In the binary format, a turn is either a keyframe, or a delta appended to the chain
+ * of the turns before it; the delta benchmarks take a turn that edits one spot of the data on
+ * top of a chain of CHAIN_DELTAS such turns. Run with -PjmhProfiler=gc to see what each
+ * allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SkeletonTurnBenchmark {
+
+    // Length of the turn's data string, in characters.
+    @Param({"16", "1024", "65536"})
+    public int dataLength;
+
+    // Turns on top of the keyframe, in the chain the delta benchmarks read and write.
+    private static final int CHAIN_DELTAS = 8;
+
+    private SkeletonTurn mTurn;
+    private byte[] mPersisted;
+    private byte[] mPersistedJson;
+
+    // A match with CHAIN_DELTAS turns after its keyframe, and the next turn read from it.
+    private byte[] mChain;
+    private SkeletonTurn mNextTurn;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(dataLength);
+        for (int i = 0; i < dataLength; i++) {
+            // mostly ASCII, with the odd character that JSON or UTF-8 has to escape
+            sb.append(i % 64 == 63 ? '\u2605' : (i % 32 == 31 ? '"' : (char) ('a' + i % 26)));
+        }
+        mTurn = new SkeletonTurn();
+        mTurn.data = sb.toString();
+        mTurn.turnCounter = 42;
+        mPersisted = mTurn.persist();
+        mPersistedJson = mTurn.persistJson();
+
+        mChain = mPersisted;
+        for (int i = 0; i < CHAIN_DELTAS; i++) {
+            mChain = takeTurn(SkeletonTurn.unpersist(mChain), i).persist();
+        }
+        mNextTurn = takeTurn(SkeletonTurn.unpersist(mChain), CHAIN_DELTAS);
+        System.out.println("\nEncoded size: keyframe " + mPersisted.length + " bytes, next turn "
+                + mNextTurn.getEncodedSize() + " bytes, JSON " + mPersistedJson.length + " bytes");
+    }
+
+    // Overwrites a few chars of the data, somewhere different each turn.
+    private static SkeletonTurn takeTurn(SkeletonTurn turn, int seed) {
+        StringBuilder sb = new StringBuilder(turn.data);
+        int at = (seed * 7919) % Math.max(1, sb.length() - 4);
+        sb.replace(at, Math.min(sb.length(), at + 4), "move");
+        turn.data = sb.toString();
+        turn.turnCounter++;
+        return turn;
+    }
+
+    @Benchmark
+    public byte[] persist() {
+        return mTurn.persist();
+    }
+
+    @Benchmark
+    public SkeletonTurn unpersist() {
+        return SkeletonTurn.unpersist(mPersisted);
+    }
+
+    @Benchmark
+    public byte[] persistDelta() {
+        return mNextTurn.persist();
+    }
+
+    @Benchmark
+    public SkeletonTurn unpersistDeltas() {
+        return SkeletonTurn.unpersist(mChain);
+    }
+
+    @Benchmark
+    public int encodedSize() {
+        return mTurn.getEncodedSize();
+    }
+
+    @Benchmark
+    public byte[] persistJson() {
+        return mTurn.persistJson();
+    }
+
+    @Benchmark
+    public SkeletonTurn unpersistJson() {
+        return SkeletonTurn.unpersist(mPersistedJson);
+    }
+}